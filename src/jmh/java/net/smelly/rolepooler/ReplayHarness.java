@@ -0,0 +1,382 @@
+package net.smelly.rolepooler;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.smelly.rolepooler.bench.SimulatedRestSink;
+import net.smelly.rolepooler.bench.StandIns;
+import net.smelly.rolepooler.recording.EventLog;
+import net.smelly.rolepooler.recording.EventRecorder;
+import net.smelly.rolepooler.sync.RoleMutationDispatcher;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Replays a recording made by an {@link EventRecorder} against the bot, with {@link StandIns} in place of Discord and a {@link SimulatedRestSink} in place of its REST API.
+ * <p>The stand-ins and a fresh {@link ServerDataManager} are built from the recording's snapshot, then its events are fed to the {@link RolePooler.RoleListener} at full speed or at a multiple of the speed they were recorded at.
+ * Once the bot has caught up the harness reports the event throughput, the latency from each event to the role changes it caused landing, the REST calls made and if the final state is correct:
+ * the user pools have to match the snapshot's pools with the recorded role events applied, and every member of a pooled guild has to hold exactly the pooled roles of their pools.</p>
+ * <p>This lives in the main package because the listener is package-private.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class ReplayHarness {
+	private static final long REST_LATENCY_MILLIS = 50L;
+	private static final int IDLE_POLLS = 3;
+	private final StandIns standIns = new StandIns();
+	private final RolePooler.RoleListener listener = new RolePooler.RoleListener();
+	private final SimulatedRestSink restSink;
+	private final List<Pool> pools = new ArrayList<>();
+	private final List<EventLog.Record> pooledRoles = new ArrayList<>();
+	private final Map<Long, Pool> rolePools = new HashMap<>();
+	private final Map<Long, PoolSet> expectedPools = new HashMap<>();
+	private final Map<Long, Long> lastEventNanos = new ConcurrentHashMap<>();
+	private final Path dataDirectory;
+	private ServerDataManager dataManager;
+	private long[] latencies = new long[1024];
+	private int latencyCount;
+
+	private ReplayHarness(double requestsPerSecond) throws IOException {
+		this.restSink = new SimulatedRestSink(requestsPerSecond, REST_LATENCY_MILLIS, this::onRolesChanged);
+		this.standIns.setRestSink(this.restSink);
+		this.dataDirectory = Files.createTempDirectory("role-pooler-replay");
+	}
+
+	/**
+	 * Usage: {@code ReplayHarness <recording> [speed] [requestsPerSecond]}
+	 * <p>A speed of 0, the default, replays the events as fast as possible. The requests per second are per guild and default to 50.</p>
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.out.println("Usage: ReplayHarness <recording> [speed] [requestsPerSecond]");
+			return;
+		}
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0.0D;
+		double requestsPerSecond = args.length > 2 ? Double.parseDouble(args[2]) : 50.0D;
+		ReplayHarness harness = new ReplayHarness(requestsPerSecond);
+		boolean correct;
+		try (EventLog.Reader reader = EventLog.read(Paths.get(args[0]))) {
+			EventLog.Record firstEvent = harness.loadSnapshot(reader);
+			harness.replay(reader, firstEvent, speed);
+			correct = harness.checkState();
+		} finally {
+			harness.close();
+		}
+		System.exit(correct ? 0 : 1);
+	}
+
+	/**
+	 * Builds the stand-ins and the data manager from the snapshot at the start of a recording.
+	 *
+	 * @return The first event of the recording, or null if it has none.
+	 */
+	private EventLog.Record loadSnapshot(EventLog.Reader reader) throws IOException {
+		List<EventLog.Record> userPools = new ArrayList<>();
+		List<EventLog.Record> members = new ArrayList<>();
+		EventLog.Record record;
+		while ((record = reader.next()) != null && !record.type.isEvent()) {
+			switch (record.type) {
+				case POOL:
+					this.pools.add(poolByName(record.poolName));
+					break;
+				case POOLED_ROLE:
+					this.pooledRoles.add(record);
+					break;
+				case USER_POOL:
+					userPools.add(record);
+					break;
+				case MEMBER:
+					members.add(record);
+					break;
+			}
+		}
+
+		//Checks are skipped so the replay measures the listener alone and doesn't get its mistakes repaired.
+		Files.write(this.dataDirectory.resolve("config.json"), "{\"journalFsyncPolicy\":\"NEVER\",\"reconcileIntervalMillis\":0,\"reconcileRestBudget\":0}".getBytes(StandardCharsets.UTF_8));
+		RolePooler.BOT = this.standIns.getShardManager();
+		this.dataManager = RolePooler.DATA_MANAGER = new ServerDataManager(RolePoolerConfig.load(this.dataDirectory.resolve("config.json")), this.dataDirectory.toString());
+
+		List<StandIns.GuildStandIn> guilds = new ArrayList<>();
+		for (EventLog.Record pooledRole : this.pooledRoles) {
+			StandIns.GuildStandIn guild = this.standIns.getGuild(pooledRole.guildId);
+			if (guild == null) {
+				guild = this.standIns.guild(pooledRole.guildId);
+				guilds.add(guild);
+			}
+			Pool pool = this.getPool(pooledRole.pool);
+			if (pool != null) {
+				this.rolePools.put(pooledRole.roleId, pool);
+				this.dataManager.putRole(pool, guild.role(pooledRole.roleId));
+			}
+		}
+		for (EventLog.Record member : members) {
+			StandIns.GuildStandIn guild = this.standIns.getGuild(member.guildId);
+			if (guild != null) {
+				List<Role> roles = new ArrayList<>(member.roleIds.length);
+				for (long roleId : member.roleIds) {
+					Role role = guild.getRole(roleId);
+					if (role != null) {
+						roles.add(role);
+					}
+				}
+				guild.member(this.standIns.user(member.userId)).setRoles(roles);
+			}
+		}
+		for (StandIns.GuildStandIn guild : guilds) {
+			this.dataManager.onGuildAvailable(guild.getGuild());
+		}
+		for (EventLog.Record userPool : userPools) {
+			Pool pool = this.getPool(userPool.pool);
+			if (pool != null) {
+				this.dataManager.addUserToPool(userPool.userId, pool);
+				this.expectedPools.put(userPool.userId, this.expectedPools.getOrDefault(userPool.userId, PoolSet.EMPTY).with(pool));
+			}
+		}
+		this.dataManager.onStarted();
+		System.out.println(String.format("Loaded %d pooled roles in %d guilds, %d pooled users and %d members", this.pooledRoles.size(), guilds.size(), this.expectedPools.size(), members.size()));
+		return record;
+	}
+
+	/**
+	 * Feeds the events of a recording to the listener and waits for the bot to catch up.
+	 *
+	 * @param speed The multiple of the recorded speed to replay at, or 0 to replay as fast as possible.
+	 */
+	private void replay(EventLog.Reader reader, EventLog.Record firstEvent, double speed) throws IOException, InterruptedException {
+		long startNanos = System.nanoTime();
+		long firstEventMillis = firstEvent != null ? firstEvent.timeMillis : 0L;
+		int events = 0;
+		int skipped = 0;
+		for (EventLog.Record record = firstEvent; record != null; record = reader.next()) {
+			if (speed > 0.0D) {
+				long dueNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(record.timeMillis - firstEventMillis) / speed);
+				long waitNanos = dueNanos - System.nanoTime();
+				if (waitNanos > 0L) {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				}
+			}
+			if (this.feed(record)) {
+				events++;
+			} else {
+				skipped++;
+			}
+		}
+		long fedNanos = System.nanoTime() - startNanos;
+		long caughtUpNanos = this.awaitIdle() - startNanos;
+
+		double fedSeconds = fedNanos / 1.0E9D;
+		System.out.println(String.format("Replayed %d events (%d skipped) in %.2fs, %.0f events/s", events, skipped, fedSeconds, events / Math.max(fedSeconds, 1.0E-9D)));
+		System.out.println(String.format("Caught up %.2fs after the last event", (caughtUpNanos - fedNanos) / 1.0E9D));
+		long[] latencies = this.getSortedLatencies();
+		if (latencies.length > 0) {
+			System.out.println(String.format("Latency from event to role change: p50 %.1fms, p90 %.1fms, p99 %.1fms, max %.1fms over %d changes",
+					percentile(latencies, 0.5D), percentile(latencies, 0.9D), percentile(latencies, 0.99D), latencies[latencies.length - 1] / 1.0E6D, latencies.length
+			));
+		} else {
+			System.out.println("No role changes were made");
+		}
+		long restCalls = this.standIns.getRestCalls();
+		System.out.println(String.format("REST calls: %d (%.2f per event), %d failed for unknown members", restCalls, restCalls / (double) Math.max(events, 1), this.restSink.getFailedCount()));
+	}
+
+	/**
+	 * Applies an event to the stand-ins and fires it at the listener, like JDA would once its cache is updated.
+	 *
+	 * @return If the event could be replayed, events for guilds or roles that aren't pooled are skipped.
+	 */
+	private boolean feed(EventLog.Record record) {
+		StandIns.GuildStandIn guild = this.standIns.getGuild(record.guildId);
+		if (guild == null) {
+			return false;
+		}
+		JDA jda = this.standIns.getJDA();
+		User user = this.standIns.user(record.userId);
+		switch (record.type) {
+			case ROLE_ADD:
+			case ROLE_REMOVE: {
+				Role role = guild.getRole(record.roleId);
+				Pool pool = this.rolePools.get(record.roleId);
+				if (role == null || pool == null) {
+					return false;
+				}
+				StandIns.MemberStandIn member = guild.getMember(record.userId);
+				if (member == null) {
+					member = guild.member(user);
+				}
+				this.lastEventNanos.put(record.userId, System.nanoTime());
+				PoolSet expected = this.expectedPools.getOrDefault(record.userId, PoolSet.EMPTY);
+				List<Role> roles = Collections.singletonList(role);
+				if (record.type == EventLog.Type.ROLE_ADD) {
+					this.expectedPools.put(record.userId, expected.with(pool));
+					member.addRole(role);
+					this.listener.onGuildMemberRoleAdd(new GuildMemberRoleAddEvent(jda, 0, member.getMember(), roles));
+				} else {
+					this.expectedPools.put(record.userId, expected.without(pool));
+					member.removeRole(role);
+					this.listener.onGuildMemberRoleRemove(new GuildMemberRoleRemoveEvent(jda, 0, member.getMember(), roles));
+				}
+				return true;
+			}
+			case MEMBER_JOIN: {
+				StandIns.MemberStandIn member = guild.member(user);
+				this.lastEventNanos.put(record.userId, System.nanoTime());
+				this.listener.onGuildMemberJoin(new GuildMemberJoinEvent(jda, 0, member.getMember()));
+				return true;
+			}
+			case MEMBER_LEAVE: {
+				StandIns.MemberStandIn member = guild.removeMember(record.userId);
+				this.lastEventNanos.put(record.userId, System.nanoTime());
+				this.listener.onGuildMemberRemove(new GuildMemberRemoveEvent(jda, 0, guild.getGuild(), user, member != null ? member.getMember() : null));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fires the role events Discord would send back for changes the sink applied.
+	 */
+	private void onRolesChanged(StandIns.GuildStandIn guild, StandIns.MemberStandIn member, List<Role> added, List<Role> removed) {
+		Long eventNanos = this.lastEventNanos.get(member.getMember().getIdLong());
+		if (eventNanos != null) {
+			this.addLatency(System.nanoTime() - eventNanos);
+		}
+		JDA jda = this.standIns.getJDA();
+		if (!added.isEmpty()) {
+			this.listener.onGuildMemberRoleAdd(new GuildMemberRoleAddEvent(jda, 0, member.getMember(), added));
+		}
+		if (!removed.isEmpty()) {
+			this.listener.onGuildMemberRoleRemove(new GuildMemberRoleRemoveEvent(jda, 0, member.getMember(), removed));
+		}
+	}
+
+	/**
+	 * Waits until no events, role changes or requests are left, checked a few times in a row since each stage feeds the next.
+	 *
+	 * @return The time in nanoseconds the bot was first seen idle in the last run of idle checks.
+	 */
+	private long awaitIdle() throws InterruptedException {
+		RoleMutationDispatcher dispatcher = this.dataManager.getDispatcher();
+		int idlePolls = 0;
+		long idleSinceNanos = 0L;
+		while (idlePolls < IDLE_POLLS) {
+			long nowNanos = System.nanoTime();
+			boolean idle = this.dataManager.getEventExecutor().getQueuedCount() == 0 && dispatcher.getPendingCount() == 0 && dispatcher.getInFlightCount() == 0 && this.restSink.isIdle();
+			if (idle) {
+				if (idlePolls++ == 0) {
+					idleSinceNanos = nowNanos;
+				}
+			} else {
+				idlePolls = 0;
+			}
+			Thread.sleep(100L);
+		}
+		return idleSinceNanos;
+	}
+
+	/**
+	 * Checks the user pools against the pools expected from the recording, and every member's pooled roles against their pools.
+	 *
+	 * @return If both were correct.
+	 */
+	private boolean checkState() {
+		int[] wrongPools = new int[1];
+		Map<Long, PoolSet> remaining = new HashMap<>(this.expectedPools);
+		this.dataManager.forEachPooledUser((userId, pools) -> {
+			if (!pools.equals(remaining.remove(userId))) {
+				wrongPools[0]++;
+			}
+		});
+		remaining.forEach((userId, pools) -> {
+			if (!pools.isEmpty()) {
+				wrongPools[0]++;
+			}
+		});
+		int wrongMembers = 0;
+		for (EventLog.Record pooledRole : this.pooledRoles) {
+			Pool pool = this.getPool(pooledRole.pool);
+			if (pool == null) {
+				continue;
+			}
+			StandIns.GuildStandIn guild = this.standIns.getGuild(pooledRole.guildId);
+			Role role = guild.getRole(pooledRole.roleId);
+			for (StandIns.MemberStandIn member : guild.getMembers()) {
+				boolean inPool = this.dataManager.getPools(member.getMember().getIdLong()).contains(pool);
+				if (member.getRoles().contains(role) != inPool) {
+					wrongMembers++;
+				}
+			}
+		}
+		System.out.println(wrongPools[0] == 0 ? "Pools: correct" : String.format("Pools: %d users differ from the recording", wrongPools[0]));
+		System.out.println(wrongMembers == 0 ? "Pooled roles: correct" : String.format("Pooled roles: %d members differ from their pools", wrongMembers));
+		return wrongPools[0] == 0 && wrongMembers == 0;
+	}
+
+	private Pool getPool(int index) {
+		return index < this.pools.size() ? this.pools.get(index) : null;
+	}
+
+	private synchronized void addLatency(long nanos) {
+		if (this.latencyCount == this.latencies.length) {
+			this.latencies = Arrays.copyOf(this.latencies, this.latencyCount << 1);
+		}
+		this.latencies[this.latencyCount++] = nanos;
+	}
+
+	private synchronized long[] getSortedLatencies() {
+		long[] latencies = Arrays.copyOf(this.latencies, this.latencyCount);
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	/**
+	 * @return The percentile of some sorted latencies in milliseconds.
+	 */
+	private static double percentile(long[] sortedLatencies, double percentile) {
+		int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+		return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1.0E6D;
+	}
+
+	/**
+	 * Creates the recorded pools, pools that were deleted when the recording started have empty names.
+	 */
+	@Nullable
+	private static Pool poolByName(String name) {
+		if (name.isEmpty()) {
+			return null;
+		}
+		if (!Pool.isValidName(name)) {
+			System.out.println("Skipping the invalid pool " + name);
+			return null;
+		}
+		return Pool.intern(name);
+	}
+
+	/**
+	 * Shuts down the data manager and the sink and deletes the temporary data folder.
+	 */
+	private void close() throws IOException {
+		if (this.dataManager != null) {
+			this.dataManager.shutdown();
+		}
+		this.restSink.shutdown();
+		try (Stream<Path> paths = Files.walk(this.dataDirectory)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+}
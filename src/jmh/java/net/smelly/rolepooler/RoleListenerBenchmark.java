@@ -0,0 +1,85 @@
+package net.smelly.rolepooler;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.smelly.rolepooler.bench.BenchmarkNetwork;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link RolePooler.RoleListener} callbacks end to end, from the gateway event to the queued role changes.
+ * <p>The listener only hands events off to the member's event thread, so each invocation waits for that thread to get through them before it counts as done.</p>
+ * <p>This lives in the main package because the listener is package-private.</p>
+ *
+ * @author Luke Tonon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoleListenerBenchmark {
+	@Param({"1", "10", "50"})
+	public int guildCount;
+	@Param({"1000", "10000"})
+	public int membersPerGuild;
+	@Param({"100", "1000"})
+	public int pooledUsers;
+	private final RolePooler.RoleListener listener = new RolePooler.RoleListener();
+	private BenchmarkNetwork network;
+	private JDA jda;
+	private List<Member> members;
+	private List<Role> roles;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.network = new BenchmarkNetwork(this.guildCount, this.membersPerGuild, this.pooledUsers);
+		this.jda = this.network.getStandIns().getJDA();
+		this.members = new ArrayList<>(this.membersPerGuild);
+		for (int i = 0; i < this.membersPerGuild; i++) {
+			this.members.add(this.network.getGuild(0).getGuild().getMemberById(BenchmarkNetwork.USER_ID_BASE + i));
+		}
+		this.roles = Collections.singletonList(this.network.getRole(0));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.network.close();
+	}
+
+	@Benchmark
+	public void roleAddThenRemove() throws InterruptedException {
+		Member member = this.members.get(this.next++ % this.members.size());
+		this.listener.onGuildMemberRoleAdd(new GuildMemberRoleAddEvent(this.jda, 0, member, this.roles));
+		this.listener.onGuildMemberRoleRemove(new GuildMemberRoleRemoveEvent(this.jda, 0, member, this.roles));
+		this.awaitEvents(member);
+	}
+
+	@Benchmark
+	public void memberJoin() throws InterruptedException {
+		Member member = this.members.get(this.next++ % this.members.size());
+		this.listener.onGuildMemberJoin(new GuildMemberJoinEvent(this.jda, 0, member));
+		this.awaitEvents(member);
+	}
+
+	/**
+	 * Waits for the member's event thread to handle the events handed to it, a member's events are handled in order so this runs after them.
+	 */
+	private void awaitEvents(Member member) throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		this.network.getDataManager().handleUserEvent(member.getGuild().getIdLong(), member.getIdLong(), latch::countDown);
+		latch.await();
+	}
+}
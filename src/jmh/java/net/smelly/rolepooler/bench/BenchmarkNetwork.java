@@ -0,0 +1,106 @@
+package net.smelly.rolepooler.bench;
+
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.User;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.RolePooler;
+import net.smelly.rolepooler.RolePoolerConfig;
+import net.smelly.rolepooler.ServerDataManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A simulated network of guilds for the benchmarks.
+ * <p>Every guild has a {@link Pool#BOOSTER} role and the same members, the first {@code pooledUsers} members are in the pool and hold the role in the first guild.
+ * Building a network installs its stand-ins as {@link RolePooler#BOT} and a fresh {@link ServerDataManager} as {@link RolePooler#DATA_MANAGER}.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class BenchmarkNetwork {
+	public static final long GUILD_ID_BASE = 1_000_000L;
+	public static final long ROLE_ID_BASE = 2_000_000L;
+	public static final long USER_ID_BASE = 10_000_000L;
+	private final StandIns standIns = new StandIns();
+	private final List<StandIns.GuildStandIn> guilds = new ArrayList<>();
+	private final List<Role> roles = new ArrayList<>();
+	private final List<User> users = new ArrayList<>();
+	private final List<User> pooledUsers = new ArrayList<>();
+	private final Path dataDirectory;
+	private final ServerDataManager dataManager;
+
+	public BenchmarkNetwork(int guildCount, int membersPerGuild, int pooledUsers) throws IOException {
+		this.dataDirectory = Files.createTempDirectory("role-pooler-bench");
+		//Keep the batching window short and skip fsyncs so the benchmarks measure the bot and not the disk.
+		Files.write(this.dataDirectory.resolve("config.json"), "{\"roleBatchWindowMillis\":1,\"journalFsyncPolicy\":\"NEVER\"}".getBytes(StandardCharsets.UTF_8));
+		RolePooler.BOT = this.standIns.getShardManager();
+		this.dataManager = RolePooler.DATA_MANAGER = new ServerDataManager(RolePoolerConfig.load(this.dataDirectory.resolve("config.json")), this.dataDirectory.toString());
+
+		for (int i = 0; i < membersPerGuild; i++) {
+			this.users.add(this.standIns.user(USER_ID_BASE + i));
+		}
+		for (int i = 0; i < guildCount; i++) {
+			StandIns.GuildStandIn guild = this.standIns.guild(GUILD_ID_BASE + i);
+			Role role = guild.role(ROLE_ID_BASE + i);
+			this.guilds.add(guild);
+			this.roles.add(role);
+			for (int j = 0; j < membersPerGuild; j++) {
+				StandIns.MemberStandIn member = guild.member(this.users.get(j));
+				if (i == 0 && j < pooledUsers) {
+					member.setRoles(Collections.singletonList(role));
+				}
+			}
+			this.dataManager.putRole(Pool.BOOSTER, role);
+			this.dataManager.onGuildAvailable(guild.getGuild());
+		}
+		for (int i = 0; i < Math.min(pooledUsers, membersPerGuild); i++) {
+			User user = this.users.get(i);
+			this.pooledUsers.add(user);
+			this.dataManager.addUserToPool(user.getIdLong(), Pool.BOOSTER);
+		}
+		this.dataManager.onStarted();
+	}
+
+	public StandIns getStandIns() {
+		return this.standIns;
+	}
+
+	public ServerDataManager getDataManager() {
+		return this.dataManager;
+	}
+
+	public StandIns.GuildStandIn getGuild(int index) {
+		return this.guilds.get(index);
+	}
+
+	public Role getRole(int index) {
+		return this.roles.get(index);
+	}
+
+	public List<User> getUsers() {
+		return this.users;
+	}
+
+	public List<User> getPooledUsers() {
+		return this.pooledUsers;
+	}
+
+	/**
+	 * Shuts down the data manager and deletes the temporary data folder.
+	 */
+	public void close() throws IOException {
+		this.dataManager.shutdown();
+		try (Stream<Path> paths = Files.walk(this.dataDirectory)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package net.smelly.rolepooler.bench;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.data.BinarySnapshot;
+import net.smelly.rolepooler.data.DataFiles;
+import net.smelly.rolepooler.data.PoolRoleMap;
+import net.smelly.rolepooler.data.UserPoolMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing and reading the data files in both snapshot formats.
+ *
+ * @author Luke Tonon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({"1", "10", "50"})
+	public int guildCount;
+	@Param({"1000", "10000"})
+	public int membersPerGuild;
+	@Param({"100", "1000"})
+	public int pooledUsers;
+	private UserPoolMap userPools;
+	private PoolRoleMap pooledRoles;
+	private String userPoolsJson;
+	private String pooledRolesJson;
+	private Path userPoolsBinary;
+	private Path pooledRolesBinary;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Pool patreon = Pool.intern(Pool.DEFAULT_POOL_NAME);
+		this.userPools = new UserPoolMap();
+		for (int i = 0; i < this.pooledUsers; i++) {
+			this.userPools.addPoolToUser(BenchmarkNetwork.USER_ID_BASE + i, Pool.BOOSTER);
+			if (i % 3 == 0) {
+				this.userPools.addPoolToUser(BenchmarkNetwork.USER_ID_BASE + i, patreon);
+			}
+		}
+		this.pooledRoles = new PoolRoleMap();
+		for (int i = 0; i < this.guildCount; i++) {
+			for (Pool pool : Pool.values()) {
+				this.pooledRoles.putRole(pool, BenchmarkNetwork.GUILD_ID_BASE + i, BenchmarkNetwork.ROLE_ID_BASE + i * Pool.getIndexLimit() + pool.getIndex());
+			}
+		}
+		this.userPoolsJson = DataFiles.GSON.toJson(this.userPools);
+		this.pooledRolesJson = DataFiles.GSON.toJson(this.pooledRoles);
+		this.userPoolsBinary = Files.createTempFile("user_pools", ".bin");
+		this.pooledRolesBinary = Files.createTempFile("pooled_roles", ".bin");
+		Files.write(this.userPoolsBinary, this.writeUserPoolsBinary());
+		Files.write(this.pooledRolesBinary, this.writePooledRolesBinary());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(this.userPoolsBinary);
+		Files.deleteIfExists(this.pooledRolesBinary);
+	}
+
+	@Benchmark
+	public String writeUserPoolsJson() {
+		return DataFiles.GSON.toJson(this.userPools);
+	}
+
+	@Benchmark
+	public UserPoolMap readUserPoolsJson() {
+		return DataFiles.GSON.fromJson(this.userPoolsJson, UserPoolMap.class);
+	}
+
+	@Benchmark
+	public byte[] writeUserPoolsBinary() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		BinarySnapshot.writeUserPools(stream, this.userPools);
+		return stream.toByteArray();
+	}
+
+	@Benchmark
+	public UserPoolMap readUserPoolsBinary() throws IOException {
+		return BinarySnapshot.readUserPools(this.userPoolsBinary);
+	}
+
+	@Benchmark
+	public String writePooledRolesJson() {
+		return DataFiles.GSON.toJson(this.pooledRoles);
+	}
+
+	@Benchmark
+	public PoolRoleMap readPooledRolesJson() {
+		return DataFiles.GSON.fromJson(this.pooledRolesJson, PoolRoleMap.class);
+	}
+
+	@Benchmark
+	public byte[] writePooledRolesBinary() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		BinarySnapshot.writePooledRoles(stream, this.pooledRoles);
+		return stream.toByteArray();
+	}
+
+	@Benchmark
+	public PoolRoleMap readPooledRolesBinary() throws IOException {
+		return BinarySnapshot.readPooledRoles(this.pooledRolesBinary);
+	}
+}
@@ -0,0 +1,58 @@
+package net.smelly.rolepooler.bench;
+
+import net.dv8tion.jda.api.entities.User;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.ServerDataManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast pooled roles get fanned out to and pulled from every guild in the network.
+ *
+ * @author Luke Tonon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PooledRolesBenchmark {
+	@Param({"1", "10", "50"})
+	public int guildCount;
+	@Param({"1000", "10000"})
+	public int membersPerGuild;
+	@Param({"100", "1000"})
+	public int pooledUsers;
+	private BenchmarkNetwork network;
+	private ServerDataManager dataManager;
+	private List<User> users;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.network = new BenchmarkNetwork(this.guildCount, this.membersPerGuild, this.pooledUsers);
+		this.dataManager = this.network.getDataManager();
+		this.users = this.network.getUsers();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.network.close();
+	}
+
+	@Benchmark
+	public void addThenRemove() {
+		User user = this.users.get(this.next++ % this.users.size());
+		this.dataManager.addPooledRolesToUser(Pool.BOOSTER, user, true);
+		this.dataManager.removedPooledRolesFromUser(Pool.BOOSTER, user, true);
+	}
+
+	@Benchmark
+	public void addWithoutWrite() {
+		this.dataManager.addPooledRolesToUser(Pool.BOOSTER, this.users.get(this.next++ % this.users.size()), false);
+	}
+}
@@ -0,0 +1,49 @@
+package net.smelly.rolepooler.bench;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.smelly.rolepooler.ServerDataManager;
+import net.smelly.rolepooler.sync.ResyncSummary;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full resync of the first guild in the network, the work behind {@code rp!resync_roles}.
+ *
+ * @author Luke Tonon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResyncBenchmark {
+	@Param({"1", "10", "50"})
+	public int guildCount;
+	@Param({"1000", "10000"})
+	public int membersPerGuild;
+	@Param({"100", "1000"})
+	public int pooledUsers;
+	private BenchmarkNetwork network;
+	private ServerDataManager dataManager;
+	private Guild guild;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.network = new BenchmarkNetwork(this.guildCount, this.membersPerGuild, this.pooledUsers);
+		this.dataManager = this.network.getDataManager();
+		this.guild = this.network.getGuild(0).getGuild();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.network.close();
+	}
+
+	@Benchmark
+	public ResyncSummary updateRolesInPools() {
+		return this.dataManager.updateRolesInPools(this.guild).join();
+	}
+}
@@ -0,0 +1,125 @@
+package net.smelly.rolepooler.bench;
+
+import net.dv8tion.jda.api.entities.Role;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A {@link StandIns.RestSink} that simulates Discord's REST API for replays.
+ * <p>Each guild gets its own rate limit bucket that lets a set number of requests through a second, requests over the limit wait for the bucket's next free slot and every request takes a set latency on top of that.
+ * When a request goes through its changes are applied to the member stand-in and the role events Discord would send back for them are handed to an {@link EchoListener} before the request succeeds.
+ * Requests for members that aren't in the guild fail, like they would with Discord.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class SimulatedRestSink implements StandIns.RestSink {
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Simulated REST");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Map<Long, Long> nextFreeSlots = new HashMap<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final LongAdder failed = new LongAdder();
+	private final long slotNanos;
+	private final long latencyNanos;
+	private final EchoListener echoListener;
+
+	/**
+	 * @param requestsPerSecond The requests each guild's bucket lets through a second.
+	 * @param latencyMillis     The time in milliseconds a request takes once it's let through.
+	 * @param echoListener      The listener to hand the role events for applied changes to.
+	 */
+	public SimulatedRestSink(double requestsPerSecond, long latencyMillis, EchoListener echoListener) {
+		this.slotNanos = (long) (TimeUnit.SECONDS.toNanos(1L) / requestsPerSecond);
+		this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+		this.echoListener = echoListener;
+	}
+
+	@Override
+	public void submit(StandIns.GuildStandIn guild, long userId, List<Role> rolesToAdd, List<Role> rolesToRemove, Runnable onSuccess, Consumer<Throwable> onFailure) {
+		this.pending.incrementAndGet();
+		long now = System.nanoTime();
+		long slot;
+		synchronized (this.nextFreeSlots) {
+			slot = Math.max(now, this.nextFreeSlots.getOrDefault(guild.getId(), now));
+			this.nextFreeSlots.put(guild.getId(), slot + this.slotNanos);
+		}
+		this.executor.schedule(() -> this.apply(guild, userId, rolesToAdd, rolesToRemove, onSuccess, onFailure), slot - now + this.latencyNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void apply(StandIns.GuildStandIn guild, long userId, List<Role> rolesToAdd, List<Role> rolesToRemove, Runnable onSuccess, Consumer<Throwable> onFailure) {
+		try {
+			StandIns.MemberStandIn member = guild.getMember(userId);
+			if (member == null) {
+				this.failed.increment();
+				onFailure.accept(new UnknownMemberException(guild.getId(), userId));
+				return;
+			}
+			List<Role> added = new ArrayList<>(rolesToAdd.size());
+			for (Role role : rolesToAdd) {
+				if (member.addRole(role)) {
+					added.add(role);
+				}
+			}
+			List<Role> removed = new ArrayList<>(rolesToRemove.size());
+			for (Role role : rolesToRemove) {
+				if (member.removeRole(role)) {
+					removed.add(role);
+				}
+			}
+			this.echoListener.onRolesChanged(guild, member, added, removed);
+			onSuccess.run();
+		} finally {
+			this.pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return If no requests are waiting to be let through or applied.
+	 */
+	public boolean isIdle() {
+		return this.pending.get() == 0;
+	}
+
+	/**
+	 * @return The number of requests that failed because the member wasn't in the guild.
+	 */
+	public long getFailedCount() {
+		return this.failed.sum();
+	}
+
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Gets told about the role changes the sink applies, on the sink's thread.
+	 */
+	public interface EchoListener {
+		/**
+		 * @param added   The roles the member didn't have that were added.
+		 * @param removed The roles the member had that were removed.
+		 */
+		void onRolesChanged(StandIns.GuildStandIn guild, StandIns.MemberStandIn member, List<Role> added, List<Role> removed);
+	}
+
+	/**
+	 * The failure for a request about a member that isn't in the guild, without a stack trace since it's expected after members leave.
+	 */
+	public static final class UnknownMemberException extends RuntimeException {
+
+		private UnknownMemberException(long guildId, long userId) {
+			super("Unknown Member " + Long.toUnsignedString(userId) + " in guild " + Long.toUnsignedString(guildId), null, false, false);
+		}
+	}
+}
@@ -0,0 +1,430 @@
+package net.smelly.rolepooler.bench;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.requests.restaction.AuditableRestAction;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.concurrent.Task;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * In-memory stand-ins for the JDA entities the bot uses, built from dynamic proxies.
+ * <p>Only the methods the bot calls are implemented, anything else throws an {@link UnsupportedOperationException}.
+ * Role changes go to a no-op REST sink that only counts them and leaves the stand-in state untouched, unless a {@link RestSink} is set to handle them.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class StandIns {
+	private final Map<Long, GuildStandIn> guilds = new ConcurrentHashMap<>();
+	private final Map<Long, User> users = new ConcurrentHashMap<>();
+	private final LongAdder restCalls = new LongAdder();
+	private final AuditableRestAction<Void> noOpAction;
+	private final JDA jda;
+	private final ShardManager shardManager;
+	private volatile RestSink restSink;
+
+	@SuppressWarnings("unchecked")
+	public StandIns() {
+		this.noOpAction = proxy(AuditableRestAction.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "queue":
+					this.restCalls.increment();
+					if (args != null && args.length > 0 && args[0] != null) {
+						((Consumer<Object>) args[0]).accept(null);
+					}
+					return null;
+				case "reason":
+					return proxy;
+				case "complete":
+					this.restCalls.increment();
+					return null;
+			}
+			return unsupported(method);
+		});
+		this.jda = proxy(JDA.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getGuildById":
+					return this.guildProxy(idArgument(args[0]));
+				case "getUserById":
+					return this.users.get(idArgument(args[0]));
+				case "getGuilds":
+					return this.guildProxies();
+			}
+			return objectMethod(proxy, method, args, "JDA", 0L);
+		});
+		this.shardManager = proxy(ShardManager.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getGuildById":
+					return this.guildProxy(idArgument(args[0]));
+				case "getUserById":
+					return this.users.get(idArgument(args[0]));
+				case "getGuilds":
+					return this.guildProxies();
+				case "getShards":
+					return Collections.singletonList(this.jda);
+				case "getShardsTotal":
+					return 1;
+			}
+			return objectMethod(proxy, method, args, "ShardManager", 0L);
+		});
+	}
+
+	public JDA getJDA() {
+		return this.jda;
+	}
+
+	/**
+	 * @return A shard manager with the stand-in {@link JDA} as its only shard.
+	 */
+	public ShardManager getShardManager() {
+		return this.shardManager;
+	}
+
+	/**
+	 * Sets the sink role changes are sent to, or null to go back to the no-op sink.
+	 */
+	public void setRestSink(RestSink restSink) {
+		this.restSink = restSink;
+	}
+
+	/**
+	 * @return The number of REST calls sent, to the no-op sink or the set {@link RestSink}.
+	 */
+	public long getRestCalls() {
+		return this.restCalls.sum();
+	}
+
+	public User user(long id) {
+		return this.users.computeIfAbsent(id, key -> proxy(User.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getIdLong":
+					return id;
+				case "getJDA":
+					return this.jda;
+				case "getAsMention":
+					return "<@" + id + ">";
+				case "isBot":
+					return false;
+			}
+			return objectMethod(proxy, method, args, "User", id);
+		}));
+	}
+
+	public GuildStandIn guild(long id) {
+		GuildStandIn guild = new GuildStandIn(id);
+		this.guilds.put(id, guild);
+		return guild;
+	}
+
+	public GuildStandIn getGuild(long id) {
+		return this.guilds.get(id);
+	}
+
+	private Guild guildProxy(long id) {
+		GuildStandIn guild = this.guilds.get(id);
+		return guild != null ? guild.guild : null;
+	}
+
+	private List<Guild> guildProxies() {
+		List<Guild> guilds = new ArrayList<>(this.guilds.size());
+		for (GuildStandIn guild : this.guilds.values()) {
+			guilds.add(guild.guild);
+		}
+		return guilds;
+	}
+
+	@SuppressWarnings("unchecked")
+	private AuditableRestAction<Void> restAction(GuildStandIn guild, long userId, List<Role> rolesToAdd, List<Role> rolesToRemove) {
+		RestSink sink = this.restSink;
+		if (sink == null) {
+			return this.noOpAction;
+		}
+		return proxy(AuditableRestAction.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "queue": {
+					Consumer<Object> success = args != null && args.length > 0 ? (Consumer<Object>) args[0] : null;
+					Consumer<Throwable> failure = args != null && args.length > 1 ? (Consumer<Throwable>) args[1] : null;
+					this.restCalls.increment();
+					sink.submit(guild, userId, rolesToAdd, rolesToRemove, () -> {
+						if (success != null) {
+							success.accept(null);
+						}
+					}, throwable -> {
+						if (failure != null) {
+							failure.accept(throwable);
+						}
+					});
+					return null;
+				}
+				case "reason":
+					return proxy;
+			}
+			return unsupported(method);
+		});
+	}
+
+	/**
+	 * Handles the role changes sent through the stand-ins, in place of Discord's REST API.
+	 */
+	public interface RestSink {
+		/**
+		 * Submits a role change, exactly one of the callbacks gets called once it's been handled.
+		 */
+		void submit(GuildStandIn guild, long userId, List<Role> rolesToAdd, List<Role> rolesToRemove, Runnable onSuccess, Consumer<Throwable> onFailure);
+	}
+
+	public final class GuildStandIn {
+		private final long id;
+		private final Map<Long, Role> roles = new LinkedHashMap<>();
+		private final Map<Long, MemberStandIn> members = new ConcurrentHashMap<>();
+		private final Guild guild;
+		private final Member selfMember;
+
+		private GuildStandIn(long id) {
+			this.id = id;
+			this.guild = proxy(Guild.class, this::invoke);
+			//The bot can manage every role of a stand-in guild.
+			this.selfMember = proxy(Member.class, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getGuild":
+						return this.guild;
+					case "canInteract":
+						return true;
+				}
+				return objectMethod(proxy, method, args, "Member", 0L);
+			});
+		}
+
+		public long getId() {
+			return this.id;
+		}
+
+		public Guild getGuild() {
+			return this.guild;
+		}
+
+		public Role getRole(long roleId) {
+			return this.roles.get(roleId);
+		}
+
+		public MemberStandIn getMember(long userId) {
+			return this.members.get(userId);
+		}
+
+		public Collection<MemberStandIn> getMembers() {
+			return this.members.values();
+		}
+
+		/**
+		 * Removes a member, like it left the guild.
+		 *
+		 * @return The removed member, or null if there was no member with the ID.
+		 */
+		public MemberStandIn removeMember(long userId) {
+			return this.members.remove(userId);
+		}
+
+		public Role role(long roleId) {
+			Role role = proxy(Role.class, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getIdLong":
+						return roleId;
+					case "getGuild":
+						return this.guild;
+					case "getName":
+						return "Role " + roleId;
+					case "getAsMention":
+						return "<@&" + roleId + ">";
+				}
+				return objectMethod(proxy, method, args, "Role", roleId);
+			});
+			this.roles.put(roleId, role);
+			return role;
+		}
+
+		public MemberStandIn member(User user) {
+			MemberStandIn member = new MemberStandIn(this, user);
+			this.members.put(user.getIdLong(), member);
+			return member;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+				case "getIdLong":
+					return this.id;
+				case "getName":
+					return "Guild " + this.id;
+				case "getJDA":
+					return StandIns.this.jda;
+				case "getRoleById":
+					return this.roles.get(idArgument(args[0]));
+				case "getRoles":
+					return new ArrayList<>(this.roles.values());
+				case "getBoostRole":
+					return null;
+				case "getMemberById":
+					return this.memberProxy(idArgument(args[0]));
+				case "getSelfMember":
+					return this.selfMember;
+				case "getMember":
+				case "isMember": {
+					Member member = this.memberProxy(((User) args[0]).getIdLong());
+					return method.getName().equals("isMember") ? (Object) (member != null) : member;
+				}
+				case "getMembers": {
+					List<Member> members = new ArrayList<>(this.members.size());
+					for (MemberStandIn member : this.members.values()) {
+						members.add(member.member);
+					}
+					return members;
+				}
+				case "getMembersWithRoles": {
+					List<Role> roles = Arrays.asList((Role[]) args[0]);
+					List<Member> members = new ArrayList<>();
+					for (MemberStandIn member : this.members.values()) {
+						if (member.roles.containsAll(roles)) {
+							members.add(member.member);
+						}
+					}
+					return members;
+				}
+				case "getMemberCount":
+					return this.members.size();
+				case "loadMembers": {
+					Consumer<Member> callback = (Consumer<Member>) args[0];
+					for (MemberStandIn member : this.members.values()) {
+						callback.accept(member.member);
+					}
+					return completedTask();
+				}
+				case "addRoleToMember":
+					return StandIns.this.restAction(this, memberIdArgument(args[0]), Collections.singletonList((Role) args[1]), Collections.emptyList());
+				case "removeRoleFromMember":
+					return StandIns.this.restAction(this, memberIdArgument(args[0]), Collections.emptyList(), Collections.singletonList((Role) args[1]));
+				case "modifyMemberRoles":
+					return StandIns.this.restAction(this, ((Member) args[0]).getIdLong(), new ArrayList<>((Collection<Role>) args[1]), new ArrayList<>((Collection<Role>) args[2]));
+			}
+			return objectMethod(proxy, method, args, "Guild", this.id);
+		}
+
+		private Member memberProxy(long userId) {
+			MemberStandIn member = this.members.get(userId);
+			return member != null ? member.member : null;
+		}
+	}
+
+	public static final class MemberStandIn {
+		private final CopyOnWriteArrayList<Role> roles = new CopyOnWriteArrayList<>();
+		private final Member member;
+
+		private MemberStandIn(GuildStandIn guild, User user) {
+			long id = user.getIdLong();
+			this.member = proxy(Member.class, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getIdLong":
+						return id;
+					case "getUser":
+						return user;
+					case "getGuild":
+						return guild.guild;
+					case "getJDA":
+						return user.getJDA();
+					case "getRoles":
+						return Collections.unmodifiableList(this.roles);
+					case "getAsMention":
+						return user.getAsMention();
+				}
+				return objectMethod(proxy, method, args, "Member", id);
+			});
+		}
+
+		public Member getMember() {
+			return this.member;
+		}
+
+		public List<Role> getRoles() {
+			return Collections.unmodifiableList(this.roles);
+		}
+
+		public void setRoles(Collection<Role> roles) {
+			this.roles.clear();
+			this.roles.addAll(roles);
+		}
+
+		/**
+		 * @return If the member didn't already have the role.
+		 */
+		public boolean addRole(Role role) {
+			return this.roles.addIfAbsent(role);
+		}
+
+		/**
+		 * @return If the member had the role.
+		 */
+		public boolean removeRole(Role role) {
+			return this.roles.remove(role);
+		}
+	}
+
+	/**
+	 * @return A task that has already succeeded with a null result.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Task<Void> completedTask() {
+		return proxy(Task.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "onSuccess":
+					((Consumer<Object>) args[0]).accept(null);
+					return proxy;
+				case "onError":
+					return proxy;
+				case "isStarted":
+					return true;
+				case "get":
+				case "cancel":
+					return null;
+			}
+			return objectMethod(proxy, method, args, "Task", 0L);
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<?> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] {type}, handler);
+	}
+
+	private static long idArgument(Object argument) {
+		return argument instanceof String ? Long.parseUnsignedLong((String) argument) : (Long) argument;
+	}
+
+	private static long memberIdArgument(Object argument) {
+		return argument instanceof Member ? ((Member) argument).getIdLong() : idArgument(argument);
+	}
+
+	private static Object objectMethod(Object proxy, Method method, Object[] args, String type, long id) {
+		switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return Long.hashCode(id);
+			case "toString":
+				return type + ":" + id;
+			case "getId":
+				return Long.toUnsignedString(id);
+		}
+		return unsupported(method);
+	}
+
+	private static Object unsupported(Method method) {
+		throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "#" + method.getName() + " isn't supported by the stand-ins");
+	}
+}
@@ -0,0 +1,78 @@
+package net.smelly.rolepooler;
+
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+
+import java.util.EnumSet;
+
+/**
+ * Decides which members the bot caches and which gateway intents it connects with.
+ *
+ * @author Luke Tonon
+ */
+public enum MemberCacheMode {
+	/**
+	 * Caches every member with every intent, except direct message typing.
+	 */
+	ALL {
+		@Override
+		public EnumSet<GatewayIntent> getIntents() {
+			return GatewayIntent.getIntents(GatewayIntent.ALL_INTENTS & ~GatewayIntent.getRaw(GatewayIntent.DIRECT_MESSAGE_TYPING));
+		}
+
+		@Override
+		public void configure(DefaultShardManagerBuilder builder) {}
+	},
+	/**
+	 * Only caches members that hold a pooled role, and only connects with the intents role pooling needs.
+	 * <p>Each guild's members are loaded once when it becomes available so that every member with a pooled role is cached,
+	 * after that JDA keeps members in the cache exactly while they hold a pooled role.
+	 * Members that aren't cached are fetched by ID when they need to be looked at.</p>
+	 */
+	POOLED {
+		@Override
+		public EnumSet<GatewayIntent> getIntents() {
+			return EnumSet.of(GatewayIntent.GUILD_MEMBERS, GatewayIntent.GUILD_MESSAGES);
+		}
+
+		@Override
+		public void configure(DefaultShardManagerBuilder builder) {
+			builder.setMemberCachePolicy(MemberCacheMode::holdsPooledRole);
+			builder.setChunkingFilter(ChunkingFilter.NONE);
+			//These need intents this mode doesn't connect with.
+			builder.disableCache(CacheFlag.ACTIVITY, CacheFlag.CLIENT_STATUS, CacheFlag.VOICE_STATE, CacheFlag.EMOTE);
+		}
+	};
+
+	public abstract EnumSet<GatewayIntent> getIntents();
+
+	/**
+	 * Configures the caching of a shard manager for this mode.
+	 */
+	public abstract void configure(DefaultShardManagerBuilder builder);
+
+	/**
+	 * @return If this mode caches every member.
+	 */
+	public boolean cachesAllMembers() {
+		return this == ALL;
+	}
+
+	/**
+	 * The {@link MemberCachePolicy} of {@link #POOLED}.
+	 */
+	private static boolean holdsPooledRole(Member member) {
+		ServerDataManager manager = RolePooler.DATA_MANAGER;
+		for (Role role : member.getRoles()) {
+			if (manager.getPoolForRole(role) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
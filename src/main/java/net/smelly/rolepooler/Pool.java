@@ -1,9 +1,156 @@
 package net.smelly.rolepooler;
 
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
 /**
+ * A pool of roles that get synced across guilds. Pools are created and deleted at runtime and persisted by the store with the pooled roles.
+ * <p>Pools are interned, there's only ever one instance for a name so pools can be compared by identity.
+ * Each pool gets a small index when it's created, which is its bit in a {@link PoolSet} and its slot in anything the bot keeps per pool.
+ * The index of a deleted pool isn't handed out again until the bot restarts, so a pool held onto by an event in flight can never turn into another pool.
+ * Pools are interned in the order they're loaded, so the indices are compact again after a restart.</p>
+ * <p>{@link #BOOSTER} is built in and can't be deleted, since members lose its roles when they stop boosting.</p>
+ *
  * @author Luke Tonon
  */
-public enum Pool {
-	BOOSTER,
-	PATREON
+public final class Pool {
+	private static final Pattern NAME_PATTERN = Pattern.compile("[A-Z0-9_]{1,32}");
+	private static final Map<String, Pool> POOLS_BY_NAME = new ConcurrentHashMap<>();
+	private static volatile Pool[] poolsByIndex = new Pool[0];
+	private static volatile List<Pool> values = Collections.emptyList();
+	public static final Pool BOOSTER = intern("BOOSTER");
+	/**
+	 * The name of the pool created alongside {@link #BOOSTER} for new data, it used to be built in.
+	 */
+	public static final String DEFAULT_POOL_NAME = "PATREON";
+	private final String name;
+	private final int index;
+	private volatile boolean deleted;
+
+	private Pool(String name, int index) {
+		this.name = name;
+		this.index = index;
+	}
+
+	/**
+	 * Gets the pool with a name, creating it if there's no pool with the name yet.
+	 *
+	 * @param name The name of the pool, it gets upper cased.
+	 * @throws IllegalArgumentException If the name isn't a valid pool name.
+	 * @see #isValidName(String)
+	 */
+	public static synchronized Pool intern(String name) {
+		String upperCaseName = name.toUpperCase(Locale.ROOT);
+		Pool pool = POOLS_BY_NAME.get(upperCaseName);
+		if (pool != null) {
+			return pool;
+		}
+		if (!isValidName(upperCaseName)) {
+			throw new IllegalArgumentException("Invalid pool name " + name);
+		}
+		Pool[] pools = poolsByIndex;
+		pool = new Pool(upperCaseName, pools.length);
+		pools = Arrays.copyOf(pools, pools.length + 1);
+		pools[pool.index] = pool;
+		POOLS_BY_NAME.put(upperCaseName, pool);
+		poolsByIndex = pools;
+		updateValues();
+		return pool;
+	}
+
+	/**
+	 * Deletes a pool, after this it can't be looked up and won't be included in any {@link PoolSet}.
+	 *
+	 * @return If the pool was deleted, {@link #BOOSTER} can't be.
+	 */
+	public static synchronized boolean delete(Pool pool) {
+		if (pool == BOOSTER || pool.deleted) {
+			return false;
+		}
+		pool.deleted = true;
+		POOLS_BY_NAME.remove(pool.name);
+		Pool[] pools = poolsByIndex.clone();
+		pools[pool.index] = null;
+		poolsByIndex = pools;
+		updateValues();
+		return true;
+	}
+
+	private static void updateValues() {
+		List<Pool> pools = new ArrayList<>();
+		for (Pool pool : poolsByIndex) {
+			if (pool != null) {
+				pools.add(pool);
+			}
+		}
+		values = Collections.unmodifiableList(pools);
+	}
+
+	/**
+	 * @return If a name can be used for a pool. Names are made up of 1 to 32 letters, digits and underscores, and are case-insensitive.
+	 */
+	public static boolean isValidName(String name) {
+		return NAME_PATTERN.matcher(name.toUpperCase(Locale.ROOT)).matches();
+	}
+
+	@Nullable
+	public static Pool byName(String name) {
+		return POOLS_BY_NAME.get(name.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return The pool with the index, or null if there isn't one or it was deleted.
+	 */
+	@Nullable
+	public static Pool byIndex(int index) {
+		Pool[] pools = poolsByIndex;
+		return index >= 0 && index < pools.length ? pools[index] : null;
+	}
+
+	/**
+	 * @return Every pool in order of their indices, this doesn't change as pools are created and deleted.
+	 */
+	public static List<Pool> values() {
+		return values;
+	}
+
+	/**
+	 * @return One more than the highest index handed out, for sizing anything indexed by {@link #getIndex()}.
+	 */
+	public static int getIndexLimit() {
+		return poolsByIndex.length;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * @return The word of a {@link PoolSet} this pool's bit is in.
+	 */
+	public int getWord() {
+		return this.index >>> 6;
+	}
+
+	/**
+	 * @return The bit representing this pool in its word of a {@link PoolSet}.
+	 */
+	public long getMask() {
+		return 1L << this.index;
+	}
+
+	public boolean isDeleted() {
+		return this.deleted;
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
 }
@@ -0,0 +1,123 @@
+package net.smelly.rolepooler;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An immutable set of {@link Pool}s held as a bitset of their indices, used for the pools a user is in.
+ * <p>Word {@code i} of the bitset holds the pools with indices {@code 64 * i} to {@code 64 * i + 63}, so any number of pools fit and checking a pool is a single bit test.
+ * Sets never have trailing empty words, so equal sets always have equal words.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class PoolSet {
+	public static final PoolSet EMPTY = new PoolSet(new long[0]);
+	private final long[] words;
+
+	private PoolSet(long[] words) {
+		this.words = words;
+	}
+
+	/**
+	 * @param words The words of the bitset, these are copied.
+	 */
+	public static PoolSet of(long... words) {
+		int length = words.length;
+		while (length > 0 && words[length - 1] == 0L) {
+			length--;
+		}
+		return length == 0 ? EMPTY : new PoolSet(Arrays.copyOf(words, length));
+	}
+
+	public static PoolSet of(Pool pool) {
+		return EMPTY.with(pool);
+	}
+
+	public boolean contains(Pool pool) {
+		int word = pool.getWord();
+		return word < this.words.length && (this.words[word] & pool.getMask()) != 0L;
+	}
+
+	/**
+	 * @return A set with the pool added, this set if it already has the pool.
+	 */
+	public PoolSet with(Pool pool) {
+		if (this.contains(pool)) {
+			return this;
+		}
+		long[] words = Arrays.copyOf(this.words, Math.max(this.words.length, pool.getWord() + 1));
+		words[pool.getWord()] |= pool.getMask();
+		return new PoolSet(words);
+	}
+
+	/**
+	 * @return A set with the pool removed, this set if it doesn't have the pool.
+	 */
+	public PoolSet without(Pool pool) {
+		if (!this.contains(pool)) {
+			return this;
+		}
+		long[] words = this.words.clone();
+		words[pool.getWord()] &= ~pool.getMask();
+		return of(words);
+	}
+
+	/**
+	 * @return The pools in this set that aren't in the other set.
+	 */
+	public PoolSet without(PoolSet other) {
+		long[] words = this.words.clone();
+		for (int i = 0; i < Math.min(words.length, other.words.length); i++) {
+			words[i] &= ~other.words[i];
+		}
+		return of(words);
+	}
+
+	public boolean isEmpty() {
+		return this.words.length == 0;
+	}
+
+	public int getWordCount() {
+		return this.words.length;
+	}
+
+	/**
+	 * @return A word of the bitset, 0 for words past the end of it.
+	 */
+	public long getWord(int word) {
+		return word < this.words.length ? this.words[word] : 0L;
+	}
+
+	/**
+	 * Calls a consumer for each pool in this set in order of their indices, skipping pools that have been deleted.
+	 */
+	public void forEach(Consumer<Pool> consumer) {
+		for (int word = 0; word < this.words.length; word++) {
+			long bits = this.words[word];
+			while (bits != 0L) {
+				Pool pool = Pool.byIndex((word << 6) + Long.numberOfTrailingZeros(bits));
+				if (pool != null) {
+					consumer.accept(pool);
+				}
+				bits &= bits - 1L;
+			}
+		}
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		return object == this || object instanceof PoolSet && Arrays.equals(this.words, ((PoolSet) object).words);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.words);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		this.forEach(pool -> builder.append(builder.length() > 1 ? ", " : "").append(pool.getName()));
+		return builder.append(']').toString();
+	}
+}
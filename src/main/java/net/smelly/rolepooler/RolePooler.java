@@ -1,28 +1,66 @@
 package net.smelly.rolepooler;
 
 import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.events.ReadyEvent;
+import net.dv8tion.jda.api.events.ReconnectedEvent;
+import net.dv8tion.jda.api.events.ResumedEvent;
+import net.dv8tion.jda.api.events.guild.*;
 import net.dv8tion.jda.api.events.guild.member.*;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.smelly.rolepooler.commands.RPCommands;
+import net.smelly.rolepooler.metrics.MetricsHttpServer;
+import net.smelly.rolepooler.metrics.MetricsMBean;
+import net.smelly.rolepooler.metrics.MetricsRegistry;
+import net.smelly.rolepooler.recording.EventRecorder;
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.OnlineStatus;
-import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.ConcurrentSessionController;
 import net.smelly.disparser.CommandHandler;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.JMException;
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.function.Consumer;
 
 /**
  * @author Luke Tonon
  */
 public final class RolePooler {
-	public static JDA BOT;
+	public static ShardManager BOT;
 	public static ServerDataManager DATA_MANAGER;
+	private static long[] operatorIds = new long[0];
+	private static volatile long ownerId;
 
-	public static void main(String[] args) throws LoginException, IOException, InterruptedException {
-		JDABuilder builder = JDABuilder.create(args[0], GatewayIntent.getIntents(GatewayIntent.ALL_INTENTS & ~GatewayIntent.getRaw(GatewayIntent.DIRECT_MESSAGE_TYPING)));
+	public static void main(String[] args) throws LoginException, IOException {
+		//The data files only store IDs, so they can be loaded before the bot connects. Events for guilds that haven't loaded yet get held back by the data manager.
+		RolePoolerConfig config = RolePoolerConfig.load(Paths.get(args[1], "config.json"));
+		DATA_MANAGER = new ServerDataManager(config, args[1]);
+		operatorIds = config.getOperatorIds();
+		MetricsRegistry registry = DATA_MANAGER.getMetrics().getRegistry();
+		try {
+			MetricsMBean.register(registry, "net.smelly.rolepooler:type=Metrics");
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		MetricsHttpServer metricsServer = startMetricsServer(config, registry);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if (metricsServer != null) {
+				metricsServer.stop();
+			}
+			DATA_MANAGER.shutdown();
+		}, "Role Pooler Shutdown"));
+		MemberCacheMode memberCacheMode = config.getMemberCacheMode();
+		DefaultShardManagerBuilder builder = DefaultShardManagerBuilder.create(args[0], memberCacheMode.getIntents());
+		memberCacheMode.configure(builder);
+		builder.setShardsTotal(config.getShardCount());
+		//Lets shards log in in parallel, up to the concurrency Discord allows the bot.
+		builder.setSessionController(new ConcurrentSessionController());
 		builder.setStatus(OnlineStatus.ONLINE);
 		builder.setActivity(Activity.of(Activity.ActivityType.DEFAULT, "Pooling Roles!"));
 		builder.addEventListeners(
@@ -30,51 +68,179 @@ public final class RolePooler {
 				new RoleListener()
 		);
 		BOT = builder.build();
-		//Sleep current thread for 10 seconds so Guild Caches can fully load to have Server Data load properly.
-		Thread.sleep(10000L);
-		DATA_MANAGER = new ServerDataManager(args[1]);
+	}
+
+	/**
+	 * Starts the metrics endpoint, the endpoint is optional so the bot still starts without it if the port can't be bound.
+	 *
+	 * @return The started server, or null if the endpoint is disabled or couldn't be started.
+	 */
+	@Nullable
+	private static MetricsHttpServer startMetricsServer(RolePoolerConfig config, MetricsRegistry registry) {
+		if (config.getMetricsPort() < 0) {
+			return null;
+		}
+		try {
+			return new MetricsHttpServer(registry, config.getMetricsHost(), config.getMetricsPort());
+		} catch (IOException e) {
+			System.out.println("WARNING: Couldn't serve metrics on " + config.getMetricsHost() + ":" + config.getMetricsPort() + ", continuing without the metrics endpoint");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @return If a user is the bot's owner or one of the configured operators, who can run commands that affect every pooled server.
+	 */
+	public static boolean isOperator(User user) {
+		long userId = user.getIdLong();
+		if (userId == ownerId) {
+			return true;
+		}
+		for (long operatorId : operatorIds) {
+			if (userId == operatorId) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	static class RoleListener extends ListenerAdapter {
 
+		@Override
+		public void onReady(@Nonnull ReadyEvent event) {
+			if (ownerId == 0L) {
+				event.getJDA().retrieveApplicationInfo().queue(info -> ownerId = info.getOwner().getIdLong());
+			}
+			JDA.ShardInfo shardInfo = event.getJDA().getShardInfo();
+			DATA_MANAGER.onShardReady(shardInfo.getShardId(), shardInfo.getShardTotal());
+		}
+
+		@Override
+		public void onReconnected(@Nonnull ReconnectedEvent event) {
+			//The cache was rebuilt from a new session, so any events missed while disconnected only show up as drift.
+			DATA_MANAGER.getReconciler().requestCheck();
+		}
+
+		@Override
+		public void onResumed(@Nonnull ResumedEvent event) {
+			DATA_MANAGER.getReconciler().requestCheck();
+		}
+
+		@Override
+		public void onGuildReady(@Nonnull GuildReadyEvent event) {
+			DATA_MANAGER.onGuildAvailable(event.getGuild());
+		}
+
+		@Override
+		public void onGuildAvailable(@Nonnull GuildAvailableEvent event) {
+			DATA_MANAGER.onGuildAvailable(event.getGuild());
+		}
+
+		@Override
+		public void onGuildUnavailable(@Nonnull GuildUnavailableEvent event) {
+			DATA_MANAGER.onGuildUnavailable(event.getGuild());
+		}
+
+		@Override
+		public void onGuildJoin(@Nonnull GuildJoinEvent event) {
+			DATA_MANAGER.onGuildAvailable(event.getGuild());
+		}
+
+		@Override
+		public void onGuildLeave(@Nonnull GuildLeaveEvent event) {
+			DATA_MANAGER.onGuildLeave(event.getGuild());
+		}
+
+		@Override
+		public void onRoleDelete(@Nonnull RoleDeleteEvent event) {
+			DATA_MANAGER.getStartupGate().execute(event.getGuild().getIdLong(), () -> DATA_MANAGER.onRoleDeleted(event.getRole()));
+		}
+
 		@Override
 		public void onGuildMemberRoleAdd(@Nonnull GuildMemberRoleAddEvent event) {
+			Guild guild = event.getGuild();
 			User user = event.getUser();
-			for (Role role : event.getRoles()) {
-				Pool pool = DATA_MANAGER.getPoolForRole(role);
-				if (pool != null) {
-					DATA_MANAGER.addPooledRolesToUser(pool, user, true);
+			DATA_MANAGER.handleUserEvent(guild.getIdLong(), user.getIdLong(), () -> {
+				for (Role role : event.getRoles()) {
+					Pool pool = DATA_MANAGER.getPoolForRole(role);
+					if (pool != null && !DATA_MANAGER.isEcho(guild, user, role, true)) {
+						record(recorder -> recorder.recordRoleChange(guild.getIdLong(), user.getIdLong(), role.getIdLong(), true));
+						DATA_MANAGER.getMetrics().onRoleEvent(pool);
+						DATA_MANAGER.addPooledRolesToUser(pool, user, true);
+					}
 				}
-			}
+			});
 		}
 
 		@Override
 		public void onGuildMemberRoleRemove(@Nonnull GuildMemberRoleRemoveEvent event) {
+			Guild guild = event.getGuild();
 			User user = event.getUser();
-			for (Role role : event.getRoles()) {
-				Pool pool = DATA_MANAGER.getPoolForRole(role);
-				if (pool != null) {
-					DATA_MANAGER.removedPooledRolesFromUser(pool, user, true);
+			DATA_MANAGER.handleUserEvent(guild.getIdLong(), user.getIdLong(), () -> {
+				for (Role role : event.getRoles()) {
+					Pool pool = DATA_MANAGER.getPoolForRole(role);
+					if (pool != null && !DATA_MANAGER.isEcho(guild, user, role, false)) {
+						record(recorder -> recorder.recordRoleChange(guild.getIdLong(), user.getIdLong(), role.getIdLong(), false));
+						DATA_MANAGER.getMetrics().onRoleEvent(pool);
+						DATA_MANAGER.removedPooledRolesFromUser(pool, user, true);
+					}
 				}
+			});
+		}
+
+		@Override
+		public void onGuildMemberUpdate(@Nonnull GuildMemberUpdateEvent event) {
+			//Members that weren't cached don't get role events, so pooled roles they gain are picked up from the update instead.
+			//This fires after the role events of cached members, which have already pooled the role by then.
+			if (DATA_MANAGER.getMemberCacheMode().cachesAllMembers()) {
+				return;
 			}
+			Guild guild = event.getGuild();
+			User user = event.getUser();
+			DATA_MANAGER.handleUserEvent(guild.getIdLong(), user.getIdLong(), () -> {
+				for (Role role : event.getMember().getRoles()) {
+					Pool pool = DATA_MANAGER.getPoolForRole(role);
+					if (pool != null && !DATA_MANAGER.isUserInPool(user, pool) && !DATA_MANAGER.isEcho(guild, user, role, true)) {
+						record(recorder -> recorder.recordRoleChange(guild.getIdLong(), user.getIdLong(), role.getIdLong(), true));
+						DATA_MANAGER.getMetrics().onRoleEvent(pool);
+						DATA_MANAGER.addPooledRolesToUser(pool, user, true);
+					}
+				}
+			});
 		}
 
 		@Override
 		public void onGuildMemberJoin(@Nonnull GuildMemberJoinEvent event) {
-			DATA_MANAGER.checkAndUpdateRolesForUser(event.getGuild(), event.getUser());
+			Guild guild = event.getGuild();
+			User user = event.getUser();
+			DATA_MANAGER.handleUserEvent(guild.getIdLong(), user.getIdLong(), () -> {
+				record(recorder -> recorder.recordMemberJoin(guild.getIdLong(), user.getIdLong()));
+				DATA_MANAGER.checkAndUpdateRolesForUser(guild, user);
+			});
 		}
 
 		@Override
 		public void onGuildMemberRemove(@Nonnull GuildMemberRemoveEvent event) {
-			Member member = event.getMember();
+			Guild guild = event.getGuild();
 			User user = event.getUser();
-			if (member != null && DATA_MANAGER.isUserInPool(user, Pool.BOOSTER)) {
-				Role boostRole = event.getGuild().getBoostRole();
-				if (boostRole != null && DATA_MANAGER.getPoolForRole(boostRole) == Pool.BOOSTER) {
-					DATA_MANAGER.removedPooledRolesFromUser(Pool.BOOSTER, user, true);
+			DATA_MANAGER.handleUserEvent(guild.getIdLong(), user.getIdLong(), () -> {
+				record(recorder -> recorder.recordMemberLeave(guild.getIdLong(), user.getIdLong()));
+				Member member = event.getMember();
+				if (member != null && DATA_MANAGER.isUserInPool(user, Pool.BOOSTER)) {
+					Role boostRole = guild.getBoostRole();
+					if (boostRole != null && DATA_MANAGER.getPoolForRole(boostRole) == Pool.BOOSTER) {
+						DATA_MANAGER.removedPooledRolesFromUser(Pool.BOOSTER, user, true);
+					}
 				}
-			}
+			});
 		}
 
+		private static void record(Consumer<EventRecorder> action) {
+			EventRecorder recorder = DATA_MANAGER.getEventRecorder();
+			if (recorder != null) {
+				action.accept(recorder);
+			}
+		}
 	}
 }
@@ -0,0 +1,250 @@
+package net.smelly.rolepooler;
+
+import com.google.gson.Gson;
+import net.smelly.rolepooler.data.MembershipJournal;
+import net.smelly.rolepooler.data.PoolStore;
+import net.smelly.rolepooler.data.SnapshotFormat;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The bot's settings, read from an optional {@code config.json} file in the data folder.
+ * <p>Any setting left out of the file keeps its default value.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class RolePoolerConfig {
+	private static final Gson GSON = new Gson();
+	private long flushIntervalMillis = 5000L;
+	private MembershipJournal.FsyncPolicy journalFsyncPolicy = MembershipJournal.FsyncPolicy.INTERVAL;
+	private long journalCompactBytes = 1L << 20;
+	private long journalCompactIntervalMillis = 3600000L;
+	private long roleBatchWindowMillis = 500L;
+	private long echoTimeoutMillis = 30000L;
+	private int restGuildConcurrency = 4;
+	private long restRetryBaseDelayMillis = 1000L;
+	private long restRetryMaxDelayMillis = 300000L;
+	private int restMaxAttempts = 10;
+	private MembershipJournal.FsyncPolicy outboxFsyncPolicy = MembershipJournal.FsyncPolicy.INTERVAL;
+	private long outboxCompactBytes = 1L << 20;
+	private SnapshotFormat snapshotFormat = SnapshotFormat.JSON;
+	private PoolStore.Backend storageBackend = PoolStore.Backend.FILES;
+	@Nullable
+	private String databaseUrl;
+	private int shardCount = -1;
+	private MemberCacheMode memberCacheMode = MemberCacheMode.ALL;
+	private int eventThreads = Runtime.getRuntime().availableProcessors();
+	private int eventQueueCapacity = 10000;
+	private String metricsHost = "127.0.0.1";
+	private int metricsPort = 9464;
+	private int resyncParallelGuilds = 4;
+	private long reconcileIntervalMillis = 900000L;
+	private long reconcileRestBudget = 500L;
+	private boolean recordEvents;
+	private long[] operatorIds = new long[0];
+
+	/**
+	 * Reads the config from a file, falling back to the default config if the file doesn't exist.
+	 *
+	 * @param path The path of the config file.
+	 * @throws IOException If an exception occurs reading the file.
+	 */
+	public static RolePoolerConfig load(Path path) throws IOException {
+		if (Files.exists(path)) {
+			try (Reader reader = Files.newBufferedReader(path)) {
+				RolePoolerConfig config = GSON.fromJson(reader, RolePoolerConfig.class);
+				if (config != null) {
+					return config;
+				}
+			}
+		}
+		return new RolePoolerConfig();
+	}
+
+	/**
+	 * @return The interval in milliseconds that changed data files get written at, at least 1 since the writer schedules flushes with it.
+	 */
+	public long getFlushIntervalMillis() {
+		return Math.max(1L, this.flushIntervalMillis);
+	}
+
+	/**
+	 * @return When changes appended to the user pools journal get forced to disk.
+	 */
+	public MembershipJournal.FsyncPolicy getJournalFsyncPolicy() {
+		return this.journalFsyncPolicy;
+	}
+
+	/**
+	 * @return The size in bytes the user pools journal can grow to before it gets compacted into a snapshot.
+	 */
+	public long getJournalCompactBytes() {
+		return this.journalCompactBytes;
+	}
+
+	/**
+	 * @return The time in milliseconds the user pools journal can go without being compacted into a snapshot.
+	 */
+	public long getJournalCompactIntervalMillis() {
+		return this.journalCompactIntervalMillis;
+	}
+
+	/**
+	 * @return The time in milliseconds role changes get collected for before they're sent in a batch.
+	 */
+	public long getRoleBatchWindowMillis() {
+		return this.roleBatchWindowMillis;
+	}
+
+	/**
+	 * @return The time in milliseconds a role change made by the bot waits for its echo from the gateway, at least 1 since expired echoes are swept at this interval.
+	 */
+	public long getEchoTimeoutMillis() {
+		return Math.max(1L, this.echoTimeoutMillis);
+	}
+
+	/**
+	 * @return The number of members of a guild that can have a role change request in flight at once.
+	 */
+	public int getRestGuildConcurrency() {
+		return this.restGuildConcurrency;
+	}
+
+	/**
+	 * @return The time in milliseconds waited before retrying a role change that failed to send the first time, this doubles with each failure.
+	 */
+	public long getRestRetryBaseDelayMillis() {
+		return this.restRetryBaseDelayMillis;
+	}
+
+	/**
+	 * @return The longest time in milliseconds waited before retrying a role change that failed to send.
+	 */
+	public long getRestRetryMaxDelayMillis() {
+		return this.restRetryMaxDelayMillis;
+	}
+
+	/**
+	 * @return The most times a role change gets sent before it's given up on.
+	 */
+	public int getRestMaxAttempts() {
+		return this.restMaxAttempts;
+	}
+
+	/**
+	 * @return When role changes written to the outbox get forced to disk.
+	 */
+	public MembershipJournal.FsyncPolicy getOutboxFsyncPolicy() {
+		return this.outboxFsyncPolicy;
+	}
+
+	/**
+	 * @return The size in bytes the role change outbox can grow to before it gets compacted.
+	 */
+	public long getOutboxCompactBytes() {
+		return this.outboxCompactBytes;
+	}
+
+	/**
+	 * @return The format the data files get written in.
+	 */
+	public SnapshotFormat getSnapshotFormat() {
+		return this.snapshotFormat;
+	}
+
+	/**
+	 * @return The address the Prometheus metrics endpoint binds to.
+	 */
+	public String getMetricsHost() {
+		return this.metricsHost;
+	}
+
+	/**
+	 * @return The port the Prometheus metrics endpoint listens on, or a negative number if it's disabled.
+	 */
+	public int getMetricsPort() {
+		return this.metricsPort;
+	}
+
+	/**
+	 * @return The number of threads role and member events get processed on.
+	 */
+	public int getEventThreads() {
+		return this.eventThreads;
+	}
+
+	/**
+	 * @return The number of events each event thread can have waiting before the gateway has to wait for it.
+	 */
+	public int getEventQueueCapacity() {
+		return this.eventQueueCapacity;
+	}
+
+	/**
+	 * @return The number of shards to connect with, or -1 to use the number Discord recommends.
+	 */
+	public int getShardCount() {
+		return this.shardCount;
+	}
+
+	/**
+	 * @return Where the pooled roles and user pools get stored.
+	 */
+	public PoolStore.Backend getStorageBackend() {
+		return this.storageBackend;
+	}
+
+	/**
+	 * @return The JDBC URL of the database to use for the {@link PoolStore.Backend#H2} backend, or null to use a database in the data folder.
+	 */
+	@Nullable
+	public String getDatabaseUrl() {
+		return this.databaseUrl;
+	}
+
+	/**
+	 * @return Which members the bot caches and which gateway intents it connects with.
+	 */
+	public MemberCacheMode getMemberCacheMode() {
+		return this.memberCacheMode;
+	}
+
+	/**
+	 * @return The most guilds a resync streams members from at once.
+	 */
+	public int getResyncParallelGuilds() {
+		return this.resyncParallelGuilds;
+	}
+
+	/**
+	 * @return The interval in milliseconds between checks for pooled roles that drifted from the user pools, checks only happen on startup and reconnects if this isn't positive.
+	 */
+	public long getReconcileIntervalMillis() {
+		return this.reconcileIntervalMillis;
+	}
+
+	/**
+	 * @return The most role changes a check for drifted pooled roles can make.
+	 */
+	public long getReconcileRestBudget() {
+		return this.reconcileRestBudget;
+	}
+
+	/**
+	 * @return If the role and member events the bot handles get recorded to a file in the data folder, to be replayed offline.
+	 */
+	public boolean isRecordEvents() {
+		return this.recordEvents;
+	}
+
+	/**
+	 * @return The IDs of the users besides the bot's owner that can run commands affecting every pooled server.
+	 */
+	public long[] getOperatorIds() {
+		return this.operatorIds;
+	}
+}
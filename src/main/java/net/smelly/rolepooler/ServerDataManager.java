@@ -1,300 +1,645 @@
 package net.smelly.rolepooler;
 
-import com.google.gson.*;
 import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.requests.ErrorResponse;
+import net.smelly.rolepooler.data.*;
+import net.smelly.rolepooler.metrics.RolePoolerMetrics;
+import net.smelly.rolepooler.recording.EventRecorder;
+import net.smelly.rolepooler.sync.MutationOutbox;
+import net.smelly.rolepooler.sync.Reconciler;
+import net.smelly.rolepooler.sync.ResyncEngine;
+import net.smelly.rolepooler.sync.ResyncJob;
+import net.smelly.rolepooler.sync.ResyncSummary;
+import net.smelly.rolepooler.sync.RetryBackoff;
+import net.smelly.rolepooler.sync.RoleMutationDispatcher;
+import net.smelly.rolepooler.sync.RoutingTable;
+import net.smelly.rolepooler.sync.StartupGate;
+import net.smelly.rolepooler.sync.StripedExecutor;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.io.Writer;
-import java.lang.reflect.Type;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Luke Tonon
  */
 public final class ServerDataManager {
-	private static final Gson GSON = new GsonBuilder().registerTypeAdapter(PoolRoleMap.class, new PoolRoleMap.Codec()).registerTypeAdapter(UserPoolMap.class, new UserPoolMap.Codec()).setPrettyPrinting().create();
-	private static final ExecutorService EXECUTOR_SERVICE = Executors.newCachedThreadPool();
 	private final PoolRoleMap pooledRoleMap;
-	private final UserPoolMap userPoolMap;
-	private final Path rolePoolPath, userPoolPath;
+	private final PersistenceWriter persistenceWriter;
+	private final PoolStore store;
+	private final MutationOutbox outbox;
+	private final RoleMutationDispatcher dispatcher;
+	private final RoutingTable routingTable;
+	private final StartupGate startupGate;
+	private final StripedExecutor eventExecutor;
+	private final Reconciler reconciler;
+	@Nullable
+	private final EventRecorder eventRecorder;
+	private final MemberCacheMode memberCacheMode;
+	private final RolePoolerMetrics metrics = new RolePoolerMetrics();
+	private final Set<Integer> readyShards = new HashSet<>();
+	//Running resyncs by the guild they were started from, a network resync can only run on its own.
+	private final Map<Long, ResyncJob> resyncJobs = new HashMap<>();
+	private final int resyncParallelGuilds;
+	//Changes restored from the outbox that are waiting for their guild to load.
+	private final Map<Long, RestoredChanges> restoredChanges = new HashMap<>();
 
 	/**
 	 * Initializes and loads the manager.
 	 *
+	 * @param config           The config of the bot.
 	 * @param dataFileLocation The path of the folder to store the data files in.
 	 * @throws IOException If an exception occurs reading the data files.
 	 */
-	public ServerDataManager(String dataFileLocation) throws IOException {
-		this.rolePoolPath = Paths.get(dataFileLocation + "/pooled_roles.json");
-		this.userPoolPath = Paths.get(dataFileLocation + "/user_pools.json");
-		this.pooledRoleMap = GSON.fromJson(new String(Files.readAllBytes(this.rolePoolPath)), PoolRoleMap.class);
-		this.userPoolMap = GSON.fromJson(new String(Files.readAllBytes(this.userPoolPath)), UserPoolMap.class);
+	public ServerDataManager(RolePoolerConfig config, String dataFileLocation) throws IOException {
+		this.persistenceWriter = new PersistenceWriter(config.getFlushIntervalMillis(), (path, nanos, bytes) -> this.metrics.onPersistenceWrite(path.getFileName().toString(), nanos, bytes));
+		this.memberCacheMode = config.getMemberCacheMode();
+		this.resyncParallelGuilds = config.getResyncParallelGuilds();
+		Path dataFolder = Paths.get(dataFileLocation);
+		this.store = config.getStorageBackend() == PoolStore.Backend.H2 ? new H2PoolStore(config, dataFolder, this.persistenceWriter, this.metrics) : new FilePoolStore(config, dataFolder, this.persistenceWriter, this.metrics);
+		this.pooledRoleMap = this.store.getPooledRoles();
+		this.outbox = new MutationOutbox(dataFolder.resolve("role_mutations.outbox"), config.getOutboxFsyncPolicy(), config.getOutboxCompactBytes());
+		RetryBackoff retryBackoff = new RetryBackoff(config.getRestRetryBaseDelayMillis(), config.getRestRetryMaxDelayMillis(), config.getRestMaxAttempts());
+		this.dispatcher = new RoleMutationDispatcher(config.getRoleBatchWindowMillis(), config.getEchoTimeoutMillis(), config.getRestGuildConcurrency(), retryBackoff, this.outbox, this.metrics);
+		this.persistenceWriter.addFlushTask(this.outbox::maintain);
+		this.routingTable = new RoutingTable(this.pooledRoleMap);
+		this.startupGate = new StartupGate(this.pooledRoleMap.getGuildIds());
+		//Changes that weren't accepted before the bot last stopped are sent again once their guild loads, changes that were already applied get dropped then.
+		List<MutationOutbox.Entry> unsentChanges = this.outbox.getEntries();
+		if (!unsentChanges.isEmpty()) {
+			System.out.println("Requeueing " + unsentChanges.size() + " role changes from the outbox");
+			for (MutationOutbox.Entry entry : unsentChanges) {
+				this.restoredChanges.computeIfAbsent(entry.getGuildId(), RestoredChanges::new).entries.add(entry);
+			}
+			this.restoredChanges.values().forEach(changes -> this.startupGate.execute(changes.guildId, changes));
+		}
+		this.eventExecutor = new StripedExecutor("Role Pooler Event Worker", config.getEventThreads(), config.getEventQueueCapacity(), this.metrics);
+		this.metrics.gauge("pooled_users", "Users in at least one pool.", this.store::getUserCount);
+		this.metrics.gauge("pooled_roles", "Roles pooled across all guilds.", this.pooledRoleMap::size);
+		this.metrics.gauge("startup_buffered_events", "Events held back until their guild loads.", this.startupGate::getBufferedCount);
+		this.reconciler = new Reconciler(this, config.getReconcileIntervalMillis(), config.getReconcileRestBudget());
+		this.eventRecorder = config.isRecordEvents() ? new EventRecorder(dataFolder) : null;
+		if (this.eventRecorder != null) {
+			this.persistenceWriter.addFlushTask(this.eventRecorder::flush);
+		}
 		System.out.println("Server Data Manager Loaded!");
 	}
 
-	public void writePooledRoles() {
-		EXECUTOR_SERVICE.execute(() -> {
-			try {
-				Writer writer = Files.newBufferedWriter(this.rolePoolPath);
-				GSON.toJson(this.pooledRoleMap, writer);
-				writer.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		});
+	/**
+	 * Makes the next flush of the persistence writer save all the data in its most compact form.
+	 * <p>Changes are always saved as they happen, so this only needs calling after large changes such as a resync.</p>
+	 */
+	public void checkpoint() {
+		this.store.checkpoint();
 	}
 
-	public void writeUserPools() {
-		EXECUTOR_SERVICE.execute(() -> {
-			try {
-				Writer writer = Files.newBufferedWriter(this.userPoolPath);
-				GSON.toJson(this.userPoolMap, writer);
-				writer.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		});
+	/**
+	 * Sends any pending role changes, writes any unsaved data and stops the persistence writer.
+	 */
+	public void shutdown() {
+		this.reconciler.shutdown();
+		this.eventExecutor.shutdown();
+		if (this.eventRecorder != null) {
+			this.eventRecorder.close();
+		}
+		this.dispatcher.shutdown();
+		this.persistenceWriter.shutdown();
+		try {
+			this.outbox.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			this.store.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println("Server Data Manager Shut Down!");
+	}
+
+	/**
+	 * @return The dispatcher that all role changes go through.
+	 */
+	public RoleMutationDispatcher getDispatcher() {
+		return this.dispatcher;
+	}
+
+	/**
+	 * @return The executor that user events are handled on.
+	 */
+	public StripedExecutor getEventExecutor() {
+		return this.eventExecutor;
+	}
+
+	/**
+	 * @return The metrics of the bot's event, REST and persistence pipelines.
+	 */
+	public RolePoolerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return The reconciler that repairs pooled roles that drifted from the user pools.
+	 */
+	public Reconciler getReconciler() {
+		return this.reconciler;
+	}
+
+	/**
+	 * @return The recorder of the events the bot handles, or null if events aren't being recorded.
+	 */
+	@Nullable
+	public EventRecorder getEventRecorder() {
+		return this.eventRecorder;
+	}
+
+	public RoutingTable getRoutingTable() {
+		return this.routingTable;
+	}
+
+	public MemberCacheMode getMemberCacheMode() {
+		return this.memberCacheMode;
+	}
+
+	/**
+	 * @return The gate that holds back events for guilds that haven't loaded yet.
+	 */
+	public StartupGate getStartupGate() {
+		return this.startupGate;
+	}
+
+	/**
+	 * Handles an event about a user once its guild can be handled.
+	 * <p>The event is processed off the gateway thread, after every earlier event for the same user.</p>
+	 *
+	 * @see StartupGate
+	 * @see StripedExecutor
+	 */
+	public void handleUserEvent(long guildId, long userId, Runnable task) {
+		this.startupGate.execute(guildId, () -> this.eventExecutor.execute(userId, task));
+	}
+
+	/**
+	 * Adds a user to a pool without touching their roles.
+	 *
+	 * @return If the user wasn't already in the pool.
+	 */
+	public boolean addUserToPool(long userId, Pool pool) {
+		return this.store.addPoolToUser(userId, pool);
+	}
+
+	/**
+	 * Removes a user from a pool without touching their roles.
+	 *
+	 * @return If the user was in the pool.
+	 */
+	public boolean removeUserFromPool(long userId, Pool pool) {
+		return this.store.removePoolFromUser(userId, pool);
+	}
+
+	/**
+	 * Creates a pool and persists it.
+	 *
+	 * @param name A valid pool name.
+	 * @return The created pool, or null if there's already a pool with the name.
+	 * @see Pool#isValidName(String)
+	 */
+	@Nullable
+	public synchronized Pool createPool(String name) {
+		if (Pool.byName(name) != null) {
+			return null;
+		}
+		Pool pool = Pool.intern(name);
+		this.store.addPool(pool);
+		return pool;
+	}
+
+	/**
+	 * Deletes a pool, unpooling its roles and removing every user from it. Members keep the roles they have, they just stop being synced.
+	 *
+	 * @return The number of users that were in the pool, or -1 if the pool can't be deleted.
+	 */
+	public synchronized int deletePool(Pool pool) {
+		if (pool == Pool.BOOSTER || pool.isDeleted()) {
+			return -1;
+		}
+		long[] guildRolePairs = this.pooledRoleMap.getGuildRolePairs(pool);
+		for (int i = 0; i < guildRolePairs.length; i += 2) {
+			this.store.removeRole(pool, guildRolePairs[i], guildRolePairs[i + 1]);
+		}
+		Pool.delete(pool);
+		int users = this.store.removePool(pool);
+		this.routingTable.rebuild();
+		return users;
 	}
 
 	public boolean putRole(Pool pool, Role role) {
-		return this.pooledRoleMap.putRole(pool, role);
+		if (!pool.isDeleted() && this.store.putRole(pool, role.getGuild().getIdLong(), role.getIdLong())) {
+			this.routingTable.rebuild();
+			return true;
+		}
+		return false;
 	}
 
 	public boolean removeRole(Pool pool, Role role) {
-		return this.pooledRoleMap.removeRole(pool, role);
+		return this.removeRole(pool, role.getGuild().getIdLong(), role.getIdLong());
+	}
+
+	private boolean removeRole(Pool pool, long guildId, long roleId) {
+		if (this.store.removeRole(pool, guildId, roleId)) {
+			this.routingTable.rebuild();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called when a guild becomes available to the bot, either from joining it or from it loading.
+	 * <p>Pooled roles of the guild that were deleted while the bot couldn't see it get dropped before the guild is routed to.
+	 * Any events for the guild that arrived before it loaded are then replayed, after its members with pooled roles are cached if only those members are cached.</p>
+	 */
+	public void onGuildAvailable(Guild guild) {
+		long guildId = guild.getIdLong();
+		for (Pool pool : Pool.values()) {
+			long roleId = this.pooledRoleMap.getRole(pool, guildId);
+			if (roleId != 0L && guild.getRoleById(roleId) == null && this.removeRole(pool, guildId, roleId)) {
+				System.out.println("Dropped deleted role with ID " + roleId + " from the " + pool.getName() + " pool for guild " + guild);
+			}
+		}
+		this.routingTable.setGuildPresent(guildId, true);
+		if (this.memberCacheMode.cachesAllMembers()) {
+			this.startupGate.markReady(guildId);
+		} else {
+			//Loading the members once caches everyone with a pooled role, JDA keeps the cache in line with the roles after that.
+			guild.loadMembers().onSuccess(members -> this.startupGate.markReady(guildId)).onError(failure -> {
+				failure.printStackTrace();
+				this.startupGate.markReady(guildId);
+			});
+		}
+	}
+
+	/**
+	 * Called when a guild becomes unavailable because of a Discord outage, events for it are held back until it's available again.
+	 */
+	public void onGuildUnavailable(Guild guild) {
+		long guildId = guild.getIdLong();
+		this.startupGate.markUnavailable(guildId);
+		this.routingTable.setGuildPresent(guildId, false);
+	}
+
+	/**
+	 * Called when the bot leaves a guild, the guild's pooled roles are kept but no longer routed to and its unsent role changes are dropped from the outbox.
+	 */
+	public void onGuildLeave(Guild guild) {
+		long guildId = guild.getIdLong();
+		this.startupGate.remove(guildId);
+		this.outbox.acknowledgeGuild(guildId);
+		this.routingTable.setGuildPresent(guildId, false);
+	}
+
+	/**
+	 * Called when a shard has finished loading its guilds, the bot has started once every shard has.
+	 */
+	public void onShardReady(int shardId, int shardTotal) {
+		synchronized (this.readyShards) {
+			if (!this.readyShards.add(shardId) || this.readyShards.size() < shardTotal) {
+				return;
+			}
+		}
+		this.onStarted();
+	}
+
+	/**
+	 * Called once the bot has finished loading all of its guilds.
+	 */
+	public void onStarted() {
+		if (this.eventRecorder != null) {
+			this.eventRecorder.writeSnapshot(this);
+		}
+		this.startupGate.markStarted();
+		this.dropRestoredChanges();
+		this.reconciler.requestCheck();
+		System.out.println("Role Pooler Started!");
+	}
+
+	/**
+	 * Drops the restored changes of guilds that didn't load during startup, the bot may have been removed from them while it was stopped.
+	 * Their changes are acknowledged in the outbox so they aren't kept around or restored again.
+	 */
+	private void dropRestoredChanges() {
+		List<RestoredChanges> dropped = new ArrayList<>();
+		synchronized (this.restoredChanges) {
+			Iterator<RestoredChanges> iterator = this.restoredChanges.values().iterator();
+			while (iterator.hasNext()) {
+				RestoredChanges changes = iterator.next();
+				if (!this.startupGate.isReady(changes.guildId)) {
+					iterator.remove();
+					dropped.add(changes);
+				}
+			}
+		}
+		for (RestoredChanges changes : dropped) {
+			this.startupGate.cancel(changes.guildId, changes);
+			for (MutationOutbox.Entry entry : changes.entries) {
+				this.outbox.acknowledge(entry.getSequence());
+			}
+			this.metrics.onMutationsDropped(changes.guildId, changes.entries.size());
+			System.out.println("WARNING: Dropped " + changes.entries.size() + " role changes from the outbox for guild " + changes.guildId + " as it didn't load");
+		}
+	}
+
+	/**
+	 * Called when a role gets deleted, dropping it from its pool if it was pooled.
+	 */
+	public void onRoleDeleted(Role role) {
+		Pool pool = this.getPoolForRole(role);
+		if (pool != null && this.removeRole(pool, role.getGuild().getIdLong(), role.getIdLong())) {
+			System.out.println("Dropped deleted role with ID " + role.getIdLong() + " from the " + pool.getName() + " pool");
+		}
 	}
 
 	@Nullable
 	public Pool getPoolForRole(Role role) {
-		return this.pooledRoleMap.roleToPool.get(role);
+		return this.pooledRoleMap.getPoolForRole(role.getIdLong());
+	}
+
+	/**
+	 * Checks if a role event is the gateway echoing back a role change the bot made itself.
+	 * <p>Echoes shouldn't be pooled again, the change they come from was already made in every pooled guild.</p>
+	 *
+	 * @return If the event should be ignored.
+	 */
+	public boolean isEcho(Guild guild, User user, Role role, boolean added) {
+		return this.dispatcher.getEchoSuppressor().consume(guild.getIdLong(), user.getIdLong(), role.getIdLong(), added);
 	}
 
 	public boolean isUserInPool(User user, Pool pool) {
-		Set<Pool> pools = this.userPoolMap.get(user);
-		return pools != null && pools.contains(pool);
+		return this.store.isUserInPool(user.getIdLong(), pool);
+	}
+
+	/**
+	 * @return The pools a user is in.
+	 */
+	public PoolSet getPools(long userId) {
+		return this.store.getPools(userId);
+	}
+
+	/**
+	 * @return The number of users in a pool.
+	 */
+	public int getPoolSize(Pool pool) {
+		return this.store.getPoolSize(pool);
 	}
 
-	public EnumMap<Pool, Set<Role>> getRoles() {
-		EnumMap<Pool, Set<Role>> map = new EnumMap<>(Pool.class);
-		SelfUser bot = RolePooler.BOT.getSelfUser();
-		this.pooledRoleMap.forEach((key, guildRoleMap) -> {
+	/**
+	 * Gets a page of the users in a pool, in ascending order of their IDs.
+	 *
+	 * @see PoolStore#getUsersInPool(Pool, int, int)
+	 */
+	public long[] getUsersInPool(Pool pool, int offset, int limit) {
+		return this.store.getUsersInPool(pool, offset, limit);
+	}
+
+	/**
+	 * Calls a consumer with every user in at least one pool and their pools.
+	 *
+	 * @see PoolStore#forEachUser(PoolStore.UserConsumer)
+	 */
+	public void forEachPooledUser(PoolStore.UserConsumer consumer) {
+		this.store.forEachUser(consumer);
+	}
+
+	/**
+	 * @return The resolved roles of each pool that has any, in order of the pools' indices.
+	 */
+	public Map<Pool, Set<Role>> getRoles() {
+		Map<Pool, Set<Role>> map = new LinkedHashMap<>();
+		for (Pool pool : Pool.values()) {
 			Set<Role> roles = new HashSet<>();
-			guildRoleMap.forEach((guild, role) -> {
-				if (guild.isMember(bot)) {
+			long[] guildRolePairs = this.routingTable.getTargets(pool);
+			for (int i = 0; i < guildRolePairs.length; i += 2) {
+				Role role = resolveRole(guildRolePairs[i], guildRolePairs[i + 1]);
+				if (role != null) {
 					roles.add(role);
 				}
-			});
+			}
 			if (!roles.isEmpty()) {
-				map.put(key, roles);
+				map.put(pool, roles);
 			}
-		});
+		}
 		return map;
 	}
 
 	public void checkAndUpdateRolesForUser(Guild guild, User user) {
-		Set<Pool> pools = this.userPoolMap.get(user);
-		if (pools != null) {
-			for (Pool pool : pools) {
-				Map<Guild, Role> guildRoleMap = this.pooledRoleMap.get(pool);
-				if (guildRoleMap != null) {
-					Role pooledRole = guildRoleMap.get(guild);
-					if (pooledRole != null) {
-						guild.addRoleToMember(user.getIdLong(), pooledRole).queue();
-					}
-				}
+		long guildId = guild.getIdLong();
+		long[] roles = this.routingTable.getRoles(guildId);
+		this.store.getPools(user.getIdLong()).forEach(pool -> {
+			long roleId = pool.getIndex() < roles.length ? roles[pool.getIndex()] : 0L;
+			if (roleId != 0L) {
+				this.dispatcher.addRole(guildId, user.getIdLong(), roleId, RoleMutationDispatcher.Lane.JOIN);
 			}
-		}
+		});
 	}
 
-	public void updateRolesInPools(Guild guild) {
-		EnumMap<Pool, Role> poolRoleEnumMap = new EnumMap<>(Pool.class);
-		this.pooledRoleMap.forEach((pool, guildRoleMap) -> {
-			Role role = guildRoleMap.get(guild);
-			if (role != null) {
-				poolRoleEnumMap.put(pool, role);
+	/**
+	 * Updates the pools of every member of a guild from their roles in it and fixes their pooled roles in the other pooled guilds.
+	 *
+	 * @return A future completed with the summary of the resync.
+	 * @see ResyncEngine
+	 */
+	public CompletableFuture<ResyncSummary> updateRolesInPools(Guild guild) {
+		long start = System.nanoTime();
+		return new ResyncEngine(this, guild).start().whenComplete((summary, failure) -> this.metrics.onResync(System.nanoTime() - start));
+	}
+
+	/**
+	 * Starts a resync of some guilds in the background.
+	 * <p>Each guild can run one resync of its own at a time, while a network resync can only run when no other resync is.
+	 * Everything is saved in its most compact form once the resync is done.</p>
+	 *
+	 * @param originGuildId The ID of the guild the resync was started from, only it can cancel the resync.
+	 * @param guildIds      The IDs of the guilds to resync.
+	 * @param network       If the guilds get resynced together instead of each guild deciding the pools of its members.
+	 * @return The started job, or null if a resync that would conflict with it is already running.
+	 * @see ResyncJob
+	 */
+	@Nullable
+	public ResyncJob startResync(long originGuildId, long[] guildIds, boolean network) {
+		ResyncJob job = new ResyncJob(this, guildIds, network, this.resyncParallelGuilds);
+		synchronized (this.resyncJobs) {
+			boolean conflicts = network ? !this.resyncJobs.isEmpty() : this.resyncJobs.containsKey(originGuildId) || this.resyncJobs.values().stream().anyMatch(ResyncJob::isNetwork);
+			if (conflicts) {
+				return null;
+			}
+			this.resyncJobs.put(originGuildId, job);
+		}
+		long start = System.nanoTime();
+		job.getFuture().whenComplete((summary, failure) -> {
+			this.metrics.onResync(System.nanoTime() - start);
+			this.checkpoint();
+			synchronized (this.resyncJobs) {
+				this.resyncJobs.remove(originGuildId, job);
 			}
 		});
-		List<Member> members = guild.getMembers();
-		for (Member member : members) {
-			poolRoleEnumMap.forEach((pool, role) -> {
-				User user = member.getUser();
-				if (member.getRoles().contains(role)) {
-					this.userPoolMap.addPoolToUser(user, pool);
-					this.addPooledRolesToUser(pool, user, false);
-				} else {
-					this.userPoolMap.removePoolFromUser(user, pool);
-					this.removedPooledRolesFromUser(pool, user, false);
-				}
-			});
+		job.start();
+		return job;
+	}
+
+	/**
+	 * @return The resync started from a guild that's running, or null if there isn't one.
+	 */
+	@Nullable
+	public ResyncJob getResyncJob(long originGuildId) {
+		synchronized (this.resyncJobs) {
+			return this.resyncJobs.get(originGuildId);
 		}
 	}
 
 	/**
-	 * Gets all the {@link Role}s pooled to a {@link Pool} and adds them to a {@link User}.
+	 * @return If any resync is running.
+	 */
+	public boolean isResyncing() {
+		synchronized (this.resyncJobs) {
+			return !this.resyncJobs.isEmpty();
+		}
+	}
+
+	/**
+	 * @return The IDs of every guild with a pooled role.
+	 */
+	public long[] getPooledGuildIds() {
+		return this.pooledRoleMap.getGuildIds().stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Gets all the {@link Role}s pooled to a {@link Pool} and adds them to a {@link User}, as live changes.
 	 */
 	public void addPooledRolesToUser(Pool pool, User user, boolean shouldWrite) {
-		AtomicBoolean added = new AtomicBoolean(false);
-		this.pooledRoleMap.get(pool).forEach((guild, role) -> {
-			if (guild.isMember(RolePooler.BOT.getSelfUser()) && guild.isMember(user)) {
-				if (guild.getRoles().contains(role)) {
-					guild.addRoleToMember(user.getIdLong(), role).queue();
-					added.set(true);
-				}
-			}
-		});
-		if (shouldWrite && added.get() && this.userPoolMap.addPoolToUser(user, pool)) {
-			this.writeUserPools();
+		this.addPooledRolesToUser(pool, user, shouldWrite, RoleMutationDispatcher.Lane.LIVE);
+	}
+
+	/**
+	 * Gets all the {@link Role}s pooled to a {@link Pool} and adds them to a {@link User}.
+	 *
+	 * @param lane The lane to queue the role changes in.
+	 */
+	public void addPooledRolesToUser(Pool pool, User user, boolean shouldWrite, RoleMutationDispatcher.Lane lane) {
+		boolean added = false;
+		long[] targets = this.routingTable.getTargets(pool);
+		for (int i = 0; i < targets.length; i += 2) {
+			added |= this.queuePooledRole(targets[i], user, pool, targets[i + 1], true, lane);
+		}
+		if (shouldWrite && added) {
+			this.store.addPoolToUser(user.getIdLong(), pool);
 		}
 	}
 
 	/**
-	 * Gets all the {@link Role}s pooled to a {@link Pool} and removes them from a {@link User}.
+	 * Gets all the {@link Role}s pooled to a {@link Pool} and removes them from a {@link User}, as live changes.
 	 */
 	public void removedPooledRolesFromUser(Pool pool, User user, boolean shouldWrite) {
-		AtomicBoolean removed = new AtomicBoolean(false);
-		this.pooledRoleMap.get(pool).forEach((guild, role) -> {
-			if (guild.isMember(RolePooler.BOT.getSelfUser()) && guild.isMember(user)) {
-				if (guild.getRoles().contains(role)) {
-					guild.removeRoleFromMember(user.getIdLong(), role).queue();
-					removed.set(true);
-				}
-			}
-		});
-		if (shouldWrite && removed.get() && this.userPoolMap.removePoolFromUser(user, pool)) {
-			this.writeUserPools();
+		boolean removed = false;
+		long[] targets = this.routingTable.getTargets(pool);
+		for (int i = 0; i < targets.length; i += 2) {
+			removed |= this.queuePooledRole(targets[i], user, pool, targets[i + 1], false, RoleMutationDispatcher.Lane.LIVE);
+		}
+		if (shouldWrite && removed) {
+			this.store.removePoolFromUser(user.getIdLong(), pool);
 		}
 	}
 
-	private static class PoolRoleMap extends ConcurrentHashMap<Pool, Map<Guild, Role>> {
-		private final ConcurrentHashMap<Role, Pool> roleToPool = new ConcurrentHashMap<>();
-
-		private boolean putRole(Pool pool, Role role) {
-			if (this.computeIfAbsent(pool, key -> new HashMap<>()).putIfAbsent(role.getGuild(), role) != role) {
-				this.roleToPool.put(role, pool);
-				return true;
-			}
+	/**
+	 * Queues a pooled role to be added to or removed from a user in a guild, if the user is a member of it.
+	 * <p>When only members with pooled roles are cached, a member that isn't cached can't have the role so there's nothing to remove.
+	 * For an add the member gets fetched first, so guilds the user never joined aren't sent a change.
+	 * The add is then only queued if the user is still in the pool, since a later event for the user may have replaced it in the meantime.</p>
+	 *
+	 * @return If the user is, or could be, a member of the guild.
+	 */
+	private boolean queuePooledRole(long guildId, User user, Pool pool, long roleId, boolean add, RoleMutationDispatcher.Lane lane) {
+		Guild guild = resolveGuild(guildId);
+		if (guild == null) {
 			return false;
 		}
-
-		private boolean removeRole(Pool pool, Role role) {
-			if (this.computeIfAbsent(pool, key -> new HashMap<>()).remove(role.getGuild(), role)) {
-				this.roleToPool.remove(role, pool);
-				return true;
-			}
+		long userId = user.getIdLong();
+		if (guild.isMember(user)) {
+			this.queueRoleChange(guildId, userId, roleId, add, lane);
+			return true;
+		}
+		if (this.memberCacheMode.cachesAllMembers()) {
 			return false;
 		}
-
-		static class Codec implements JsonSerializer<PoolRoleMap>, JsonDeserializer<PoolRoleMap> {
-
-			@Override
-			public JsonElement serialize(PoolRoleMap pooledRoleMap, Type typeOfSrc, JsonSerializationContext context) {
-				JsonObject mapJson = new JsonObject();
-				for (Pool pool : Pool.values()) {
-					JsonArray entriesJson = new JsonArray();
-					pooledRoleMap.getOrDefault(pool, new HashMap<>()).forEach((guild, role) -> {
-						JsonObject entryJson = new JsonObject();
-						entryJson.addProperty("guildId", guild.getIdLong());
-						entryJson.addProperty("roleId", role.getIdLong());
-						entriesJson.add(entryJson);
-					});
-					mapJson.add(pool.name(), entriesJson);
+		if (add) {
+			guild.retrieveMemberById(userId).queue(member -> this.eventExecutor.execute(userId, () -> {
+				if (this.store.isUserInPool(userId, pool)) {
+					this.queueRoleChange(guildId, userId, roleId, true, lane);
 				}
-				return mapJson;
-			}
-
-			@Override
-			public PoolRoleMap deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-				PoolRoleMap pooledRoleMap = new PoolRoleMap();
-				JsonObject jsonObject = json.getAsJsonObject();
-				for (Pool pool : Pool.values()) {
-					JsonArray entriesJSON = jsonObject.getAsJsonArray(pool.name());
-					entriesJSON.forEach(jsonElement -> {
-						JsonObject entry = jsonElement.getAsJsonObject();
-						long id = entry.get("guildId").getAsLong();
-						Guild guild = RolePooler.BOT.getGuildById(id);
-						if (guild != null) {
-							long roleId = entry.get("roleId").getAsLong();
-							Role role = guild.getRoleById(roleId);
-							if (role != null) {
-								pooledRoleMap.putRole(pool, role);
-							} else {
-								System.out.println("WARNING: Couldn't find role with ID " + roleId + " for guild " + guild);
-							}
-						} else {
-							System.out.println("WARNING: Couldn't find guild with ID: " + id);
-						}
-					});
-				}
-				return pooledRoleMap;
-			}
-
+			}), ServerDataManager::logUnlessUnknownMember);
 		}
+		return true;
 	}
 
-	static class UserPoolMap extends ConcurrentHashMap<User, Set<Pool>> {
-		private static final Map<String, Pool> NAME_TO_POOL_MAP = new HashMap<>();
-
-		static {
-			for (Pool pool : Pool.values()) {
-				NAME_TO_POOL_MAP.put(pool.name(), pool);
-			}
-		}
-
-		private boolean addPoolToUser(User user, Pool pool) {
-			return this.computeIfAbsent(user, userKey -> Collections.synchronizedSet(EnumSet.noneOf(Pool.class))).add(pool);
+	private void queueRoleChange(long guildId, long userId, long roleId, boolean add, RoleMutationDispatcher.Lane lane) {
+		if (add) {
+			this.dispatcher.addRole(guildId, userId, roleId, lane);
+		} else {
+			this.dispatcher.removeRole(guildId, userId, roleId, lane);
 		}
+	}
 
-		private boolean removePoolFromUser(User user, Pool pool) {
-			return this.computeIfAbsent(user, userKey -> Collections.synchronizedSet(EnumSet.noneOf(Pool.class))).remove(pool);
+	/**
+	 * Prints a failure unless it's Discord saying a member isn't in a guild, which is expected when fetching members that may not be.
+	 */
+	public static void logUnlessUnknownMember(Throwable failure) {
+		if (!(failure instanceof ErrorResponseException) || ((ErrorResponseException) failure).getErrorResponse() != ErrorResponse.UNKNOWN_MEMBER) {
+			failure.printStackTrace();
 		}
+	}
 
-		static class Codec implements JsonSerializer<UserPoolMap>, JsonDeserializer<UserPoolMap> {
+	/**
+	 * Resolves a guild from whichever shard it's on.
+	 *
+	 * @return The guild, or null if no shard can see it.
+	 */
+	@Nullable
+	public static Guild resolveGuild(long guildId) {
+		return RolePooler.BOT.getGuildById(guildId);
+	}
 
-			@Override
-			public JsonElement serialize(UserPoolMap map, Type typeOfSrc, JsonSerializationContext context) {
-				JsonObject jsonObject = new JsonObject();
-				JsonArray userEntries = new JsonArray();
-				map.forEach((user, pools) -> {
-					if (!pools.isEmpty()) {
-						JsonObject entryJson = new JsonObject();
-						entryJson.addProperty("userId", user.getIdLong());
-						JsonArray poolsJson = new JsonArray();
-						pools.forEach(pool -> poolsJson.add(pool.name()));
-						entryJson.add("pools", poolsJson);
-						userEntries.add(entryJson);
-					}
-				});
-				jsonObject.add("entries", userEntries);
-				return jsonObject;
-			}
+	/**
+	 * Resolves a pooled role from the bot's cache, this is only done at the moment the role is needed.
+	 *
+	 * @return The role, or null if the bot can't see the guild or the role anymore.
+	 */
+	@Nullable
+	public static Role resolveRole(long guildId, long roleId) {
+		Guild guild = resolveGuild(guildId);
+		return guild != null ? guild.getRoleById(roleId) : null;
+	}
 
-			@Override
-			public UserPoolMap deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-				UserPoolMap userPoolMap = new UserPoolMap();
-				JsonArray entriesJson = json.getAsJsonObject().getAsJsonArray("entries");
-				entriesJson.forEach(jsonElement -> {
-					JsonObject entryJson = jsonElement.getAsJsonObject();
-					long id = entryJson.get("userId").getAsLong();
-					User user = RolePooler.BOT.getUserById(id);
-					if (user != null) {
-						JsonArray poolsJson = entryJson.getAsJsonArray("pools");
-						poolsJson.forEach(poolElement -> userPoolMap.addPoolToUser(user, NAME_TO_POOL_MAP.get(poolElement.getAsString())));
-					} else {
-						System.out.println("Couldn't find user with ID: " + id);
-					}
-				});
-				return userPoolMap;
-			}
+	/**
+	 * The changes restored from the outbox for a guild, sent once the guild can be handled unless they've been dropped by then.
+	 */
+	private final class RestoredChanges implements Runnable {
+		private final long guildId;
+		private final List<MutationOutbox.Entry> entries = new ArrayList<>();
 
+		private RestoredChanges(long guildId) {
+			this.guildId = guildId;
 		}
 
+		@Override
+		public void run() {
+			synchronized (ServerDataManager.this.restoredChanges) {
+				if (ServerDataManager.this.restoredChanges.remove(this.guildId) != this) {
+					return;
+				}
+			}
+			this.entries.forEach(ServerDataManager.this.dispatcher::restore);
+		}
 	}
 }
@@ -0,0 +1,45 @@
+package net.smelly.rolepooler.commands;
+
+import net.smelly.disparser.Command;
+import net.smelly.disparser.CommandContext;
+import net.smelly.disparser.arguments.java.StringArgument;
+import net.smelly.disparser.feedback.exceptions.DynamicCommandExceptionCreator;
+import net.smelly.disparser.feedback.exceptions.SimpleCommandExceptionCreator;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.RolePooler;
+
+/**
+ * Creates a new pool that roles can then be pooled to.
+ * <p>Pools are shared by every pooled server, so only the bot's owner and operators can create them.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class CreatePoolCommand extends Command {
+	private static final SimpleCommandExceptionCreator NOT_OPERATOR_EXCEPTION = SimpleCommandExceptionCreator.createInstance("Only the bot's owner and operators can create pools!");
+	private static final DynamicCommandExceptionCreator<String> INVALID_NAME_EXCEPTION = DynamicCommandExceptionCreator.createInstance(name -> {
+		return String.format("`%s` is not a valid pool name, names can only have up to 32 letters, numbers and underscores!", name);
+	});
+	private static final DynamicCommandExceptionCreator<String> ALREADY_EXISTS_EXCEPTION = DynamicCommandExceptionCreator.createInstance(name -> {
+		return String.format("There is already a pool named `%s`!", name);
+	});
+
+	public CreatePoolCommand() {
+		super("create_pool", StringArgument.get());
+	}
+
+	@Override
+	public void processCommand(CommandContext context) throws Exception {
+		if (!RolePooler.isOperator(context.getEvent().getAuthor())) {
+			throw NOT_OPERATOR_EXCEPTION.create();
+		}
+		String name = context.getParsedResult(0);
+		if (!Pool.isValidName(name)) {
+			throw INVALID_NAME_EXCEPTION.create(name);
+		}
+		Pool pool = RolePooler.DATA_MANAGER.createPool(name);
+		if (pool == null) {
+			throw ALREADY_EXISTS_EXCEPTION.create(name);
+		}
+		context.getFeedbackHandler().sendSuccess(String.format("Successfully created the `%s` pool!", pool.getName()));
+	}
+}
@@ -0,0 +1,38 @@
+package net.smelly.rolepooler.commands;
+
+import net.smelly.disparser.Command;
+import net.smelly.disparser.CommandContext;
+import net.smelly.disparser.feedback.exceptions.DynamicCommandExceptionCreator;
+import net.smelly.disparser.feedback.exceptions.SimpleCommandExceptionCreator;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.RolePooler;
+
+/**
+ * Deletes a pool, unpooling its roles and removing every user from it. Members keep the roles they already have.
+ * <p>The {@link Pool#BOOSTER} pool can't be deleted, and only the bot's owner and operators can delete pools.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class DeletePoolCommand extends Command {
+	private static final SimpleCommandExceptionCreator NOT_OPERATOR_EXCEPTION = SimpleCommandExceptionCreator.createInstance("Only the bot's owner and operators can delete pools!");
+	private static final DynamicCommandExceptionCreator<Pool> CANNOT_DELETE_EXCEPTION = DynamicCommandExceptionCreator.createInstance(pool -> {
+		return String.format("The `%s` pool can't be deleted!", pool.getName());
+	});
+
+	public DeletePoolCommand() {
+		super("delete_pool", PoolArgument.get());
+	}
+
+	@Override
+	public void processCommand(CommandContext context) throws Exception {
+		if (!RolePooler.isOperator(context.getEvent().getAuthor())) {
+			throw NOT_OPERATOR_EXCEPTION.create();
+		}
+		Pool pool = context.getParsedResult(0);
+		int users = RolePooler.DATA_MANAGER.deletePool(pool);
+		if (users < 0) {
+			throw CANNOT_DELETE_EXCEPTION.create(pool);
+		}
+		context.getFeedbackHandler().sendSuccess(String.format("Successfully deleted the `%1$s` pool, %2$d users were in it!", pool.getName(), users));
+	}
+}
@@ -1,69 +1,113 @@
 package net.smelly.rolepooler.commands;
 
 import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.entities.Role;
 import net.smelly.disparser.Command;
 import net.smelly.disparser.CommandContext;
 import net.smelly.disparser.arguments.EitherArgument;
-import net.smelly.disparser.arguments.java.EnumArgument;
+import net.smelly.disparser.arguments.java.IntegerArgument;
 import net.smelly.disparser.arguments.jda.RoleArgument;
-import net.smelly.disparser.feedback.FeedbackHandler;
+import net.smelly.disparser.feedback.exceptions.BiDynamicCommandExceptionCreator;
 import net.smelly.disparser.feedback.exceptions.CommandSyntaxException;
 import net.smelly.disparser.feedback.exceptions.DynamicCommandExceptionCreator;
 import net.smelly.rolepooler.Pool;
 import net.smelly.rolepooler.RolePooler;
 
-import java.util.EnumMap;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
+ * Lists a page of the pooled roles of every pool, or of a single pool.
+ * <p>Listings are built from the current roles each time, so renamed roles and guilds are always shown by their current names.
+ * A page holds few enough roles to always fit in an embed, and a pool with too many roles on a page for one embed field is split across several.</p>
+ *
  * @author Luke Tonon
  */
 public final class ListPoolsCommand extends Command {
 	private static final String EMBED_TITLE = "Pooled Roles:";
 	private static final int BLURPLE = 7506394;
+	//Role and guild names are at most 100 characters each, so a page of these can't pass the 6000 character or 25 field limits of an embed.
+	private static final int ROLES_PER_PAGE = 20;
 	private static final DynamicCommandExceptionCreator<Role> ROLE_NOT_IN_POOL_EXCEPTION = DynamicCommandExceptionCreator.createInstance(role -> {
 		return String.format("The role %s is not in a pool!", role.getAsMention());
 	});
+	private static final BiDynamicCommandExceptionCreator<Integer, Integer> PAGE_OUT_OF_RANGE_EXCEPTION = BiDynamicCommandExceptionCreator.createInstance(((page, pages) -> {
+		return String.format("Page %1$d doesn't exist, there are only %2$d pages!", page, pages);
+	}));
 
 	public ListPoolsCommand() {
-		super("pooled_roles", EitherArgument.of(EnumArgument.get(Pool.class), RoleArgument.get()).asOptional());
+		super("pooled_roles", EitherArgument.of(PoolArgument.get(), RoleArgument.get()).asOptional(), IntegerArgument.get().asOptional());
 	}
 
 	@Override
 	public void processCommand(CommandContext context) throws Exception {
-		EnumMap<Pool, Set<Role>> map = RolePooler.DATA_MANAGER.getRoles();
-		FeedbackHandler feedbackHandler = context.getFeedbackHandler();
-		if (map.isEmpty()) {
-			feedbackHandler.sendFeedback(this.createEmbedBuilder().appendDescription("There are no pooled roles.").build());
-		} else {
-			EitherArgument.Either<Pool, Role> either = context.getParsedResult(0);
-			EmbedBuilder embedBuilder = this.createEmbedBuilder();
-			if (either == null) {
-				map.forEach((pool, roles) -> embedBuilder.addField(pool.name(), this.createFormattedRoleList(roles), true));
-			} else {
-				Pool rolePool = this.getPoolForEither(either);
-				Set<Role> roles = map.get(rolePool);
-				if (roles == null || roles.isEmpty()) {
-					embedBuilder.appendDescription(String.format("There are no pooled roles for the `%s` pool", rolePool.name()));
-				} else {
-					embedBuilder.addField(rolePool.name(), this.createFormattedRoleList(roles), true);
+		EitherArgument.Either<Pool, Role> either = context.getParsedResult(0);
+		Integer pageArgument = context.getParsedResult(1);
+		context.getFeedbackHandler().sendFeedback(this.createEmbed(either == null ? null : this.getPoolForEither(either), pageArgument != null ? pageArgument : 1));
+	}
+
+	/**
+	 * Creates the listing of a page of a pool's roles, or of every pool's roles if the pool is null.
+	 */
+	private MessageEmbed createEmbed(@Nullable Pool pool, int page) throws CommandSyntaxException {
+		Map<Pool, Set<Role>> map = RolePooler.DATA_MANAGER.getRoles();
+		List<Pool> pools = new ArrayList<>();
+		List<Role> roles = new ArrayList<>();
+		map.forEach((rolePool, poolRoles) -> {
+			if (pool == null || rolePool == pool) {
+				List<Role> sortedRoles = new ArrayList<>(poolRoles);
+				sortedRoles.sort(Comparator.comparingLong((Role role) -> role.getGuild().getIdLong()).thenComparingLong(Role::getIdLong));
+				for (Role role : sortedRoles) {
+					pools.add(rolePool);
+					roles.add(role);
 				}
 			}
-			feedbackHandler.sendFeedback(embedBuilder.build());
+		});
+		int pages = Math.max(1, (roles.size() + ROLES_PER_PAGE - 1) / ROLES_PER_PAGE);
+		if (page < 1 || page > pages) {
+			throw PAGE_OUT_OF_RANGE_EXCEPTION.create(page, pages);
 		}
+		EmbedBuilder embedBuilder = new EmbedBuilder().setTitle(EMBED_TITLE).setColor(BLURPLE);
+		if (roles.isEmpty()) {
+			embedBuilder.appendDescription(pool == null ? "There are no pooled roles." : String.format("There are no pooled roles for the `%s` pool", pool.getName()));
+			return embedBuilder.build();
+		}
+		int start = (page - 1) * ROLES_PER_PAGE;
+		int end = Math.min(roles.size(), start + ROLES_PER_PAGE);
+		int fieldStart = start;
+		for (int i = start + 1; i <= end; i++) {
+			if (i == end || pools.get(i) != pools.get(fieldStart)) {
+				this.addRoleFields(embedBuilder, pools.get(fieldStart), roles.subList(fieldStart, i), fieldStart > 0 && pools.get(fieldStart - 1) == pools.get(fieldStart));
+				fieldStart = i;
+			}
+		}
+		embedBuilder.setFooter(String.format("Page %1$d/%2$d - %3$d roles", page, pages, roles.size()));
+		return embedBuilder.build();
 	}
 
-	private EmbedBuilder createEmbedBuilder() {
-		return new EmbedBuilder().setTitle(EMBED_TITLE).setColor(BLURPLE);
-	}
-
-	private String createFormattedRoleList(Set<Role> roles) {
+	/**
+	 * Adds a pool's roles as one field, or as several fields if the roles don't fit in one.
+	 *
+	 * @param continued If the pool's roles started on an earlier page.
+	 */
+	private void addRoleFields(EmbedBuilder embedBuilder, Pool pool, List<Role> roles, boolean continued) {
 		StringBuilder builder = new StringBuilder();
+		String name = continued ? pool.getName() + " (continued)" : pool.getName();
 		for (Role role : roles) {
-			builder.append(String.format("`%1$s(%2$s)`\n", role.getName(), role.getGuild().getName()));
+			String line = String.format("`%1$s(%2$s)`\n", role.getName(), role.getGuild().getName());
+			if (builder.length() + line.length() > MessageEmbed.VALUE_MAX_LENGTH) {
+				embedBuilder.addField(name, builder.toString(), true);
+				builder.setLength(0);
+				name = pool.getName() + " (continued)";
+			}
+			builder.append(line);
 		}
-		return builder.toString();
+		embedBuilder.addField(name, builder.toString(), true);
 	}
 
 	private Pool getPoolForEither(EitherArgument.Either<Pool, Role> poolRoleEither) throws CommandSyntaxException {
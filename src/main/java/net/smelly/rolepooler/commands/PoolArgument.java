@@ -0,0 +1,35 @@
+package net.smelly.rolepooler.commands;
+
+import net.smelly.disparser.Argument;
+import net.smelly.disparser.MessageReader;
+import net.smelly.disparser.ParsedArgument;
+import net.smelly.disparser.feedback.exceptions.DynamicCommandExceptionCreator;
+import net.smelly.rolepooler.Pool;
+
+/**
+ * An argument for the name of an existing {@link Pool}, names aren't case-sensitive.
+ *
+ * @author Luke Tonon
+ */
+public final class PoolArgument implements Argument<Pool> {
+	private static final PoolArgument INSTANCE = new PoolArgument();
+	private static final DynamicCommandExceptionCreator<String> UNKNOWN_POOL_EXCEPTION = DynamicCommandExceptionCreator.createInstance(name -> {
+		return String.format("There is no pool named `%s`!", name);
+	});
+
+	private PoolArgument() {}
+
+	public static PoolArgument get() {
+		return INSTANCE;
+	}
+
+	@Override
+	public ParsedArgument<Pool> parse(MessageReader reader) throws Exception {
+		String name = reader.nextArgument();
+		Pool pool = Pool.byName(name);
+		if (pool == null) {
+			throw UNKNOWN_POOL_EXCEPTION.create(name);
+		}
+		return ParsedArgument.parse(pool);
+	}
+}
@@ -0,0 +1,52 @@
+package net.smelly.rolepooler.commands;
+
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.smelly.disparser.Command;
+import net.smelly.disparser.CommandContext;
+import net.smelly.disparser.arguments.java.IntegerArgument;
+import net.smelly.disparser.feedback.exceptions.BiDynamicCommandExceptionCreator;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.RolePooler;
+import net.smelly.rolepooler.ServerDataManager;
+
+/**
+ * Lists a page of the users in a pool, along with how many users the pool has.
+ *
+ * @author Luke Tonon
+ */
+public final class PoolMembersCommand extends Command {
+	private static final int USERS_PER_PAGE = 25;
+	private static final int BLURPLE = 7506394;
+	private static final BiDynamicCommandExceptionCreator<Integer, Integer> PAGE_OUT_OF_RANGE_EXCEPTION = BiDynamicCommandExceptionCreator.createInstance(((page, pages) -> {
+		return String.format("Page %1$d doesn't exist, there are only %2$d pages!", page, pages);
+	}));
+
+	public PoolMembersCommand() {
+		super("pool_members", PoolArgument.get(), IntegerArgument.get().asOptional());
+	}
+
+	@Override
+	public void processCommand(CommandContext context) throws Exception {
+		ServerDataManager manager = RolePooler.DATA_MANAGER;
+		Pool pool = context.getParsedResult(0);
+		Integer pageArgument = context.getParsedResult(1);
+		int page = pageArgument != null ? pageArgument : 1;
+		int size = manager.getPoolSize(pool);
+		int pages = Math.max(1, (size + USERS_PER_PAGE - 1) / USERS_PER_PAGE);
+		if (page < 1 || page > pages) {
+			throw PAGE_OUT_OF_RANGE_EXCEPTION.create(page, pages);
+		}
+		EmbedBuilder embedBuilder = new EmbedBuilder().setTitle(String.format("Users in the `%s` pool:", pool.getName())).setColor(BLURPLE);
+		if (size == 0) {
+			embedBuilder.appendDescription("There are no users in this pool.");
+		} else {
+			StringBuilder builder = new StringBuilder();
+			for (long userId : manager.getUsersInPool(pool, (page - 1) * USERS_PER_PAGE, USERS_PER_PAGE)) {
+				builder.append(String.format("<@%1$s> `%1$s`\n", Long.toUnsignedString(userId)));
+			}
+			embedBuilder.appendDescription(builder);
+		}
+		embedBuilder.setFooter(String.format("Page %1$d/%2$d - %3$d users", page, pages, size));
+		context.getFeedbackHandler().sendFeedback(embedBuilder.build());
+	}
+}
@@ -15,17 +15,17 @@ import net.smelly.rolepooler.RolePooler;
  */
 public final class PoolRoleCommand extends Command {
 	private static final BiDynamicCommandExceptionCreator<Role, Pool> ALREADY_IN_POOL_EXCEPTION = BiDynamicCommandExceptionCreator.createInstance(((role, pool) -> {
-		return String.format("%1$s role is already in the `%2$s` pool!", role.getAsMention(), pool.name());
+		return String.format("%1$s role is already in the `%2$s` pool!", role.getAsMention(), pool.getName());
 	}));
 	private static final BiDynamicCommandExceptionCreator<Role, Pool> ALREADY_IN_OTHER_POOL_EXCEPTION = BiDynamicCommandExceptionCreator.createInstance(((role, pool) -> {
-		return String.format("%1$s role is already in another pool (`%2$s`)!", role.getAsMention(), pool.name());
+		return String.format("%1$s role is already in another pool (`%2$s`)!", role.getAsMention(), pool.getName());
 	}));
 	private static final BiDynamicCommandExceptionCreator<Role, Pool> NOT_IN_POOL_EXCEPTION = BiDynamicCommandExceptionCreator.createInstance(((role, pool) -> {
-		return String.format("%1$s role is not in the `%2$s` pool!", role.getAsMention(), pool.name());
+		return String.format("%1$s role is not in the `%2$s` pool!", role.getAsMention(), pool.getName());
 	}));
 
 	public PoolRoleCommand() {
-		super("pool", EnumArgument.get(Action.class), EnumArgument.get(Pool.class), RoleArgument.get());
+		super("pool", EnumArgument.get(Action.class), PoolArgument.get(), RoleArgument.get());
 	}
 
 	@Override
@@ -39,15 +39,13 @@ public final class PoolRoleCommand extends Command {
 			if (rolePool != null && rolePool != pool) {
 				throw ALREADY_IN_OTHER_POOL_EXCEPTION.create(role, rolePool);
 			} else if (RolePooler.DATA_MANAGER.putRole(pool, role)) {
-				RolePooler.DATA_MANAGER.writePooledRoles();
-				handler.sendSuccess(String.format("Successfully added %1$s role to the `%2$s` pool!", role.getAsMention(), pool.name()));
+				handler.sendSuccess(String.format("Successfully added %1$s role to the `%2$s` pool!", role.getAsMention(), pool.getName()));
 			} else {
 				throw ALREADY_IN_POOL_EXCEPTION.create(role, pool);
 			}
 		} else {
 			if (RolePooler.DATA_MANAGER.removeRole(pool, role)) {
-				RolePooler.DATA_MANAGER.writePooledRoles();
-				handler.sendSuccess(String.format("Successfully removed %1$s role from `%2$s` pool!", role.getAsMention(), pool.name()));
+				handler.sendSuccess(String.format("Successfully removed %1$s role from `%2$s` pool!", role.getAsMention(), pool.getName()));
 			} else {
 				throw NOT_IN_POOL_EXCEPTION.create(role, pool);
 			}
@@ -9,8 +9,15 @@ import net.smelly.disparser.annotations.Permissions;
 public final class RPCommands {
 	@Permissions(Permission.ADMINISTRATOR)
 	private static final PoolRoleCommand POOL_ROLE_COMMAND = new PoolRoleCommand();
+	//Pools are shared by every pooled server, so these check for the bot's owner and operators instead of a server permission.
+	private static final CreatePoolCommand CREATE_POOL_COMMAND = new CreatePoolCommand();
+	private static final DeletePoolCommand DELETE_POOL_COMMAND = new DeletePoolCommand();
 	@Permissions(Permission.MANAGE_ROLES)
 	private static final ListPoolsCommand LIST_POOLS_COMMAND = new ListPoolsCommand();
 	@Permissions(Permission.ADMINISTRATOR)
 	private static final ResyncUserRolesCommand RESYNC_COMMAND = new ResyncUserRolesCommand();
+	@Permissions(Permission.MANAGE_ROLES)
+	private static final PoolMembersCommand POOL_MEMBERS_COMMAND = new PoolMembersCommand();
+	@Permissions(Permission.MANAGE_ROLES)
+	private static final StatsCommand STATS_COMMAND = new StatsCommand();
 }
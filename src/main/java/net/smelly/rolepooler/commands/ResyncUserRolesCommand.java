@@ -1,31 +1,120 @@
 package net.smelly.rolepooler.commands;
 
 import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.smelly.disparser.Command;
 import net.smelly.disparser.CommandContext;
+import net.smelly.disparser.arguments.java.EnumArgument;
+import net.smelly.disparser.feedback.exceptions.SimpleCommandExceptionCreator;
 import net.smelly.rolepooler.RolePooler;
 import net.smelly.rolepooler.ServerDataManager;
+import net.smelly.rolepooler.sync.ResyncEngine;
+import net.smelly.rolepooler.sync.ResyncJob;
+import net.smelly.rolepooler.sync.ResyncSummary;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Updates the user pool map for all users in a server. This command may take a decent time to fully process.
+ * Updates the user pool map for all users in a server, or in every pooled server with `all`. This command may take a decent time to fully process.
  * <p>An example of usage for this command is fixing issues after pooling roles after they've already been on users.</p>
+ * <p>The resync runs in the background and its progress message is edited as it goes, `cancel` stops the resync started from the same server.
+ * Servers can resync themselves at the same time, but a resync of every server only runs when no other resync is and can only be started by the bot's owner and operators.
+ * Only pooled roles that are actually out of sync get changed, the command reports how many roles that was.</p>
  *
  * @author Luke Tonon
  */
 public final class ResyncUserRolesCommand extends Command {
-	private static final MessageEmbed MESSAGE = new EmbedBuilder().setColor(7506394).setTitle("Resyncing roles for users in this server").appendDescription("This may take some time to complete...").setFooter("It's recommended you don't run this command frequently.").build();
+	private static final SimpleCommandExceptionCreator ALREADY_RUNNING_EXCEPTION = SimpleCommandExceptionCreator.createInstance("A resync is already running, use `resync_roles cancel` in the server it was started from to stop it!");
+	private static final SimpleCommandExceptionCreator NOT_OPERATOR_EXCEPTION = SimpleCommandExceptionCreator.createInstance("Only the bot's owner and operators can resync every server!");
+	private static final SimpleCommandExceptionCreator NOT_RUNNING_EXCEPTION = SimpleCommandExceptionCreator.createInstance("There is no resync running that was started from this server!");
+	private static final long PROGRESS_INTERVAL_SECONDS = 5L;
+	//Progress edits for a message all happen on this one thread, so the final edit can never be overtaken by a progress edit.
+	private static final ScheduledExecutorService PROGRESS_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Role Pooler Resync Progress");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final int BLURPLE = 7506394;
+	private static final int GREEN = 4437377;
+	private static final int RED = 15746887;
 
 	public ResyncUserRolesCommand() {
-		super("resync_roles");
+		super("resync_roles", EnumArgument.get(Mode.class).asOptional());
 	}
 
 	@Override
 	public void processCommand(CommandContext context) throws Exception {
 		ServerDataManager manager = RolePooler.DATA_MANAGER;
-		manager.updateRolesInPools(context.getEvent().getGuild());
-		manager.writeUserPools();
-		manager.writePooledRoles();
-		context.getFeedbackHandler().sendFeedback(MESSAGE);
+		Mode mode = context.getParsedResult(0);
+		long guildId = context.getEvent().getGuild().getIdLong();
+		if (mode == Mode.CANCEL) {
+			ResyncJob job = manager.getResyncJob(guildId);
+			if (job == null) {
+				throw NOT_RUNNING_EXCEPTION.create();
+			}
+			job.cancel();
+			context.getFeedbackHandler().sendSuccess("Cancelled the running resync, role changes it already queued will still be made.");
+			return;
+		}
+		boolean network = mode == Mode.ALL;
+		if (network && !RolePooler.isOperator(context.getEvent().getAuthor())) {
+			throw NOT_OPERATOR_EXCEPTION.create();
+		}
+		long[] guildIds = network ? manager.getPooledGuildIds() : new long[] {guildId};
+		ResyncJob job = manager.startResync(guildId, guildIds, network);
+		if (job == null) {
+			throw ALREADY_RUNNING_EXCEPTION.create();
+		}
+		context.getEvent().getChannel().sendMessage(createEmbed(job)).queue(message -> trackProgress(job, message));
+	}
+
+	private static void trackProgress(ResyncJob job, Message message) {
+		ScheduledFuture<?> updates = PROGRESS_EXECUTOR.scheduleWithFixedDelay(() -> {
+			if (!job.isDone()) {
+				message.editMessage(createEmbed(job)).queue();
+			}
+		}, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		job.getFuture().whenComplete((summary, failure) -> PROGRESS_EXECUTOR.execute(() -> {
+			updates.cancel(false);
+			message.editMessage(createEmbed(job)).queue();
+		}));
+	}
+
+	private static MessageEmbed createEmbed(ResyncJob job) {
+		ResyncSummary summary = job.getSummary();
+		String scope = job.isNetwork() ? "all pooled servers" : "this server";
+		EmbedBuilder embedBuilder = new EmbedBuilder();
+		if (!job.isDone()) {
+			embedBuilder.setColor(BLURPLE).setTitle("Resyncing roles for users in " + scope + "...");
+		} else if (job.isCancelled()) {
+			embedBuilder.setColor(RED).setTitle("Cancelled resyncing roles for users in " + scope);
+		} else {
+			embedBuilder.setColor(GREEN).setTitle("Resynced roles for users in " + scope);
+		}
+		embedBuilder.addField("Servers Done", job.getGuildsDone() + "/" + job.getGuildsTotal(), true)
+				.addField("Members Scanned", String.valueOf(summary.getMembersScanned()), true)
+				.addField("Roles Added", String.valueOf(summary.getRolesAdded()), true)
+				.addField("Roles Removed", String.valueOf(summary.getRolesRemoved()), true)
+				.addField("Already In Sync", String.valueOf(summary.getSkipped()), true)
+				.addField("Time Taken", TimeUnit.MILLISECONDS.toSeconds(job.getElapsedMillis()) + "s", true);
+		int guildsFailed = job.getGuildsFailed();
+		if (guildsFailed > 0) {
+			embedBuilder.addField("Servers Failed", String.valueOf(guildsFailed), true);
+		}
+		if (job.isNetwork() && !job.isDone()) {
+			embedBuilder.setFooter(job.getPass() == ResyncEngine.Pass.COLLECT ? "Collecting pooled roles from every server." : "Fixing pooled roles in every server.");
+		} else {
+			embedBuilder.setFooter("It's recommended you don't run this command frequently.");
+		}
+		return embedBuilder.build();
+	}
+
+	enum Mode {
+		ALL,
+		CANCEL
 	}
 }
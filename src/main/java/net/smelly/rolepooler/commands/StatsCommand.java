@@ -0,0 +1,99 @@
+package net.smelly.rolepooler.commands;
+
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.smelly.disparser.Command;
+import net.smelly.disparser.CommandContext;
+import net.smelly.disparser.arguments.java.IntegerArgument;
+import net.smelly.disparser.feedback.exceptions.BiDynamicCommandExceptionCreator;
+import net.smelly.rolepooler.RolePooler;
+import net.smelly.rolepooler.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the same figures as the metrics endpoint, with per-label values listed under each metric's total.
+ * <p>Each metric gets a field, and the fields are split into pages that stay within Discord's limits of 25 fields and 6000 characters per embed.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class StatsCommand extends Command {
+	private static final int BLURPLE = 7506394;
+	private static final int MAX_LABELS_SHOWN = 10;
+	private static final String TITLE = "Role Pooler Stats";
+	private static final int MAX_FIELDS = 25;
+	//Leaves room in the 6000 character limit for the title and the page footer.
+	private static final int MAX_FIELD_CHARACTERS = MessageEmbed.EMBED_MAX_LENGTH_BOT - 100;
+	private static final BiDynamicCommandExceptionCreator<Integer, Integer> PAGE_OUT_OF_RANGE_EXCEPTION = BiDynamicCommandExceptionCreator.createInstance(((page, pages) -> {
+		return String.format("Page %1$d doesn't exist, there are only %2$d pages!", page, pages);
+	}));
+
+	public StatsCommand() {
+		super("stats", IntegerArgument.get().asOptional());
+	}
+
+	@Override
+	public void processCommand(CommandContext context) throws Exception {
+		Integer pageArgument = context.getParsedResult(0);
+		int page = pageArgument != null ? pageArgument : 1;
+		List<List<MessageEmbed.Field>> pages = new ArrayList<>();
+		List<MessageEmbed.Field> fields = new ArrayList<>();
+		int characters = 0;
+		for (MetricsRegistry.Family<?> family : RolePooler.DATA_MANAGER.getMetrics().getRegistry().getFamilies()) {
+			MessageEmbed.Field field = new MessageEmbed.Field(family.getHelp(), this.formatFamily(family), family.getLabelName() == null);
+			int length = field.getName().length() + field.getValue().length();
+			if (fields.size() == MAX_FIELDS || characters + length > MAX_FIELD_CHARACTERS) {
+				pages.add(fields);
+				fields = new ArrayList<>();
+				characters = 0;
+			}
+			fields.add(field);
+			characters += length;
+		}
+		pages.add(fields);
+		if (page < 1 || page > pages.size()) {
+			throw PAGE_OUT_OF_RANGE_EXCEPTION.create(page, pages.size());
+		}
+		EmbedBuilder embedBuilder = new EmbedBuilder().setTitle(TITLE).setColor(BLURPLE);
+		pages.get(page - 1).forEach(embedBuilder::addField);
+		embedBuilder.setFooter(String.format("Page %1$d/%2$d", page, pages.size()));
+		context.getFeedbackHandler().sendFeedback(embedBuilder.build());
+	}
+
+	private String formatFamily(MetricsRegistry.Family<?> family) {
+		Map<String, ? extends MetricsRegistry.Metric> metrics = family.getMetrics();
+		if (family.getLabelName() == null) {
+			return metrics.isEmpty() ? "0" : this.formatMetric(metrics.values().iterator().next());
+		}
+		StringBuilder builder = new StringBuilder();
+		if (family.getType() != MetricsRegistry.Type.SUMMARY) {
+			builder.append("Total: `").append(family.getTotal()).append("`\n");
+		}
+		int shown = 0;
+		for (Map.Entry<String, ? extends MetricsRegistry.Metric> entry : metrics.entrySet()) {
+			if (shown++ == MAX_LABELS_SHOWN) {
+				builder.append(String.format("...and %d more", metrics.size() - MAX_LABELS_SHOWN));
+				break;
+			}
+			String line = String.format("%s: %s\n", entry.getKey(), this.formatMetric(entry.getValue()));
+			if (builder.length() + line.length() > MessageEmbed.VALUE_MAX_LENGTH - 32) {
+				builder.append(String.format("...and %d more", metrics.size() - shown + 1));
+				break;
+			}
+			builder.append(line);
+		}
+		return builder.length() == 0 ? "None" : builder.toString();
+	}
+
+	private String formatMetric(MetricsRegistry.Metric metric) {
+		if (metric instanceof MetricsRegistry.Timer) {
+			MetricsRegistry.Timer timer = (MetricsRegistry.Timer) metric;
+			long count = timer.getValue();
+			double averageMillis = count > 0 ? timer.getTotalSeconds() * 1000.0D / count : 0.0D;
+			return String.format("`%d` (avg `%.1fms`, max `%.1fms`)", count, averageMillis, timer.getMaxSeconds() * 1000.0D);
+		}
+		return "`" + metric.getValue() + "`";
+	}
+}
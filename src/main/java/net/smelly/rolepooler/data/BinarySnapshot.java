@@ -0,0 +1,246 @@
+package net.smelly.rolepooler.data;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary format for the {@link UserPoolMap} and {@link PoolRoleMap} snapshots, read through a memory-mapped file.
+ * <p>A snapshot starts with a header made of a magic number, the format version, the kind of snapshot, the journal sequence it was taken at,
+ * the length of the body and a CRC32 checksum of the body, all fixed size.</p>
+ * <p>The body starts with a pool table, the number of pool indices as a varint followed by the name at each {@link Pool#getIndex()} as a varint byte length and its UTF-8 bytes.
+ * Indices without a pool, such as those of deleted pools, get an empty name. Pool bitsets refer to pools by their position in this table so snapshots stay readable as pools change.
+ * A user pools body then has the number of users as a varint, followed by each user in ID order as a varint delta from the previous user's ID,
+ * the number of words of their {@link PoolSet} as a varint and each word as a varint. Version 1 snapshots stored a single word without the count, they are still read.
+ * A pooled roles body instead has an entry list for each index of the pool table in order, the number of entries as a varint followed by each entry's guild and role ID as fixed 8 byte longs.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class BinarySnapshot {
+	private static final int MAGIC = 0x52505353;
+	private static final int VERSION = 2;
+	private static final int HEADER_LENGTH = 4 + 4 + 1 + 8 + 4 + 4;
+	private static final byte USER_POOLS = 0, POOLED_ROLES = 1;
+
+	private BinarySnapshot() {}
+
+	/**
+	 * Writes a user pools snapshot, the map shouldn't be changed while it's being written so a {@link UserPoolMap#copy()} should be passed in.
+	 */
+	public static void writeUserPools(OutputStream stream, UserPoolMap snapshot) throws IOException {
+		long[] userIds = snapshot.getSortedUserIds();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(16 + userIds.length * 8);
+		writePoolTable(body);
+		writeVarLong(body, userIds.length);
+		long previousId = 0L;
+		for (long userId : userIds) {
+			writeVarLong(body, userId - previousId);
+			PoolSet pools = snapshot.getPools(userId);
+			writeVarLong(body, pools.getWordCount());
+			for (int i = 0; i < pools.getWordCount(); i++) {
+				writeVarLong(body, pools.getWord(i));
+			}
+			previousId = userId;
+		}
+		write(stream, USER_POOLS, snapshot.getSequence(), body);
+	}
+
+	public static UserPoolMap readUserPools(Path path) throws IOException {
+		ByteBuffer body = map(path, USER_POOLS);
+		UserPoolMap map = new UserPoolMap();
+		try {
+			int version = body.getInt(4);
+			map.setSequence(body.getLong(9));
+			body.position(HEADER_LENGTH);
+			Pool[] pools = readPoolTable(body, false);
+			long count = readVarLong(body);
+			long userId = 0L;
+			for (long i = 0; i < count; i++) {
+				userId += readVarLong(body);
+				PoolSet userPools = PoolSet.EMPTY;
+				int wordCount = version == 1 ? 1 : (int) readVarLong(body);
+				for (int word = 0; word < wordCount; word++) {
+					userPools = remapWord(userPools, word, readVarLong(body), pools);
+				}
+				if (!userPools.isEmpty()) {
+					map.putPools(userId, userPools);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated user pools snapshot " + path, e);
+		}
+		return map;
+	}
+
+	public static void writePooledRoles(OutputStream stream, PoolRoleMap map) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		writePoolTable(body);
+		DataOutputStream dataBody = new DataOutputStream(body);
+		for (int index = 0; index < Pool.getIndexLimit(); index++) {
+			Pool pool = Pool.byIndex(index);
+			long[] guildRolePairs = pool != null ? map.getGuildRolePairs(pool) : new long[0];
+			writeVarLong(body, guildRolePairs.length >> 1);
+			for (long id : guildRolePairs) {
+				dataBody.writeLong(id);
+			}
+		}
+		write(stream, POOLED_ROLES, 0L, body);
+	}
+
+	public static PoolRoleMap readPooledRoles(Path path) throws IOException {
+		ByteBuffer body = map(path, POOLED_ROLES);
+		PoolRoleMap.Builder builder = new PoolRoleMap.Builder();
+		try {
+			body.position(HEADER_LENGTH);
+			for (Pool pool : readPoolTable(body, true)) {
+				long count = readVarLong(body);
+				for (long i = 0; i < count; i++) {
+					long guildId = body.getLong();
+					long roleId = body.getLong();
+					if (pool != null) {
+						builder.putRole(pool, guildId, roleId);
+					}
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated pooled roles snapshot " + path, e);
+		}
+		return builder.build();
+	}
+
+	private static void write(OutputStream stream, byte kind, long sequence, ByteArrayOutputStream body) throws IOException {
+		byte[] bytes = body.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		DataOutputStream dataStream = new DataOutputStream(stream);
+		dataStream.writeInt(MAGIC);
+		dataStream.writeInt(VERSION);
+		dataStream.writeByte(kind);
+		dataStream.writeLong(sequence);
+		dataStream.writeInt(bytes.length);
+		dataStream.writeInt((int) crc.getValue());
+		dataStream.write(bytes);
+		dataStream.flush();
+	}
+
+	/**
+	 * Maps a snapshot file into memory and checks its header and checksum.
+	 *
+	 * @return The mapped file.
+	 */
+	private static ByteBuffer map(Path path, byte kind) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a snapshot file " + path);
+		}
+		int version = buffer.getInt(4);
+		if (version != 1 && version != VERSION) {
+			throw new IOException("Unsupported snapshot version " + version + " for " + path);
+		}
+		if (buffer.get(8) != kind) {
+			throw new IOException("Wrong kind of snapshot for " + path);
+		}
+		int length = buffer.getInt(17);
+		if (length < 0 || HEADER_LENGTH + length > buffer.limit()) {
+			throw new IOException("Truncated snapshot " + path);
+		}
+		ByteBuffer body = buffer.duplicate();
+		body.position(HEADER_LENGTH);
+		body.limit(HEADER_LENGTH + length);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != buffer.getInt(21)) {
+			throw new IOException("Checksum mismatch for snapshot " + path);
+		}
+		buffer.limit(HEADER_LENGTH + length);
+		return buffer;
+	}
+
+	/**
+	 * Writes the name of the pool at each index, pooled roles are written for the same indices so the table can't change in between.
+	 */
+	private static void writePoolTable(ByteArrayOutputStream body) {
+		int indexLimit = Pool.getIndexLimit();
+		writeVarLong(body, indexLimit);
+		for (int index = 0; index < indexLimit; index++) {
+			Pool pool = Pool.byIndex(index);
+			byte[] name = (pool != null ? pool.getName() : "").getBytes(StandardCharsets.UTF_8);
+			writeVarLong(body, name.length);
+			body.write(name, 0, name.length);
+		}
+	}
+
+	/**
+	 * @param intern If pools in the table should be created, pooled roles snapshots are where pools are kept between restarts.
+	 * @return The pools in the snapshot's pool table, with null for deleted pools and pools that no longer exist.
+	 */
+	private static Pool[] readPoolTable(ByteBuffer body, boolean intern) {
+		Pool[] pools = new Pool[(int) readVarLong(body)];
+		for (int i = 0; i < pools.length; i++) {
+			byte[] name = new byte[(int) readVarLong(body)];
+			body.get(name);
+			String poolName = new String(name, StandardCharsets.UTF_8);
+			if (poolName.isEmpty()) {
+				continue;
+			}
+			if (intern && Pool.isValidName(poolName)) {
+				pools[i] = Pool.intern(poolName);
+			} else if (!intern) {
+				pools[i] = Pool.byName(poolName);
+			}
+			if (pools[i] == null) {
+				System.out.println("WARNING: Unknown pool " + poolName + " in snapshot");
+			}
+		}
+		return pools;
+	}
+
+	/**
+	 * Adds the pools of a word of a snapshot's pool bitset to a set of the current pools, using the snapshot's pool table.
+	 */
+	private static PoolSet remapWord(PoolSet set, int word, long bits, Pool[] pools) {
+		while (bits != 0L) {
+			int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+			if (index < pools.length && pools[index] != null) {
+				set = set.with(pools[index]);
+			}
+			bits &= bits - 1L;
+		}
+		return set;
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream stream, long value) {
+		while ((value & ~0x7FL) != 0L) {
+			stream.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		stream.write((int) value);
+	}
+
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0L;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+}
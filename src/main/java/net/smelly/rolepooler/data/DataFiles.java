@@ -0,0 +1,101 @@
+package net.smelly.rolepooler.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import net.smelly.rolepooler.Pool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Locates, reads and writes the data files in the data folder, in either {@link SnapshotFormat}.
+ * <p>When a data file exists in both formats, the most recent one is used. For the user pools that's the one with the higher journal sequence,
+ * so switching formats never loses changes that were already compacted out of the journal.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class DataFiles {
+	public static final Gson GSON = new GsonBuilder().registerTypeAdapter(PoolRoleMap.class, new PoolRoleMap.Codec()).registerTypeAdapter(UserPoolMap.class, new UserPoolMap.Codec()).setPrettyPrinting().create();
+	private static final String POOLED_ROLES = "pooled_roles", USER_POOLS = "user_pools";
+	private final Path folder;
+
+	/**
+	 * @param folder The path of the folder the data files are in.
+	 */
+	public DataFiles(Path folder) {
+		this.folder = folder;
+	}
+
+	public Path getPooledRolesPath(SnapshotFormat format) {
+		return this.folder.resolve(POOLED_ROLES + format.getExtension());
+	}
+
+	public Path getUserPoolsPath(SnapshotFormat format) {
+		return this.folder.resolve(USER_POOLS + format.getExtension());
+	}
+
+	public Path getJournalPath() {
+		return this.folder.resolve(USER_POOLS + ".journal");
+	}
+
+	/**
+	 * Reads the most recently written pooled roles file, or an empty map if there is none.
+	 * <p>Reading the file creates the pools in it, when there is no file the {@link Pool#DEFAULT_POOL_NAME default pool} is created for the new data.</p>
+	 *
+	 * @throws IOException If an exception occurs reading the file.
+	 */
+	public PoolRoleMap readPooledRoles() throws IOException {
+		Path jsonPath = this.getPooledRolesPath(SnapshotFormat.JSON);
+		Path binaryPath = this.getPooledRolesPath(SnapshotFormat.BINARY);
+		boolean jsonExists = Files.exists(jsonPath);
+		boolean binaryExists = Files.exists(binaryPath);
+		if (binaryExists && (!jsonExists || Files.getLastModifiedTime(binaryPath).compareTo(Files.getLastModifiedTime(jsonPath)) > 0)) {
+			return BinarySnapshot.readPooledRoles(binaryPath);
+		}
+		if (jsonExists) {
+			return readJson(jsonPath, PoolRoleMap.class);
+		}
+		Pool.intern(Pool.DEFAULT_POOL_NAME);
+		return new PoolRoleMap();
+	}
+
+	/**
+	 * Reads the user pools snapshot with the highest journal sequence, or an empty map if there is none.
+	 *
+	 * @throws IOException If an exception occurs reading the file.
+	 */
+	public UserPoolMap readUserPools() throws IOException {
+		Path jsonPath = this.getUserPoolsPath(SnapshotFormat.JSON);
+		Path binaryPath = this.getUserPoolsPath(SnapshotFormat.BINARY);
+		UserPoolMap json = Files.exists(jsonPath) ? readJson(jsonPath, UserPoolMap.class) : null;
+		UserPoolMap binary = Files.exists(binaryPath) ? BinarySnapshot.readUserPools(binaryPath) : null;
+		if (json != null && binary != null) {
+			return binary.getSequence() > json.getSequence() ? binary : json;
+		}
+		return json != null ? json : binary != null ? binary : new UserPoolMap();
+	}
+
+	public static PersistenceWriter.IOConsumer<OutputStream> pooledRolesSerializer(PoolRoleMap map, SnapshotFormat format) {
+		if (format == SnapshotFormat.BINARY) {
+			return stream -> BinarySnapshot.writePooledRoles(stream, map);
+		}
+		return PersistenceWriter.text(writer -> GSON.toJson(map, PoolRoleMap.class, writer));
+	}
+
+	public static PersistenceWriter.IOConsumer<OutputStream> userPoolsSerializer(UserPoolMap map, SnapshotFormat format) {
+		if (format == SnapshotFormat.BINARY) {
+			return stream -> BinarySnapshot.writeUserPools(stream, map);
+		}
+		return PersistenceWriter.text(writer -> GSON.toJson(map, UserPoolMap.class, writer));
+	}
+
+	private static <T> T readJson(Path path, Class<T> type) throws IOException {
+		try (Reader reader = Files.newBufferedReader(path)) {
+			return GSON.fromJson(reader, type);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package net.smelly.rolepooler.data;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+import net.smelly.rolepooler.RolePoolerConfig;
+import net.smelly.rolepooler.metrics.RolePoolerMetrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link PoolStore} that holds everything in memory and persists it to the data files.
+ * <p>Changes to the user pools are appended to a {@link MembershipJournal} as they happen, the journal is compacted into a user pools snapshot once it's big or old enough.
+ * The pooled roles file is rewritten on the next flush after it changes, it also holds the list of pools.</p>
+ * <p>The users of each pool are also indexed in a {@link PoolMemberIndex}, so they can be counted and listed without scanning every user.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class FilePoolStore implements PoolStore {
+	private final PoolRoleMap pooledRoleMap;
+	private final UserPoolMap userPoolMap;
+	private final PoolMemberIndex memberIndex = new PoolMemberIndex();
+	private final DataFiles dataFiles;
+	private final SnapshotFormat snapshotFormat;
+	private final MembershipJournal journal;
+	private final MembershipJournal.FsyncPolicy journalFsyncPolicy;
+	private final AtomicBoolean snapshotRequested = new AtomicBoolean();
+	private final PersistenceWriter persistenceWriter;
+	private final PersistenceWriter.Target pooledRolesTarget;
+
+	/**
+	 * Loads the data files and replays the journal.
+	 *
+	 * @param config            The config of the bot.
+	 * @param dataFolder        The path of the folder the data files are in.
+	 * @param persistenceWriter The writer to write the data files on.
+	 * @param metrics           The metrics to register the journal size to.
+	 * @throws IOException If an exception occurs reading the data files.
+	 */
+	public FilePoolStore(RolePoolerConfig config, Path dataFolder, PersistenceWriter persistenceWriter, RolePoolerMetrics metrics) throws IOException {
+		this.dataFiles = new DataFiles(dataFolder);
+		this.snapshotFormat = config.getSnapshotFormat();
+		this.pooledRoleMap = this.dataFiles.readPooledRoles();
+		this.userPoolMap = this.dataFiles.readUserPools();
+		int replayed = MembershipJournal.replay(this.dataFiles.getJournalPath(), this.userPoolMap);
+		if (replayed > 0) {
+			System.out.println("Replayed " + replayed + " user pool changes from the journal");
+		}
+		this.userPoolMap.forEach(this.memberIndex::addPools);
+		this.journalFsyncPolicy = config.getJournalFsyncPolicy();
+		this.journal = new MembershipJournal(this.dataFiles.getJournalPath(), this.userPoolMap.getSequence(), this.journalFsyncPolicy, config.getJournalCompactBytes(), config.getJournalCompactIntervalMillis());
+		this.persistenceWriter = persistenceWriter;
+		this.pooledRolesTarget = persistenceWriter.registerBytes(this.dataFiles.getPooledRolesPath(this.snapshotFormat), DataFiles.pooledRolesSerializer(this.pooledRoleMap, this.snapshotFormat));
+		persistenceWriter.addFlushTask(this::maintainUserPools);
+		metrics.gauge("journal_bytes", "Size of the user pools journal.", () -> {
+			try {
+				return this.journal.getSize();
+			} catch (IOException e) {
+				return -1L;
+			}
+		});
+	}
+
+	@Override
+	public PoolRoleMap getPooledRoles() {
+		return this.pooledRoleMap;
+	}
+
+	@Override
+	public void addPool(Pool pool) {
+		this.pooledRolesTarget.markDirty();
+	}
+
+	@Override
+	public int removePool(Pool pool) {
+		int users;
+		synchronized (this.userPoolMap) {
+			users = this.userPoolMap.removePool(pool);
+			this.memberIndex.clear(pool);
+		}
+		this.pooledRolesTarget.markDirty();
+		//The journal can't record a whole pool being removed, so a snapshot is taken instead.
+		this.snapshotRequested.set(true);
+		return users;
+	}
+
+	@Override
+	public boolean putRole(Pool pool, long guildId, long roleId) {
+		if (this.pooledRoleMap.putRole(pool, guildId, roleId)) {
+			this.pooledRolesTarget.markDirty();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean removeRole(Pool pool, long guildId, long roleId) {
+		if (this.pooledRoleMap.removeRole(pool, guildId, roleId)) {
+			this.pooledRolesTarget.markDirty();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public PoolSet getPools(long userId) {
+		return this.userPoolMap.getPools(userId);
+	}
+
+	@Override
+	public boolean isUserInPool(long userId, Pool pool) {
+		return this.userPoolMap.isUserInPool(userId, pool);
+	}
+
+	@Override
+	public boolean addPoolToUser(long userId, Pool pool) {
+		synchronized (this.userPoolMap) {
+			if (!pool.isDeleted() && this.userPoolMap.addPoolToUser(userId, pool)) {
+				this.memberIndex.add(userId, pool);
+				this.journalChange(true, userId, pool);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public boolean removePoolFromUser(long userId, Pool pool) {
+		synchronized (this.userPoolMap) {
+			if (this.userPoolMap.removePoolFromUser(userId, pool)) {
+				this.memberIndex.remove(userId, pool);
+				this.journalChange(false, userId, pool);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Appends a change to the journal, this must be called while holding the lock on the user pool map.
+	 */
+	private void journalChange(boolean added, long userId, Pool pool) {
+		try {
+			this.userPoolMap.setSequence(this.journal.append(added, userId, pool));
+		} catch (IOException e) {
+			//The change is still in memory and will be saved by the next snapshot.
+			this.snapshotRequested.set(true);
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void forEachUser(UserConsumer consumer) {
+		this.userPoolMap.forEach(consumer);
+	}
+
+	@Override
+	public int getPoolSize(Pool pool) {
+		return this.memberIndex.size(pool);
+	}
+
+	@Override
+	public long[] getUsersInPool(Pool pool, int offset, int limit) {
+		return this.memberIndex.getPage(pool, offset, limit);
+	}
+
+	@Override
+	public long getUserCount() {
+		return this.userPoolMap.size();
+	}
+
+	@Override
+	public void checkpoint() {
+		this.pooledRolesTarget.markDirty();
+		this.snapshotRequested.set(true);
+	}
+
+	/**
+	 * Syncs the journal if needed and compacts it into a new snapshot once it's big or old enough.
+	 * <p>This runs on the persistence writer thread.</p>
+	 */
+	private void maintainUserPools() {
+		boolean requested = this.snapshotRequested.getAndSet(false);
+		boolean written = false;
+		try {
+			if (this.journalFsyncPolicy == MembershipJournal.FsyncPolicy.INTERVAL) {
+				this.journal.sync();
+			}
+			if (requested || this.journal.shouldCompact()) {
+				UserPoolMap snapshot = this.userPoolMap.copy();
+				this.persistenceWriter.write(this.dataFiles.getUserPoolsPath(this.snapshotFormat), DataFiles.userPoolsSerializer(snapshot, this.snapshotFormat));
+				this.journal.compact(snapshot.getSequence());
+				written = true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			//A requested snapshot that failed to be written gets tried again on the next flush.
+			if (requested && !written) {
+				this.snapshotRequested.set(true);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.journal.close();
+	}
+}
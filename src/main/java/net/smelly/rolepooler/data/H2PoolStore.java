@@ -0,0 +1,529 @@
+package net.smelly.rolepooler.data;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+import net.smelly.rolepooler.RolePoolerConfig;
+import net.smelly.rolepooler.metrics.RolePoolerMetrics;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link PoolStore} backed by an embedded H2 database, so the user pools don't have to be held in memory.
+ * <p>The pooled roles are written to the database as soon as they change. Changes to the user pools are collected in memory and written on each flush of the persistence writer,
+ * as a single transaction that only touches the rows of the pools that changed. Until then reads see the collected changes on top of the database.</p>
+ * <p>Pools are counted and listed straight from the database, a listing writes the collected changes first so it includes them.</p>
+ * <p>When the database is first opened, the existing data files are imported into it. The import is recorded so it only ever happens once.
+ * Databases from before pools could be created get their pools from the names already in the tables, plus the {@link Pool#DEFAULT_POOL_NAME default pool}.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class H2PoolStore implements PoolStore {
+	private static final String[] SCHEMA = {
+			"CREATE TABLE IF NOT EXISTS pools (name VARCHAR(64) PRIMARY KEY)",
+			"CREATE TABLE IF NOT EXISTS pooled_roles (pool VARCHAR(64) NOT NULL, guild_id BIGINT NOT NULL, role_id BIGINT NOT NULL, PRIMARY KEY (pool, guild_id))",
+			"CREATE INDEX IF NOT EXISTS pooled_roles_role ON pooled_roles (role_id)",
+			"CREATE TABLE IF NOT EXISTS user_pools (user_id BIGINT NOT NULL, pool VARCHAR(64) NOT NULL, PRIMARY KEY (user_id, pool))",
+			"CREATE INDEX IF NOT EXISTS user_pools_pool ON user_pools (pool, user_id)",
+			"CREATE TABLE IF NOT EXISTS meta (name VARCHAR(64) PRIMARY KEY)"
+	};
+	//Recorded in the meta table once the data files have been imported, so a database emptied since then doesn't import them again.
+	private static final String IMPORTED_MARKER = "data_files_imported";
+	private final PoolRoleMap pooledRoleMap;
+	private final Connection connection;
+	private final PreparedStatement selectPools;
+	//The pools each user with unwritten changes should end up with, and the pools they have in the database.
+	private final Map<Long, PoolSet> pendingPools = new HashMap<>();
+	private final Map<Long, PoolSet> storedPools = new HashMap<>();
+	private volatile long userCount;
+
+	/**
+	 * Opens the database, creating it and importing the data files if it doesn't exist yet.
+	 *
+	 * @param config            The config of the bot.
+	 * @param dataFolder        The path of the data folder, the database is created in it unless the config has its own database URL.
+	 * @param persistenceWriter The writer to write changes to the user pools on.
+	 * @param metrics           The metrics to register the database's pending changes to.
+	 * @throws IOException If the database couldn't be opened or the data files couldn't be imported.
+	 */
+	public H2PoolStore(RolePoolerConfig config, Path dataFolder, PersistenceWriter persistenceWriter, RolePoolerMetrics metrics) throws IOException {
+		String url = config.getDatabaseUrl() != null ? config.getDatabaseUrl() : "jdbc:h2:" + dataFolder.resolve("role_pooler").toAbsolutePath();
+		try {
+			this.connection = DriverManager.getConnection(url, "sa", "");
+			//Databases from before the meta table had their data files imported when they were created.
+			boolean legacy = this.hasTable("USER_POOLS") && !this.hasTable("META");
+			try (Statement statement = this.connection.createStatement()) {
+				for (String sql : SCHEMA) {
+					statement.execute(sql);
+				}
+			}
+			if (!this.isImported()) {
+				if (legacy || !this.isEmpty()) {
+					this.markImported();
+				} else {
+					this.importDataFiles(dataFolder);
+				}
+			}
+			this.loadPools();
+			this.pooledRoleMap = this.loadPooledRoles();
+			this.selectPools = this.connection.prepareStatement("SELECT pool FROM user_pools WHERE user_id = ?");
+			this.userCount = this.countUsers();
+		} catch (SQLException e) {
+			throw new IOException("Failed to open database " + url, e);
+		}
+		persistenceWriter.addFlushTask(this::flushUserPools);
+		metrics.gauge("database_pending_users", "Users with pool changes waiting to be written to the database.", this::getPendingCount);
+	}
+
+	private boolean hasTable(String name) throws SQLException {
+		try (ResultSet result = this.connection.getMetaData().getTables(null, null, name, null)) {
+			return result.next();
+		}
+	}
+
+	private boolean isImported() throws SQLException {
+		try (PreparedStatement statement = this.connection.prepareStatement("SELECT COUNT(*) FROM meta WHERE name = ?")) {
+			statement.setString(1, IMPORTED_MARKER);
+			try (ResultSet result = statement.executeQuery()) {
+				return result.next() && result.getLong(1) > 0L;
+			}
+		}
+	}
+
+	private void markImported() throws SQLException {
+		try (PreparedStatement statement = this.connection.prepareStatement("MERGE INTO meta (name) KEY (name) VALUES (?)")) {
+			statement.setString(1, IMPORTED_MARKER);
+			statement.executeUpdate();
+		}
+	}
+
+	private boolean isEmpty() throws SQLException {
+		try (Statement statement = this.connection.createStatement(); ResultSet result = statement.executeQuery("SELECT (SELECT COUNT(*) FROM pooled_roles) + (SELECT COUNT(*) FROM user_pools)")) {
+			return result.next() && result.getLong(1) == 0L;
+		}
+	}
+
+	/**
+	 * Imports the data files, and the journal on top of them, in a single transaction that also records the import.
+	 */
+	private void importDataFiles(Path dataFolder) throws SQLException, IOException {
+		DataFiles dataFiles = new DataFiles(dataFolder);
+		PoolRoleMap pooledRoles = dataFiles.readPooledRoles();
+		UserPoolMap userPools = dataFiles.readUserPools();
+		MembershipJournal.replay(dataFiles.getJournalPath(), userPools);
+		if (pooledRoles.getGuildIds().isEmpty() && userPools.size() == 0) {
+			this.markImported();
+			return;
+		}
+		this.connection.setAutoCommit(false);
+		try (PreparedStatement insertPoolName = this.connection.prepareStatement("MERGE INTO pools (name) KEY (name) VALUES (?)");
+			 PreparedStatement insertRole = this.connection.prepareStatement("INSERT INTO pooled_roles (pool, guild_id, role_id) VALUES (?, ?, ?)");
+			 PreparedStatement insertPool = this.connection.prepareStatement("INSERT INTO user_pools (user_id, pool) VALUES (?, ?)")) {
+			for (Pool pool : Pool.values()) {
+				insertPoolName.setString(1, pool.getName());
+				insertPoolName.addBatch();
+				long[] guildRolePairs = pooledRoles.getGuildRolePairs(pool);
+				for (int i = 0; i < guildRolePairs.length; i += 2) {
+					insertRole.setString(1, pool.getName());
+					insertRole.setLong(2, guildRolePairs[i]);
+					insertRole.setLong(3, guildRolePairs[i + 1]);
+					insertRole.addBatch();
+				}
+			}
+			insertPoolName.executeBatch();
+			insertRole.executeBatch();
+			SQLException[] exception = new SQLException[1];
+			userPools.forEach((userId, pools) -> pools.forEach(pool -> {
+				try {
+					insertPool.setLong(1, userId);
+					insertPool.setString(2, pool.getName());
+					insertPool.addBatch();
+				} catch (SQLException e) {
+					exception[0] = e;
+				}
+			}));
+			if (exception[0] != null) {
+				throw exception[0];
+			}
+			insertPool.executeBatch();
+			this.markImported();
+			this.connection.commit();
+			System.out.println("Imported " + userPools.size() + " users from the data files into the database");
+		} catch (SQLException e) {
+			this.connection.rollback();
+			throw e;
+		} finally {
+			this.connection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Creates the pools in the pools table, filling the table first if it's empty.
+	 */
+	private void loadPools() throws SQLException {
+		try (Statement statement = this.connection.createStatement()) {
+			boolean seeded = false;
+			try (ResultSet result = statement.executeQuery("SELECT name FROM pools")) {
+				while (result.next()) {
+					poolByName(result.getString(1), true);
+					seeded = true;
+				}
+			}
+			if (seeded) {
+				return;
+			}
+			Pool.intern(Pool.DEFAULT_POOL_NAME);
+			try (ResultSet result = statement.executeQuery("SELECT DISTINCT pool FROM pooled_roles UNION SELECT DISTINCT pool FROM user_pools")) {
+				while (result.next()) {
+					poolByName(result.getString(1), true);
+				}
+			}
+		}
+		for (Pool pool : Pool.values()) {
+			this.addPool(pool);
+		}
+	}
+
+	private PoolRoleMap loadPooledRoles() throws SQLException {
+		PoolRoleMap.Builder builder = new PoolRoleMap.Builder();
+		try (Statement statement = this.connection.createStatement(); ResultSet result = statement.executeQuery("SELECT pool, guild_id, role_id FROM pooled_roles")) {
+			while (result.next()) {
+				Pool pool = poolByName(result.getString(1), false);
+				if (pool != null) {
+					builder.putRole(pool, result.getLong(2), result.getLong(3));
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	private long countUsers() throws SQLException {
+		try (Statement statement = this.connection.createStatement(); ResultSet result = statement.executeQuery("SELECT COUNT(DISTINCT user_id) FROM user_pools")) {
+			return result.next() ? result.getLong(1) : 0L;
+		}
+	}
+
+	@Override
+	public PoolRoleMap getPooledRoles() {
+		return this.pooledRoleMap;
+	}
+
+	@Override
+	public synchronized void addPool(Pool pool) {
+		try (PreparedStatement statement = this.connection.prepareStatement("MERGE INTO pools (name) KEY (name) VALUES (?)")) {
+			statement.setString(1, pool.getName());
+			statement.executeUpdate();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized int removePool(Pool pool) {
+		int users = this.getPoolSize(pool);
+		try {
+			this.connection.setAutoCommit(false);
+			try (PreparedStatement deleteUsers = this.connection.prepareStatement("DELETE FROM user_pools WHERE pool = ?");
+				 PreparedStatement deletePool = this.connection.prepareStatement("DELETE FROM pools WHERE name = ?")) {
+				deleteUsers.setString(1, pool.getName());
+				deleteUsers.executeUpdate();
+				deletePool.setString(1, pool.getName());
+				deletePool.executeUpdate();
+				this.connection.commit();
+			} catch (SQLException e) {
+				this.connection.rollback();
+				throw e;
+			} finally {
+				this.connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		//The rows are gone, so the pool is dropped from the collected changes too and from what they're compared against.
+		this.pendingPools.replaceAll((userId, pools) -> pools.without(pool));
+		this.storedPools.replaceAll((userId, pools) -> pools.without(pool));
+		try {
+			this.userCount = this.countUsers();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return users;
+	}
+
+	@Override
+	public synchronized boolean putRole(Pool pool, long guildId, long roleId) {
+		if (this.pooledRoleMap.putRole(pool, guildId, roleId)) {
+			try (PreparedStatement statement = this.connection.prepareStatement("MERGE INTO pooled_roles (pool, guild_id, role_id) KEY (pool, guild_id) VALUES (?, ?, ?)")) {
+				statement.setString(1, pool.getName());
+				statement.setLong(2, guildId);
+				statement.setLong(3, roleId);
+				statement.executeUpdate();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean removeRole(Pool pool, long guildId, long roleId) {
+		if (this.pooledRoleMap.removeRole(pool, guildId, roleId)) {
+			try (PreparedStatement statement = this.connection.prepareStatement("DELETE FROM pooled_roles WHERE pool = ? AND guild_id = ? AND role_id = ?")) {
+				statement.setString(1, pool.getName());
+				statement.setLong(2, guildId);
+				statement.setLong(3, roleId);
+				statement.executeUpdate();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized PoolSet getPools(long userId) {
+		PoolSet pending = this.pendingPools.get(userId);
+		return pending != null ? pending : this.readPools(userId);
+	}
+
+	@Override
+	public boolean isUserInPool(long userId, Pool pool) {
+		return this.getPools(userId).contains(pool);
+	}
+
+	private PoolSet readPools(long userId) {
+		PoolSet pools = PoolSet.EMPTY;
+		try {
+			this.selectPools.setLong(1, userId);
+			try (ResultSet result = this.selectPools.executeQuery()) {
+				while (result.next()) {
+					Pool pool = poolByName(result.getString(1), false);
+					if (pool != null) {
+						pools = pools.with(pool);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return pools;
+	}
+
+	@Override
+	public boolean addPoolToUser(long userId, Pool pool) {
+		return this.setPool(userId, pool, true);
+	}
+
+	@Override
+	public boolean removePoolFromUser(long userId, Pool pool) {
+		return this.setPool(userId, pool, false);
+	}
+
+	private synchronized boolean setPool(long userId, Pool pool, boolean inPool) {
+		if (inPool && pool.isDeleted()) {
+			return false;
+		}
+		PoolSet pools = this.pendingPools.get(userId);
+		if (pools == null) {
+			pools = this.readPools(userId);
+			this.storedPools.put(userId, pools);
+		}
+		PoolSet newPools = inPool ? pools.with(pool) : pools.without(pool);
+		if (newPools == pools) {
+			return false;
+		}
+		this.pendingPools.put(userId, newPools);
+		return true;
+	}
+
+	/**
+	 * Streams the user pools from the database in user order, using the collected changes in place of the rows of users that have any.
+	 * <p>The store isn't locked during the scan, the collected changes are copied first and the database is read on its own statement,
+	 * so changes made during the scan may or may not be seen.</p>
+	 */
+	@Override
+	public void forEachUser(UserConsumer consumer) {
+		Map<Long, PoolSet> pendingPools;
+		synchronized (this) {
+			pendingPools = new HashMap<>(this.pendingPools);
+		}
+		try (Statement statement = this.connection.createStatement(); ResultSet result = statement.executeQuery("SELECT user_id, pool FROM user_pools ORDER BY user_id")) {
+			long userId = 0L;
+			PoolSet pools = PoolSet.EMPTY;
+			while (result.next()) {
+				long rowUserId = result.getLong(1);
+				if (rowUserId != userId) {
+					if (!pools.isEmpty()) {
+						consumer.accept(userId, pools);
+					}
+					userId = rowUserId;
+					pools = PoolSet.EMPTY;
+				}
+				Pool pool = poolByName(result.getString(2), false);
+				if (pool != null && !pendingPools.containsKey(rowUserId)) {
+					pools = pools.with(pool);
+				}
+			}
+			if (!pools.isEmpty()) {
+				consumer.accept(userId, pools);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		pendingPools.forEach((userId, pools) -> {
+			if (!pools.isEmpty()) {
+				consumer.accept(userId, pools);
+			}
+		});
+	}
+
+	@Override
+	public synchronized int getPoolSize(Pool pool) {
+		int size = 0;
+		try (PreparedStatement statement = this.connection.prepareStatement("SELECT COUNT(*) FROM user_pools WHERE pool = ?")) {
+			statement.setString(1, pool.getName());
+			try (ResultSet result = statement.executeQuery()) {
+				size = result.next() ? result.getInt(1) : 0;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		for (Map.Entry<Long, PoolSet> entry : this.pendingPools.entrySet()) {
+			boolean stored = this.storedPools.get(entry.getKey()).contains(pool);
+			if (entry.getValue().contains(pool) != stored) {
+				size += stored ? -1 : 1;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Reads a page of a pool's users along the index on the pool and user ID, so only the rows of the page and the ones skipped are read.
+	 */
+	@Override
+	public synchronized long[] getUsersInPool(Pool pool, int offset, int limit) {
+		if (offset < 0 || limit <= 0) {
+			return new long[0];
+		}
+		this.flushUserPools();
+		try (PreparedStatement statement = this.connection.prepareStatement("SELECT user_id FROM user_pools WHERE pool = ? ORDER BY user_id LIMIT ? OFFSET ?")) {
+			statement.setString(1, pool.getName());
+			statement.setInt(2, limit);
+			statement.setInt(3, offset);
+			long[] page = new long[limit];
+			int size = 0;
+			try (ResultSet result = statement.executeQuery()) {
+				while (result.next()) {
+					page[size++] = result.getLong(1);
+				}
+			}
+			return size == limit ? page : Arrays.copyOf(page, size);
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return new long[0];
+		}
+	}
+
+	@Override
+	public long getUserCount() {
+		return this.userCount;
+	}
+
+	public synchronized int getPendingCount() {
+		return this.pendingPools.size();
+	}
+
+	@Override
+	public void checkpoint() {
+		//Every flush already writes all the changes.
+	}
+
+	/**
+	 * Writes the collected user pool changes in a single transaction, adding and deleting only the rows of pools that changed.
+	 * <p>This runs on the persistence writer thread.</p>
+	 */
+	private synchronized void flushUserPools() {
+		if (this.pendingPools.isEmpty()) {
+			return;
+		}
+		try {
+			this.connection.setAutoCommit(false);
+			try (PreparedStatement merge = this.connection.prepareStatement("MERGE INTO user_pools (user_id, pool) KEY (user_id, pool) VALUES (?, ?)");
+				 PreparedStatement delete = this.connection.prepareStatement("DELETE FROM user_pools WHERE user_id = ? AND pool = ?")) {
+				for (Map.Entry<Long, PoolSet> entry : this.pendingPools.entrySet()) {
+					PoolSet pools = entry.getValue();
+					PoolSet stored = this.storedPools.get(entry.getKey());
+					addBatch(merge, entry.getKey(), pools.without(stored));
+					addBatch(delete, entry.getKey(), stored.without(pools));
+				}
+				merge.executeBatch();
+				delete.executeBatch();
+				this.connection.commit();
+				//Users only join or leave the count when they go from no pools to some or from some to none.
+				long userCount = this.userCount;
+				for (Map.Entry<Long, PoolSet> entry : this.pendingPools.entrySet()) {
+					boolean stored = !this.storedPools.get(entry.getKey()).isEmpty();
+					if (stored != !entry.getValue().isEmpty()) {
+						userCount += stored ? -1L : 1L;
+					}
+				}
+				this.userCount = userCount;
+			} catch (SQLException e) {
+				//The changes stay collected and get written on the next flush.
+				this.connection.rollback();
+				throw e;
+			} finally {
+				this.connection.setAutoCommit(true);
+			}
+			this.pendingPools.clear();
+			this.storedPools.clear();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void addBatch(PreparedStatement statement, long userId, PoolSet pools) throws SQLException {
+		SQLException[] exception = new SQLException[1];
+		pools.forEach(pool -> {
+			try {
+				statement.setLong(1, userId);
+				statement.setString(2, pool.getName());
+				statement.addBatch();
+			} catch (SQLException e) {
+				exception[0] = e;
+			}
+		});
+		if (exception[0] != null) {
+			throw exception[0];
+		}
+	}
+
+	/**
+	 * @param intern If the pool should be created when it doesn't exist, only names from the pools table should create pools.
+	 */
+	@Nullable
+	private static Pool poolByName(String name, boolean intern) {
+		Pool pool = intern && Pool.isValidName(name) ? Pool.intern(name) : Pool.byName(name);
+		if (pool == null) {
+			System.out.println("Skipping unknown pool " + name + " in the database");
+		}
+		return pool;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.flushUserPools();
+		try {
+			this.connection.close();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package net.smelly.rolepooler.data;
+
+import java.util.Arrays;
+
+/**
+ * A primitive open-addressing hash map from {@code long} keys to {@code long} values.
+ * <p>Keys are Discord snowflakes, so {@code 0} is reserved to mark empty slots and may not be used as a key.</p>
+ * <p>This map is not thread-safe, owners are expected to guard it themselves.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class LongLongHashMap {
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.6F;
+	private final long missingValue;
+	private long[] keys;
+	private long[] values;
+	private int size;
+	private int resizeThreshold;
+
+	/**
+	 * @param missingValue The value returned by lookups for keys that aren't present.
+	 */
+	public LongLongHashMap(long missingValue) {
+		this(missingValue, DEFAULT_CAPACITY);
+	}
+
+	public LongLongHashMap(long missingValue, int expectedSize) {
+		this.missingValue = missingValue;
+		this.allocate(tableSizeFor((int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR)));
+	}
+
+	private LongLongHashMap(LongLongHashMap other) {
+		this.missingValue = other.missingValue;
+		this.keys = other.keys.clone();
+		this.values = other.values.clone();
+		this.size = other.size;
+		this.resizeThreshold = other.resizeThreshold;
+	}
+
+	public long getMissingValue() {
+		return this.missingValue;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return this.keys[this.indexOf(key)] != 0L;
+	}
+
+	public long get(long key) {
+		int index = this.indexOf(key);
+		return this.keys[index] != 0L ? this.values[index] : this.missingValue;
+	}
+
+	/**
+	 * @return The previous value for the key or the missing value if there was none.
+	 */
+	public long put(long key, long value) {
+		checkKey(key);
+		int index = this.indexOf(key);
+		if (this.keys[index] != 0L) {
+			long previous = this.values[index];
+			this.values[index] = value;
+			return previous;
+		}
+		this.keys[index] = key;
+		this.values[index] = value;
+		if (++this.size > this.resizeThreshold) {
+			this.rehash(this.keys.length << 1);
+		}
+		return this.missingValue;
+	}
+
+	/**
+	 * @return The removed value for the key or the missing value if there was none.
+	 */
+	public long remove(long key) {
+		int index = this.indexOf(key);
+		if (this.keys[index] == 0L) {
+			return this.missingValue;
+		}
+		long previous = this.values[index];
+		this.keys[index] = 0L;
+		this.size--;
+		//Shift back the entries following the removed slot so that probing never hits a false gap.
+		int mask = this.keys.length - 1;
+		int gap = index;
+		int next = (index + 1) & mask;
+		while (this.keys[next] != 0L) {
+			int home = mix(this.keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				this.keys[gap] = this.keys[next];
+				this.values[gap] = this.values[next];
+				this.keys[next] = 0L;
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		return previous;
+	}
+
+	public void clear() {
+		Arrays.fill(this.keys, 0L);
+		this.size = 0;
+	}
+
+	public void forEach(EntryConsumer consumer) {
+		long[] keys = this.keys;
+		long[] values = this.values;
+		for (int i = 0; i < keys.length; i++) {
+			long key = keys[i];
+			if (key != 0L) {
+				consumer.accept(key, values[i]);
+			}
+		}
+	}
+
+	public LongLongHashMap copy() {
+		return new LongLongHashMap(this);
+	}
+
+	private int indexOf(long key) {
+		long[] keys = this.keys;
+		int mask = keys.length - 1;
+		int index = mix(key) & mask;
+		long current;
+		while ((current = keys[index]) != 0L && current != key) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = this.keys;
+		long[] oldValues = this.values;
+		this.allocate(newCapacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != 0L) {
+				int index = this.indexOf(key);
+				this.keys[index] = key;
+				this.values[index] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new long[capacity];
+		this.resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static void checkKey(long key) {
+		if (key == 0L) {
+			throw new IllegalArgumentException("0 can't be used as a key");
+		}
+	}
+
+	private static int tableSizeFor(int size) {
+		int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		return Math.max(capacity, 2);
+	}
+
+	private static int mix(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@FunctionalInterface
+	public interface EntryConsumer {
+		void accept(long key, long value);
+	}
+}
@@ -0,0 +1,234 @@
+package net.smelly.rolepooler.data;
+
+import net.smelly.rolepooler.Pool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only journal of changes to the {@link UserPoolMap}, kept next to the user pools snapshot.
+ * <p>Each line of the journal is a single change in the form {@code <sequence> +<userId> <pool>} or {@code <sequence> -<userId> <pool>}.
+ * The snapshot stores the sequence number it was taken at, so only the changes after it need replaying when loading.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class MembershipJournal {
+	private final Path path;
+	private final FsyncPolicy fsyncPolicy;
+	private final long compactBytes;
+	private final long compactIntervalMillis;
+	private FileChannel channel;
+	private long sequence;
+	private long lastCompactionTime = System.currentTimeMillis();
+	private boolean unsynced;
+
+	/**
+	 * @param path                  The path of the journal file.
+	 * @param sequence              The sequence number of the last change already applied to the loaded data.
+	 * @param fsyncPolicy           When changes should be forced to disk.
+	 * @param compactBytes          The size in bytes the journal can grow to before it should be compacted.
+	 * @param compactIntervalMillis The time in milliseconds a non-empty journal can go without being compacted.
+	 * @throws IOException If an exception occurs opening the journal file.
+	 */
+	public MembershipJournal(Path path, long sequence, FsyncPolicy fsyncPolicy, long compactBytes, long compactIntervalMillis) throws IOException {
+		this.path = path;
+		this.sequence = sequence;
+		this.fsyncPolicy = fsyncPolicy;
+		this.compactBytes = compactBytes;
+		this.compactIntervalMillis = compactIntervalMillis;
+		this.channel = this.open();
+	}
+
+	/**
+	 * Applies the changes in a journal file that come after a sequence number to a {@link UserPoolMap}.
+	 * <p>A partially written last line, left over from a crash, is skipped.</p>
+	 *
+	 * @param path The path of the journal file.
+	 * @param map  The map to apply the changes to, its sequence is updated to the last applied change.
+	 * @return The number of changes applied.
+	 * @throws IOException If an exception occurs reading the journal file.
+	 */
+	public static int replay(Path path, UserPoolMap map) throws IOException {
+		int applied = 0;
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if (parts.length != 3 || parts[1].length() < 2) {
+					System.out.println("WARNING: Skipping malformed journal entry: " + line);
+					continue;
+				}
+				try {
+					long entrySequence = Long.parseLong(parts[0]);
+					if (entrySequence <= map.getSequence()) {
+						continue;
+					}
+					long userId = Long.parseLong(parts[1].substring(1));
+					Pool pool = Pool.byName(parts[2]);
+					//Changes to pools deleted since they were journaled are skipped, but still count as applied.
+					if (pool == null) {
+						map.setSequence(entrySequence);
+						continue;
+					}
+					if (parts[1].charAt(0) == '+') {
+						map.addPoolToUser(userId, pool);
+					} else {
+						map.removePoolFromUser(userId, pool);
+					}
+					map.setSequence(entrySequence);
+					applied++;
+				} catch (IllegalArgumentException e) {
+					System.out.println("WARNING: Skipping malformed journal entry: " + line);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+		return applied;
+	}
+
+	/**
+	 * Appends a change to the journal.
+	 *
+	 * @return The sequence number of the change.
+	 * @throws IOException If an exception occurs writing to the journal.
+	 */
+	public synchronized long append(boolean added, long userId, Pool pool) throws IOException {
+		long entrySequence = ++this.sequence;
+		String line = entrySequence + (added ? " +" : " -") + userId + " " + pool.getName() + "\n";
+		ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+		if (this.fsyncPolicy == FsyncPolicy.ALWAYS) {
+			this.channel.force(false);
+		} else {
+			this.unsynced = true;
+		}
+		return entrySequence;
+	}
+
+	/**
+	 * Forces any changes appended since the last sync to disk.
+	 *
+	 * @throws IOException If an exception occurs syncing the journal.
+	 */
+	public synchronized void sync() throws IOException {
+		if (this.unsynced) {
+			this.channel.force(false);
+			this.unsynced = false;
+		}
+	}
+
+	/**
+	 * @return If the journal has grown big or old enough that a new snapshot should be taken.
+	 * @throws IOException If an exception occurs checking the size of the journal.
+	 */
+	public synchronized boolean shouldCompact() throws IOException {
+		long size = this.channel.size();
+		return size >= this.compactBytes || (size > 0 && System.currentTimeMillis() - this.lastCompactionTime >= this.compactIntervalMillis);
+	}
+
+	/**
+	 * Drops the changes that are covered by a snapshot from the journal.
+	 * <p>Changes appended after the snapshot was taken are kept.</p>
+	 *
+	 * @param snapshotSequence The sequence number the snapshot was taken at.
+	 * @throws IOException If an exception occurs rewriting the journal.
+	 */
+	public synchronized void compact(long snapshotSequence) throws IOException {
+		this.channel.force(false);
+		this.channel.close();
+		Path tempPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+		try (BufferedReader reader = Files.newBufferedReader(this.path, StandardCharsets.UTF_8); BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (parseSequence(line) > snapshotSequence) {
+					writer.write(line);
+					writer.write('\n');
+				}
+			}
+		} catch (IOException e) {
+			this.channel = this.open();
+			throw e;
+		}
+		PersistenceWriter.move(tempPath, this.path);
+		this.channel = this.open();
+		this.channel.force(false);
+		this.unsynced = false;
+		this.lastCompactionTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The size of the journal in bytes.
+	 * @throws IOException If an exception occurs checking the size of the journal.
+	 */
+	public synchronized long getSize() throws IOException {
+		return this.channel.size();
+	}
+
+	/**
+	 * @return The sequence number of the last appended change.
+	 */
+	public synchronized long getSequence() {
+		return this.sequence;
+	}
+
+	public synchronized void close() throws IOException {
+		this.channel.force(false);
+		this.channel.close();
+	}
+
+	private FileChannel open() throws IOException {
+		FileChannel channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		channel.position(size);
+		if (size > 0) {
+			//Terminate a partially written line left by a crash so new entries don't get joined onto it.
+			ByteBuffer lastByte = ByteBuffer.allocate(1);
+			channel.read(lastByte, size - 1);
+			if (lastByte.get(0) != '\n') {
+				channel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+			}
+		}
+		return channel;
+	}
+
+	private static long parseSequence(String line) {
+		int space = line.indexOf(' ');
+		if (space > 0) {
+			try {
+				return Long.parseLong(line.substring(0, space));
+			} catch (NumberFormatException e) {
+				return -1L;
+			}
+		}
+		return -1L;
+	}
+
+	/**
+	 * When appended changes are forced to disk.
+	 */
+	public enum FsyncPolicy {
+		/**
+		 * Every change is forced to disk before it's acknowledged.
+		 */
+		ALWAYS,
+		/**
+		 * Changes are forced to disk each time the persistence writer flushes.
+		 */
+		INTERVAL,
+		/**
+		 * Changes are left for the operating system to write out.
+		 */
+		NEVER
+	}
+}
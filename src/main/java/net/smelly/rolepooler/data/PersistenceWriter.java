@@ -0,0 +1,216 @@
+package net.smelly.rolepooler.data;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns the single thread that writes the data files.
+ * <p>Registered files are only marked dirty when they change, the writer thread then rewrites each dirty file at most once per flush interval.
+ * Every write goes to a temporary file that atomically replaces the real file, so a crash mid-write never leaves a corrupt file behind.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class PersistenceWriter {
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Role Pooler Persistence Writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final List<Target> targets = new CopyOnWriteArrayList<>();
+	private final List<Runnable> flushTasks = new CopyOnWriteArrayList<>();
+	private final long flushIntervalMillis;
+	private final WriteListener writeListener;
+
+	/**
+	 * @param flushIntervalMillis The interval in milliseconds between flushes of dirty files.
+	 */
+	public PersistenceWriter(long flushIntervalMillis) {
+		this(flushIntervalMillis, (path, nanos, bytes) -> {});
+	}
+
+	/**
+	 * @param flushIntervalMillis The interval in milliseconds between flushes of dirty files.
+	 * @param writeListener       Gets told about every file written by this writer.
+	 */
+	public PersistenceWriter(long flushIntervalMillis, WriteListener writeListener) {
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.writeListener = writeListener;
+		this.executor.scheduleWithFixedDelay(this::flushDirty, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public long getFlushIntervalMillis() {
+		return this.flushIntervalMillis;
+	}
+
+	/**
+	 * Registers a file to be written by this writer.
+	 *
+	 * @param path       The path of the file.
+	 * @param serializer Writes the current contents of the file, this is only ever called on the writer thread.
+	 * @return A {@link Target} to mark the file dirty with.
+	 */
+	public Target register(Path path, IOConsumer<Writer> serializer) {
+		return this.registerBytes(path, text(serializer));
+	}
+
+	/**
+	 * Registers a binary file to be written by this writer.
+	 *
+	 * @param path       The path of the file.
+	 * @param serializer Writes the current contents of the file, this is only ever called on the writer thread.
+	 * @return A {@link Target} to mark the file dirty with.
+	 */
+	public Target registerBytes(Path path, IOConsumer<OutputStream> serializer) {
+		Target target = new Target(path, serializer);
+		this.targets.add(target);
+		return target;
+	}
+
+	/**
+	 * Adds a task to run on the writer thread after the dirty files get written on each flush.
+	 */
+	public void addFlushTask(Runnable task) {
+		this.flushTasks.add(task);
+	}
+
+	/**
+	 * Writes all dirty files and waits for the writes to finish.
+	 */
+	public void flush() {
+		try {
+			this.executor.submit(this::flushDirty).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | RejectedExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Flushes all dirty files and stops the writer thread.
+	 */
+	public void shutdown() {
+		this.flush();
+		this.executor.shutdown();
+		try {
+			this.executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void flushDirty() {
+		for (Target target : this.targets) {
+			if (target.dirty.compareAndSet(true, false)) {
+				try {
+					this.write(target.path, target.serializer);
+				} catch (IOException | RuntimeException e) {
+					//Gson wraps IO failures in unchecked exceptions, letting one escape would cancel every later flush.
+					target.dirty.set(true);
+					e.printStackTrace();
+				}
+			}
+		}
+		for (Runnable task : this.flushTasks) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Atomically writes a binary file and tells the listener of this writer about it.
+	 *
+	 * @see #writeBytesAtomically(Path, IOConsumer)
+	 */
+	public void write(Path path, IOConsumer<OutputStream> serializer) throws IOException {
+		long start = System.nanoTime();
+		long bytes = writeBytesAtomically(path, serializer);
+		this.writeListener.onWrite(path, System.nanoTime() - start, bytes);
+	}
+
+	/**
+	 * Writes a file to a temporary file next to it and then atomically moves it over the real file.
+	 */
+	public static long writeAtomically(Path path, IOConsumer<Writer> serializer) throws IOException {
+		return writeBytesAtomically(path, text(serializer));
+	}
+
+	/**
+	 * Writes a binary file to a temporary file next to it and then atomically moves it over the real file.
+	 *
+	 * @return The size of the written file in bytes.
+	 */
+	public static long writeBytesAtomically(Path path, IOConsumer<OutputStream> serializer) throws IOException {
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		long bytes;
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel));
+			serializer.accept(stream);
+			stream.flush();
+			//Make sure the contents are on disk before the rename makes them visible.
+			channel.force(true);
+			bytes = channel.size();
+		}
+		move(tempPath, path);
+		return bytes;
+	}
+
+	/**
+	 * Adapts a serializer that writes text into one that writes UTF-8 bytes.
+	 */
+	public static IOConsumer<OutputStream> text(IOConsumer<Writer> serializer) {
+		return stream -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+			serializer.accept(writer);
+			writer.flush();
+		};
+	}
+
+	/**
+	 * Moves a file over another file, atomically if the file system supports it.
+	 */
+	public static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	public static final class Target {
+		private final AtomicBoolean dirty = new AtomicBoolean();
+		private final Path path;
+		private final IOConsumer<OutputStream> serializer;
+
+		private Target(Path path, IOConsumer<OutputStream> serializer) {
+			this.path = path;
+			this.serializer = serializer;
+		}
+
+		/**
+		 * Marks this file to be rewritten on the next flush.
+		 */
+		public void markDirty() {
+			this.dirty.set(true);
+		}
+	}
+
+	@FunctionalInterface
+	public interface WriteListener {
+		void onWrite(Path path, long nanos, long bytes);
+	}
+
+	@FunctionalInterface
+	public interface IOConsumer<T> {
+		void accept(T t) throws IOException;
+	}
+}
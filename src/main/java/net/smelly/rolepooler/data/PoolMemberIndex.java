@@ -0,0 +1,219 @@
+package net.smelly.rolepooler.data;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+
+import java.util.Arrays;
+
+/**
+ * An index of the users in each {@link Pool}, kept up to date by the {@link FilePoolStore} alongside its user pools so a pool's users can be counted and listed without scanning every user.
+ * <p>Each pool's user IDs are held in sorted blocks, like the containers of a Roaring bitmap. Snowflake IDs are too spread out for Roaring's 16 bit containers to hold more than a few IDs each,
+ * so blocks are instead split by size: a block holds up to {@link #BLOCK_SIZE} sorted IDs, splits in half when it fills up and merges with the next block once they'd fit in half a block together.
+ * Adding or removing a user only copies within one block, counts are kept as users are added and removed, and a page is found by skipping whole blocks.</p>
+ * <p>The index is safe to use from any thread.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class PoolMemberIndex {
+	private static final int BLOCK_SIZE = 1024;
+	private BlockSet[] pools = new BlockSet[0];
+
+	/**
+	 * @return The set of a pool's users, indexed by {@link Pool#getIndex()} and created for pools that are new to the index.
+	 */
+	private BlockSet getUsers(Pool pool) {
+		int index = pool.getIndex();
+		if (index >= this.pools.length) {
+			int length = this.pools.length;
+			this.pools = Arrays.copyOf(this.pools, index + 1);
+			for (int i = length; i < this.pools.length; i++) {
+				this.pools[i] = new BlockSet();
+			}
+		}
+		return this.pools[index];
+	}
+
+	/**
+	 * @return If the user wasn't already indexed in the pool.
+	 */
+	public synchronized boolean add(long userId, Pool pool) {
+		return this.getUsers(pool).add(userId);
+	}
+
+	/**
+	 * @return If the user was indexed in the pool.
+	 */
+	public synchronized boolean remove(long userId, Pool pool) {
+		return this.getUsers(pool).remove(userId);
+	}
+
+	/**
+	 * Removes every user from a pool, used when the pool is deleted.
+	 */
+	public synchronized void clear(Pool pool) {
+		if (pool.getIndex() < this.pools.length) {
+			this.pools[pool.getIndex()] = new BlockSet();
+		}
+	}
+
+	/**
+	 * Indexes a user in every pool of a set, used when building the index from a store.
+	 */
+	public synchronized void addPools(long userId, PoolSet pools) {
+		pools.forEach(pool -> this.getUsers(pool).add(userId));
+	}
+
+	/**
+	 * @return The number of users in a pool.
+	 */
+	public synchronized int size(Pool pool) {
+		return this.getUsers(pool).size;
+	}
+
+	/**
+	 * Gets a page of the users in a pool, in ascending order of their IDs.
+	 *
+	 * @param offset The number of users to skip.
+	 * @param limit  The most users to get.
+	 * @return The IDs of the users, empty if the offset is past the last user.
+	 */
+	public synchronized long[] getPage(Pool pool, int offset, int limit) {
+		return this.getUsers(pool).getPage(offset, limit);
+	}
+
+	/**
+	 * A sorted set of IDs held in sorted blocks, where the first ID of each block is greater than every ID in the blocks before it.
+	 */
+	private static final class BlockSet {
+		private long[][] blocks = new long[0][];
+		private int[] blockSizes = new int[0];
+		private int blockCount;
+		private int size;
+
+		private boolean add(long id) {
+			if (this.blockCount == 0) {
+				this.insertBlock(0, new long[16], 0);
+			}
+			int block = this.findBlock(id);
+			int index = Arrays.binarySearch(this.blocks[block], 0, this.blockSizes[block], id);
+			if (index >= 0) {
+				return false;
+			}
+			if (this.blockSizes[block] == BLOCK_SIZE) {
+				this.split(block);
+				block = this.findBlock(id);
+				index = Arrays.binarySearch(this.blocks[block], 0, this.blockSizes[block], id);
+			}
+			index = -index - 1;
+			long[] ids = this.blocks[block];
+			int blockSize = this.blockSizes[block];
+			if (blockSize == ids.length) {
+				ids = this.blocks[block] = Arrays.copyOf(ids, Math.min(BLOCK_SIZE, ids.length << 1));
+			}
+			System.arraycopy(ids, index, ids, index + 1, blockSize - index);
+			ids[index] = id;
+			this.blockSizes[block]++;
+			this.size++;
+			return true;
+		}
+
+		private boolean remove(long id) {
+			if (this.blockCount == 0) {
+				return false;
+			}
+			int block = this.findBlock(id);
+			long[] ids = this.blocks[block];
+			int blockSize = this.blockSizes[block];
+			int index = Arrays.binarySearch(ids, 0, blockSize, id);
+			if (index < 0) {
+				return false;
+			}
+			System.arraycopy(ids, index + 1, ids, index, blockSize - index - 1);
+			this.blockSizes[block]--;
+			this.size--;
+			if (this.blockSizes[block] == 0) {
+				this.removeBlock(block);
+			} else if (block + 1 < this.blockCount && this.blockSizes[block] + this.blockSizes[block + 1] <= BLOCK_SIZE / 2) {
+				this.merge(block);
+			}
+			return true;
+		}
+
+		private long[] getPage(int offset, int limit) {
+			if (offset < 0 || offset >= this.size || limit <= 0) {
+				return new long[0];
+			}
+			long[] page = new long[Math.min(limit, this.size - offset)];
+			int block = 0;
+			while (offset >= this.blockSizes[block]) {
+				offset -= this.blockSizes[block++];
+			}
+			int filled = 0;
+			while (filled < page.length) {
+				int count = Math.min(this.blockSizes[block] - offset, page.length - filled);
+				System.arraycopy(this.blocks[block], offset, page, filled, count);
+				filled += count;
+				offset = 0;
+				block++;
+			}
+			return page;
+		}
+
+		/**
+		 * @return The index of the last block whose first ID isn't greater than the ID, or the first block if there is none.
+		 */
+		private int findBlock(long id) {
+			int low = 0;
+			int high = this.blockCount - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (this.blocks[middle][0] <= id) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return low;
+		}
+
+		private void split(int block) {
+			long[] ids = this.blocks[block];
+			int half = this.blockSizes[block] >>> 1;
+			long[] upper = new long[BLOCK_SIZE];
+			System.arraycopy(ids, half, upper, 0, this.blockSizes[block] - half);
+			this.insertBlock(block + 1, upper, this.blockSizes[block] - half);
+			this.blockSizes[block] = half;
+		}
+
+		private void merge(int block) {
+			int blockSize = this.blockSizes[block];
+			int nextSize = this.blockSizes[block + 1];
+			long[] ids = this.blocks[block];
+			if (ids.length < blockSize + nextSize) {
+				ids = this.blocks[block] = Arrays.copyOf(ids, blockSize + nextSize);
+			}
+			System.arraycopy(this.blocks[block + 1], 0, ids, blockSize, nextSize);
+			this.blockSizes[block] = blockSize + nextSize;
+			this.removeBlock(block + 1);
+		}
+
+		private void insertBlock(int block, long[] ids, int blockSize) {
+			if (this.blockCount == this.blocks.length) {
+				int capacity = Math.max(4, this.blockCount << 1);
+				this.blocks = Arrays.copyOf(this.blocks, capacity);
+				this.blockSizes = Arrays.copyOf(this.blockSizes, capacity);
+			}
+			System.arraycopy(this.blocks, block, this.blocks, block + 1, this.blockCount - block);
+			System.arraycopy(this.blockSizes, block, this.blockSizes, block + 1, this.blockCount - block);
+			this.blocks[block] = ids;
+			this.blockSizes[block] = blockSize;
+			this.blockCount++;
+		}
+
+		private void removeBlock(int block) {
+			System.arraycopy(this.blocks, block + 1, this.blocks, block, this.blockCount - block - 1);
+			System.arraycopy(this.blockSizes, block + 1, this.blockSizes, block, this.blockCount - block - 1);
+			this.blocks[--this.blockCount] = null;
+		}
+	}
+}
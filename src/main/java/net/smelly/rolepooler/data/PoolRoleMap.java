@@ -0,0 +1,257 @@
+package net.smelly.rolepooler.data;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import net.smelly.rolepooler.Pool;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stores the pooled role of each guild for each {@link Pool}, keyed by snowflake IDs.
+ * <p>Entries are kept even when the bot can't currently see the guild or role, they only get resolved to JDA entities when they're needed.</p>
+ * <p>The entries are held in an immutable snapshot that gets replaced as a whole on every change. Pooled roles change rarely compared to how often
+ * they're read on the event path, so reads never lock or allocate and never wait for a command changing the pooled roles.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class PoolRoleMap {
+	private volatile Snapshot snapshot;
+
+	public PoolRoleMap() {
+		this(new Snapshot(new LongLongHashMap[0], new LongLongHashMap(-1L)));
+	}
+
+	private PoolRoleMap(Snapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Sets the pooled role of a guild for a {@link Pool}, replacing the guild's previous role for the pool.
+	 *
+	 * @return If the role wasn't already the guild's role for the pool.
+	 */
+	public synchronized boolean putRole(Pool pool, long guildId, long roleId) {
+		Snapshot current = this.snapshot;
+		if (current.getRole(pool, guildId) == roleId) {
+			return false;
+		}
+		Snapshot next = current.copyForChange(pool);
+		next.putRole(pool, guildId, roleId);
+		this.snapshot = next;
+		return true;
+	}
+
+	public synchronized boolean removeRole(Pool pool, long guildId, long roleId) {
+		Snapshot current = this.snapshot;
+		if (current.getRole(pool, guildId) != roleId) {
+			return false;
+		}
+		Snapshot next = current.copyForChange(pool);
+		next.removeRole(pool, guildId);
+		this.snapshot = next;
+		return true;
+	}
+
+	@Nullable
+	public Pool getPoolForRole(long roleId) {
+		long index = this.snapshot.roleToPool.get(roleId);
+		return index != -1L ? Pool.byIndex((int) index) : null;
+	}
+
+	/**
+	 * @return The ID of the guild's pooled role for the pool, 0 if there is none.
+	 */
+	public long getRole(Pool pool, long guildId) {
+		return this.snapshot.getRole(pool, guildId);
+	}
+
+	/**
+	 * @return The number of pooled roles across every pool.
+	 */
+	public int size() {
+		return this.snapshot.roleToPool.size();
+	}
+
+	/**
+	 * @return The IDs of all the guilds that have a pooled role.
+	 */
+	public Set<Long> getGuildIds() {
+		Set<Long> guildIds = new HashSet<>();
+		for (LongLongHashMap guildToRole : this.snapshot.guildToRoleMaps) {
+			guildToRole.forEach((guildId, roleId) -> guildIds.add(guildId));
+		}
+		return guildIds;
+	}
+
+	/**
+	 * Gets a copy of the pool's guild to role entries, which the caller is free to modify.
+	 *
+	 * @return An array of alternating guild and role IDs.
+	 */
+	public long[] getGuildRolePairs(Pool pool) {
+		LongLongHashMap[] guildToRoleMaps = this.snapshot.guildToRoleMaps;
+		if (pool.getIndex() >= guildToRoleMaps.length) {
+			return new long[0];
+		}
+		LongLongHashMap guildToRole = guildToRoleMaps[pool.getIndex()];
+		long[] pairs = new long[guildToRole.size() << 1];
+		int[] index = new int[1];
+		guildToRole.forEach((guildId, roleId) -> {
+			pairs[index[0]++] = guildId;
+			pairs[index[0]++] = roleId;
+		});
+		return pairs;
+	}
+
+	/**
+	 * The entries of a {@link PoolRoleMap} at one point in time.
+	 * <p>A snapshot is only changed before it's published, after that its maps are only ever read so any number of threads can read them at once.</p>
+	 */
+	private static final class Snapshot {
+		//Indexed by Pool#getIndex(), pools created since the snapshot was taken are past the end.
+		private final LongLongHashMap[] guildToRoleMaps;
+		private final LongLongHashMap roleToPool;
+
+		private Snapshot(LongLongHashMap[] guildToRoleMaps, LongLongHashMap roleToPool) {
+			this.guildToRoleMaps = guildToRoleMaps;
+			this.roleToPool = roleToPool;
+		}
+
+		private long getRole(Pool pool, long guildId) {
+			return pool.getIndex() < this.guildToRoleMaps.length ? this.guildToRoleMaps[pool.getIndex()].get(guildId) : 0L;
+		}
+
+		/**
+		 * Copies the parts of this snapshot a change to a pool touches, the maps of the other pools are shared with this snapshot.
+		 */
+		private Snapshot copyForChange(Pool pool) {
+			int index = pool.getIndex();
+			LongLongHashMap[] guildToRoleMaps = grow(this.guildToRoleMaps, index + 1);
+			if (index < this.guildToRoleMaps.length) {
+				guildToRoleMaps[index] = guildToRoleMaps[index].copy();
+			}
+			return new Snapshot(guildToRoleMaps, this.roleToPool.copy());
+		}
+
+		/**
+		 * @return A copy of the array with room for at least a number of pools, with empty maps for the pools that are new to it.
+		 */
+		private static LongLongHashMap[] grow(LongLongHashMap[] guildToRoleMaps, int indexLimit) {
+			int length = guildToRoleMaps.length;
+			guildToRoleMaps = Arrays.copyOf(guildToRoleMaps, Math.max(length, indexLimit));
+			for (int i = length; i < guildToRoleMaps.length; i++) {
+				guildToRoleMaps[i] = new LongLongHashMap(0L);
+			}
+			return guildToRoleMaps;
+		}
+
+		/**
+		 * Sets a guild's role for a pool, the snapshot must have room for the pool.
+		 */
+		private void putRole(Pool pool, long guildId, long roleId) {
+			long previous = this.guildToRoleMaps[pool.getIndex()].put(guildId, roleId);
+			if (previous != 0L) {
+				this.roleToPool.remove(previous);
+			}
+			this.roleToPool.put(roleId, pool.getIndex());
+		}
+
+		private void removeRole(Pool pool, long guildId) {
+			long previous = this.guildToRoleMaps[pool.getIndex()].remove(guildId);
+			if (previous != 0L) {
+				this.roleToPool.remove(previous);
+			}
+		}
+	}
+
+	/**
+	 * Fills a new map without copying it on every entry like {@link #putRole(Pool, long, long)} does, used when loading the pooled roles.
+	 * <p>The builder can't be used again once it's built its map.</p>
+	 */
+	public static final class Builder {
+		private Snapshot snapshot = new Snapshot(new LongLongHashMap[0], new LongLongHashMap(-1L));
+
+		public Builder putRole(Pool pool, long guildId, long roleId) {
+			if (pool.getIndex() >= this.snapshot.guildToRoleMaps.length) {
+				this.snapshot = new Snapshot(Snapshot.grow(this.snapshot.guildToRoleMaps, pool.getIndex() + 1), this.snapshot.roleToPool);
+			}
+			this.snapshot.putRole(pool, guildId, roleId);
+			return this;
+		}
+
+		public PoolRoleMap build() {
+			PoolRoleMap map = new PoolRoleMap(this.snapshot);
+			this.snapshot = null;
+			return map;
+		}
+	}
+
+	/**
+	 * Streams the map to and from JSON, so loading never needs the whole file or a JSON tree in memory.
+	 * <p>Every pool is written even when it has no roles, since this is where pools are kept between restarts, and reading creates the pools.</p>
+	 */
+	public static class Codec extends TypeAdapter<PoolRoleMap> {
+
+		@Override
+		public void write(JsonWriter writer, PoolRoleMap pooledRoleMap) throws IOException {
+			writer.beginObject();
+			for (Pool pool : Pool.values()) {
+				writer.name(pool.getName()).beginArray();
+				long[] guildRolePairs = pooledRoleMap.getGuildRolePairs(pool);
+				for (int i = 0; i < guildRolePairs.length; i += 2) {
+					writer.beginObject();
+					writer.name("guildId").value(guildRolePairs[i]);
+					writer.name("roleId").value(guildRolePairs[i + 1]);
+					writer.endObject();
+				}
+				writer.endArray();
+			}
+			writer.endObject();
+		}
+
+		@Override
+		public PoolRoleMap read(JsonReader reader) throws IOException {
+			Builder builder = new Builder();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String poolName = reader.nextName();
+				Pool pool;
+				try {
+					pool = Pool.intern(poolName);
+				} catch (IllegalArgumentException e) {
+					System.out.println("WARNING: Invalid pool name " + poolName + " in pooled roles");
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				while (reader.hasNext()) {
+					long guildId = 0L, roleId = 0L;
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String name = reader.nextName();
+						if (name.equals("guildId")) {
+							guildId = reader.nextLong();
+						} else if (name.equals("roleId")) {
+							roleId = reader.nextLong();
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+					if (guildId != 0L && roleId != 0L) {
+						builder.putRole(pool, guildId, roleId);
+					}
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+			return builder.build();
+		}
+
+	}
+}
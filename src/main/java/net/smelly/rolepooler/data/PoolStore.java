@@ -0,0 +1,115 @@
+package net.smelly.rolepooler.data;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+
+import java.io.IOException;
+
+/**
+ * Stores the pooled roles and the pools of every user.
+ * <p>The pooled roles are small and read on every event, so every store keeps them in memory in a {@link PoolRoleMap} and persists changes made through the store.
+ * How the user pools are held and persisted is up to the store.</p>
+ * <p>The store also persists which pools exist, loading them into the {@link Pool} registry when it's opened.</p>
+ * <p>Stores are safe to use from any thread.</p>
+ *
+ * @author Luke Tonon
+ */
+public interface PoolStore {
+	/**
+	 * @return The in-memory pooled roles, these must only be changed through {@link #putRole(Pool, long, long)} and {@link #removeRole(Pool, long, long)}.
+	 */
+	PoolRoleMap getPooledRoles();
+
+	/**
+	 * Persists a newly created pool.
+	 */
+	void addPool(Pool pool);
+
+	/**
+	 * Removes every user from a pool that has been deleted and persists its deletion, its roles should be removed before this.
+	 *
+	 * @return The number of users that were in the pool.
+	 */
+	int removePool(Pool pool);
+
+	/**
+	 * Sets the pooled role of a guild for a {@link Pool}, replacing the guild's previous role for the pool.
+	 *
+	 * @return If the role wasn't already the guild's role for the pool.
+	 */
+	boolean putRole(Pool pool, long guildId, long roleId);
+
+	/**
+	 * @return If the role was the guild's role for the pool.
+	 */
+	boolean removeRole(Pool pool, long guildId, long roleId);
+
+	/**
+	 * @return The pools of a user.
+	 */
+	PoolSet getPools(long userId);
+
+	boolean isUserInPool(long userId, Pool pool);
+
+	/**
+	 * @return If the user wasn't already in the pool, users can't be added to deleted pools.
+	 */
+	boolean addPoolToUser(long userId, Pool pool);
+
+	/**
+	 * @return If the user was in the pool.
+	 */
+	boolean removePoolFromUser(long userId, Pool pool);
+
+	/**
+	 * Calls a consumer with every user in at least one pool and their pools.
+	 * <p>The store may be locked while this runs, so the consumer must not use the store or wait on anything that might.</p>
+	 */
+	void forEachUser(UserConsumer consumer);
+
+	/**
+	 * @return The number of users in a pool.
+	 */
+	int getPoolSize(Pool pool);
+
+	/**
+	 * Gets a page of the users in a pool, in ascending order of their IDs.
+	 *
+	 * @param offset The number of users to skip.
+	 * @param limit  The most users to get.
+	 * @return The IDs of the users, empty if the offset is past the last user.
+	 */
+	long[] getUsersInPool(Pool pool, int offset, int limit);
+
+	/**
+	 * @return The number of users in at least one pool.
+	 */
+	long getUserCount();
+
+	/**
+	 * Makes the next flush persist everything in its most compact form, such as compacting a journal into a snapshot.
+	 */
+	void checkpoint();
+
+	/**
+	 * Closes the store, this gets called after the final flush of the persistence writer.
+	 *
+	 * @throws IOException If an exception occurs closing the store.
+	 */
+	void close() throws IOException;
+
+	interface UserConsumer {
+		void accept(long userId, PoolSet pools);
+	}
+
+	enum Backend {
+		/**
+		 * The data files in the data folder, with user pool changes appended to a journal.
+		 */
+		FILES,
+		/**
+		 * An embedded H2 database in the data folder.
+		 */
+		H2
+	}
+}
@@ -0,0 +1,28 @@
+package net.smelly.rolepooler.data;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Converts the data files in a data folder between {@link SnapshotFormat}s.
+ * <p>Usage: {@code SnapshotConverter <data folder> <JSON|BINARY>}. The journal stays valid, the converted user pools keep the journal sequence they were taken at.</p>
+ * <p>This should only be run while the bot is stopped.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class SnapshotConverter {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("Usage: SnapshotConverter <data folder> <JSON|BINARY>");
+			return;
+		}
+		DataFiles dataFiles = new DataFiles(Paths.get(args[0]));
+		SnapshotFormat format = SnapshotFormat.valueOf(args[1].toUpperCase());
+		PoolRoleMap pooledRoles = dataFiles.readPooledRoles();
+		UserPoolMap userPools = dataFiles.readUserPools();
+		PersistenceWriter.writeBytesAtomically(dataFiles.getPooledRolesPath(format), DataFiles.pooledRolesSerializer(pooledRoles, format));
+		PersistenceWriter.writeBytesAtomically(dataFiles.getUserPoolsPath(format), DataFiles.userPoolsSerializer(userPools, format));
+		System.out.println("Converted " + userPools.size() + " user pools and the pooled roles to " + format + " at sequence " + userPools.getSequence());
+	}
+}
@@ -0,0 +1,27 @@
+package net.smelly.rolepooler.data;
+
+/**
+ * The formats the data files can be written in.
+ *
+ * @author Luke Tonon
+ */
+public enum SnapshotFormat {
+	/**
+	 * Pretty printed JSON, easy to read and edit by hand.
+	 */
+	JSON(".json"),
+	/**
+	 * The compact {@link BinarySnapshot} format.
+	 */
+	BINARY(".bin");
+
+	private final String extension;
+
+	SnapshotFormat(String extension) {
+		this.extension = extension;
+	}
+
+	public String getExtension() {
+		return this.extension;
+	}
+}
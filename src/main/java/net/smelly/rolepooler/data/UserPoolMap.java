@@ -0,0 +1,294 @@
+package net.smelly.rolepooler.data;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the {@link Pool}s each user is in, keyed by the user's snowflake ID.
+ * <p>Each user's pools are stored as the words of a {@link PoolSet}, with a map of users to their bits for each word of 64 pools.
+ * Users only have entries in the words they have pools in, so a pooled user only costs a couple of primitive slots until there are more than 64 pools.</p>
+ * <p>The map also tracks the sequence number of the last {@link MembershipJournal} change applied to it.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class UserPoolMap {
+	private LongLongHashMap[] words;
+	private int userCount;
+	private long sequence;
+
+	public UserPoolMap() {
+		this.words = new LongLongHashMap[] {new LongLongHashMap(0L)};
+	}
+
+	private UserPoolMap(UserPoolMap other) {
+		this.words = new LongLongHashMap[other.words.length];
+		for (int i = 0; i < this.words.length; i++) {
+			this.words[i] = other.words[i].copy();
+		}
+		this.userCount = other.userCount;
+		this.sequence = other.sequence;
+	}
+
+	private LongLongHashMap getWord(int word) {
+		if (word >= this.words.length) {
+			int length = this.words.length;
+			this.words = Arrays.copyOf(this.words, word + 1);
+			for (int i = length; i < this.words.length; i++) {
+				this.words[i] = new LongLongHashMap(0L);
+			}
+		}
+		return this.words[word];
+	}
+
+	public synchronized boolean addPoolToUser(long userId, Pool pool) {
+		LongLongHashMap word = this.getWord(pool.getWord());
+		long bits = word.get(userId);
+		if ((bits & pool.getMask()) != 0L) {
+			return false;
+		}
+		if (!this.hasPools(userId)) {
+			this.userCount++;
+		}
+		word.put(userId, bits | pool.getMask());
+		return true;
+	}
+
+	public synchronized boolean removePoolFromUser(long userId, Pool pool) {
+		if (pool.getWord() >= this.words.length) {
+			return false;
+		}
+		LongLongHashMap word = this.words[pool.getWord()];
+		long bits = word.get(userId);
+		if ((bits & pool.getMask()) == 0L) {
+			return false;
+		}
+		long newBits = bits & ~pool.getMask();
+		if (newBits == 0L) {
+			word.remove(userId);
+			if (!this.hasPools(userId)) {
+				this.userCount--;
+			}
+		} else {
+			word.put(userId, newBits);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every user from a pool, used when the pool is deleted.
+	 *
+	 * @return The number of users that were in the pool.
+	 */
+	public synchronized int removePool(Pool pool) {
+		if (pool.getWord() >= this.words.length) {
+			return 0;
+		}
+		List<Long> userIds = new ArrayList<>();
+		this.words[pool.getWord()].forEach((userId, bits) -> {
+			if ((bits & pool.getMask()) != 0L) {
+				userIds.add(userId);
+			}
+		});
+		for (long userId : userIds) {
+			this.removePoolFromUser(userId, pool);
+		}
+		return userIds.size();
+	}
+
+	/**
+	 * @return The {@link Pool}s the user is in, empty if the user isn't in any.
+	 */
+	public synchronized PoolSet getPools(long userId) {
+		if (this.words.length == 1) {
+			long bits = this.words[0].get(userId);
+			return bits == 0L ? PoolSet.EMPTY : PoolSet.of(bits);
+		}
+		long[] bits = new long[this.words.length];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = this.words[i].get(userId);
+		}
+		return PoolSet.of(bits);
+	}
+
+	public synchronized boolean isUserInPool(long userId, Pool pool) {
+		return pool.getWord() < this.words.length && (this.words[pool.getWord()].get(userId) & pool.getMask()) != 0L;
+	}
+
+	private boolean hasPools(long userId) {
+		return this.hasPoolsBefore(userId, this.words.length);
+	}
+
+	private boolean hasPoolsBefore(long userId, int word) {
+		for (int i = 0; i < word; i++) {
+			if (this.words[i].containsKey(userId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized int size() {
+		return this.userCount;
+	}
+
+	/**
+	 * Calls a consumer with every user in at least one pool and their pools.
+	 */
+	public synchronized void forEach(PoolStore.UserConsumer consumer) {
+		for (int i = 0; i < this.words.length; i++) {
+			int word = i;
+			//Users are visited from the first word they have pools in.
+			this.words[word].forEach((userId, bits) -> {
+				if (!this.hasPoolsBefore(userId, word)) {
+					consumer.accept(userId, this.getPools(userId));
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return The IDs of all the users in any pool, in ascending order.
+	 */
+	public synchronized long[] getSortedUserIds() {
+		long[] userIds = new long[this.userCount];
+		int[] index = new int[1];
+		this.forEach((userId, pools) -> userIds[index[0]++] = userId);
+		Arrays.sort(userIds);
+		return userIds;
+	}
+
+	/**
+	 * Sets the pools of a user that isn't in any yet directly, used when loading snapshots.
+	 */
+	synchronized void putPools(long userId, PoolSet pools) {
+		if (pools.isEmpty() || this.hasPools(userId)) {
+			return;
+		}
+		for (int i = 0; i < pools.getWordCount(); i++) {
+			long bits = pools.getWord(i);
+			if (bits != 0L) {
+				this.getWord(i).put(userId, bits);
+			}
+		}
+		this.userCount++;
+	}
+
+	public synchronized long getSequence() {
+		return this.sequence;
+	}
+
+	public synchronized void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return A copy of this map to take a snapshot from.
+	 */
+	public synchronized UserPoolMap copy() {
+		return new UserPoolMap(this);
+	}
+
+	/**
+	 * Streams the map to and from JSON, so loading never needs the whole file or a JSON tree in memory.
+	 */
+	public static class Codec extends TypeAdapter<UserPoolMap> {
+
+		@Override
+		public void write(JsonWriter writer, UserPoolMap map) throws IOException {
+			writer.beginObject();
+			writer.name("sequence").value(map.getSequence());
+			writer.name("entries").beginArray();
+			IOException[] exception = new IOException[1];
+			map.forEach((userId, pools) -> {
+				if (exception[0] == null) {
+					try {
+						writer.beginObject();
+						writer.name("userId").value(userId);
+						writer.name("pools").beginArray();
+						IOException[] poolException = new IOException[1];
+						pools.forEach(pool -> {
+							try {
+								writer.value(pool.getName());
+							} catch (IOException e) {
+								poolException[0] = e;
+							}
+						});
+						if (poolException[0] != null) {
+							throw poolException[0];
+						}
+						writer.endArray();
+						writer.endObject();
+					} catch (IOException e) {
+						exception[0] = e;
+					}
+				}
+			});
+			if (exception[0] != null) {
+				throw exception[0];
+			}
+			writer.endArray();
+			writer.endObject();
+		}
+
+		@Override
+		public UserPoolMap read(JsonReader reader) throws IOException {
+			UserPoolMap userPoolMap = new UserPoolMap();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("sequence")) {
+					userPoolMap.setSequence(reader.nextLong());
+				} else if (name.equals("entries")) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						readEntry(reader, userPoolMap);
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return userPoolMap;
+		}
+
+		private static void readEntry(JsonReader reader, UserPoolMap userPoolMap) throws IOException {
+			long id = 0L;
+			PoolSet pools = PoolSet.EMPTY;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("userId")) {
+					id = reader.nextLong();
+				} else if (name.equals("pools")) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						String poolName = reader.nextString();
+						Pool pool = Pool.byName(poolName);
+						if (pool != null) {
+							pools = pools.with(pool);
+						} else {
+							System.out.println("WARNING: Unknown pool " + poolName + " in user pools");
+						}
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (id != 0L) {
+				userPoolMap.putPools(id, pools);
+			}
+		}
+
+	}
+}
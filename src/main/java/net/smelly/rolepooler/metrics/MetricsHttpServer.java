@@ -0,0 +1,65 @@
+package net.smelly.rolepooler.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a {@link MetricsRegistry} in the Prometheus text format on {@code /metrics}.
+ *
+ * @author Luke Tonon
+ */
+public final class MetricsHttpServer {
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private final HttpServer server;
+
+	/**
+	 * Starts serving the metrics.
+	 *
+	 * @param host The address to bind to, this should usually be a loopback address.
+	 * @param port The port to bind to.
+	 * @throws IOException If the server couldn't be bound.
+	 */
+	public MetricsHttpServer(MetricsRegistry registry, String host, int port) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		this.server.createContext("/metrics", exchange -> this.handle(exchange, registry));
+		this.server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Role Pooler Metrics Server");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		this.server.start();
+	}
+
+	private void handle(HttpExchange exchange, MetricsRegistry registry) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+			registry.writePrometheus(writer);
+			writer.flush();
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, bytes.size());
+			try (OutputStream body = exchange.getResponseBody()) {
+				bytes.writeTo(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public void stop() {
+		this.server.stop(0);
+	}
+}
@@ -0,0 +1,85 @@
+package net.smelly.rolepooler.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes a {@link MetricsRegistry} through JMX, with an attribute for every sample.
+ * <p>Attributes are named after their sample with the label value appended after a dot, for example {@code role_pooler_role_events_total.BOOSTER}.
+ * The attributes are read fresh on every call, so samples for guilds seen after registering show up as well.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class MetricsMBean implements DynamicMBean {
+	private final MetricsRegistry registry;
+
+	public MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Registers a registry with the platform MBean server.
+	 *
+	 * @param name The object name to register the registry under.
+	 * @throws JMException If the registry couldn't be registered.
+	 */
+	public static void register(MetricsRegistry registry, String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), new ObjectName(name));
+	}
+
+	private Map<String, Double> readSamples() {
+		Map<String, Double> samples = new LinkedHashMap<>();
+		this.registry.collect((sampleName, labelName, labelValue, value) -> samples.put(labelValue != null ? sampleName + "." + labelValue : sampleName, value));
+		return samples;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Double value = this.readSamples().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Double> samples = this.readSamples();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Double value = samples.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String name : this.readSamples().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+		}
+		return new MBeanInfo(this.getClass().getName(), "Role Pooler metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+}
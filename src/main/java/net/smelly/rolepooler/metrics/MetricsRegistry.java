@@ -0,0 +1,279 @@
+package net.smelly.rolepooler.metrics;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A minimal registry of counters, timers and gauges that can be read by every exporter of the bot.
+ * <p>Metrics are grouped into {@link Family families} that share a name and optionally split their values by a single label, such as a guild ID or a pool.
+ * Recording a value is lock-free, so metrics can be updated from the gateway, dispatcher and writer threads without slowing them down.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class MetricsRegistry {
+	private final List<Family<?>> families = new CopyOnWriteArrayList<>();
+	private final String prefix;
+
+	/**
+	 * @param prefix The prefix added to the name of every metric.
+	 */
+	public MetricsRegistry(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public Family<Counter> counter(String name, String help, @Nullable String labelName) {
+		return this.register(new Family<>(this.prefix + name, help, Type.COUNTER, labelName, label -> new Counter()));
+	}
+
+	public Family<Timer> timer(String name, String help, @Nullable String labelName) {
+		return this.register(new Family<>(this.prefix + name, help, Type.SUMMARY, labelName, label -> new Timer()));
+	}
+
+	public Family<Gauge> gauge(String name, String help, LongSupplier supplier) {
+		Family<Gauge> family = this.register(new Family<>(this.prefix + name, help, Type.GAUGE, null, label -> new Gauge(supplier)));
+		family.get(null);
+		return family;
+	}
+
+	/**
+	 * Registers a gauge with a metric for each label value, such as the depth of each lane of a queue.
+	 */
+	public Family<Gauge> gauge(String name, String help, String labelName, Map<String, LongSupplier> suppliers) {
+		Family<Gauge> family = this.register(new Family<>(this.prefix + name, help, Type.GAUGE, labelName, label -> new Gauge(suppliers.get(label))));
+		suppliers.keySet().forEach(family::get);
+		return family;
+	}
+
+	private <M extends Metric> Family<M> register(Family<M> family) {
+		this.families.add(family);
+		return family;
+	}
+
+	public List<Family<?>> getFamilies() {
+		return this.families;
+	}
+
+	/**
+	 * Passes every sample of every metric to a consumer, in the order the metrics were registered.
+	 */
+	public void collect(SampleConsumer consumer) {
+		for (Family<?> family : this.families) {
+			family.collect(consumer);
+		}
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 *
+	 * @throws IOException If an exception occurs writing the metrics.
+	 */
+	public void writePrometheus(Writer writer) throws IOException {
+		for (Family<?> family : this.families) {
+			writer.write("# HELP " + family.name + " " + family.help + "\n");
+			writer.write("# TYPE " + family.name + " " + family.type.name().toLowerCase() + "\n");
+			IOException[] exception = new IOException[1];
+			family.collect((sampleName, labelName, labelValue, value) -> {
+				if (exception[0] == null) {
+					try {
+						writer.write(sampleName);
+						if (labelName != null) {
+							writer.write("{" + labelName + "=\"" + labelValue.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}");
+						}
+						writer.write(" " + formatValue(value) + "\n");
+					} catch (IOException e) {
+						exception[0] = e;
+					}
+				}
+			});
+			if (exception[0] != null) {
+				throw exception[0];
+			}
+		}
+	}
+
+	/**
+	 * Formats a sample value without a trailing {@code .0} for whole numbers.
+	 */
+	public static String formatValue(double value) {
+		return value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long) value) : String.valueOf(value);
+	}
+
+	public enum Type {
+		COUNTER,
+		GAUGE,
+		SUMMARY
+	}
+
+	/**
+	 * A group of metrics with the same name, one for each value of the family's label.
+	 */
+	public static final class Family<M extends Metric> {
+		private final Map<String, M> metrics = new ConcurrentSkipListMap<>();
+		private final String name;
+		private final String help;
+		private final Type type;
+		@Nullable
+		private final String labelName;
+		private final Function<String, M> factory;
+
+		private Family(String name, String help, Type type, @Nullable String labelName, Function<String, M> factory) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.labelName = labelName;
+			this.factory = factory;
+		}
+
+		/**
+		 * Gets the metric for a label value, creating it if needed.
+		 *
+		 * @param labelValue The value of the label, ignored if the family has no label.
+		 */
+		public M get(@Nullable Object labelValue) {
+			return this.metrics.computeIfAbsent(this.labelName != null ? String.valueOf(labelValue) : "", this.factory);
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public String getHelp() {
+			return this.help;
+		}
+
+		public Type getType() {
+			return this.type;
+		}
+
+		@Nullable
+		public String getLabelName() {
+			return this.labelName;
+		}
+
+		/**
+		 * @return A read-only view of the metrics of this family, keyed by label value and sorted by it.
+		 */
+		public Map<String, M> getMetrics() {
+			return Collections.unmodifiableMap(this.metrics);
+		}
+
+		/**
+		 * @return The sum of the values of every metric in this family, for timers this is the total count.
+		 */
+		public long getTotal() {
+			long total = 0L;
+			for (M metric : this.metrics.values()) {
+				total += metric.getValue();
+			}
+			return total;
+		}
+
+		public void collect(SampleConsumer consumer) {
+			this.metrics.forEach((labelValue, metric) -> metric.collect(this.name, this.labelName, this.labelName != null ? labelValue : null, consumer));
+		}
+	}
+
+	public interface Metric {
+		long getValue();
+
+		void collect(String name, @Nullable String labelName, @Nullable String labelValue, SampleConsumer consumer);
+	}
+
+	public static final class Counter implements Metric {
+		private final LongAdder adder = new LongAdder();
+
+		public void increment() {
+			this.adder.increment();
+		}
+
+		public void add(long amount) {
+			this.adder.add(amount);
+		}
+
+		@Override
+		public long getValue() {
+			return this.adder.sum();
+		}
+
+		@Override
+		public void collect(String name, @Nullable String labelName, @Nullable String labelValue, SampleConsumer consumer) {
+			consumer.accept(name, labelName, labelValue, this.getValue());
+		}
+	}
+
+	/**
+	 * Records durations, exported as a count, a sum and the longest duration in seconds.
+	 */
+	public static final class Timer implements Metric {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+		public void record(long nanos) {
+			this.count.increment();
+			this.totalNanos.add(nanos);
+			this.maxNanos.accumulate(nanos);
+		}
+
+		/**
+		 * Records the time passed since a start time taken from {@link System#nanoTime()}.
+		 */
+		public void recordSince(long startNanos) {
+			this.record(System.nanoTime() - startNanos);
+		}
+
+		@Override
+		public long getValue() {
+			return this.count.sum();
+		}
+
+		public double getTotalSeconds() {
+			return this.totalNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+		}
+
+		public double getMaxSeconds() {
+			return this.maxNanos.get() / (double) TimeUnit.SECONDS.toNanos(1);
+		}
+
+		@Override
+		public void collect(String name, @Nullable String labelName, @Nullable String labelValue, SampleConsumer consumer) {
+			consumer.accept(name + "_count", labelName, labelValue, this.getValue());
+			consumer.accept(name + "_sum", labelName, labelValue, this.getTotalSeconds());
+			consumer.accept(name + "_max", labelName, labelValue, this.getMaxSeconds());
+		}
+	}
+
+	public static final class Gauge implements Metric {
+		private final LongSupplier supplier;
+
+		private Gauge(LongSupplier supplier) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		public long getValue() {
+			return this.supplier.getAsLong();
+		}
+
+		@Override
+		public void collect(String name, @Nullable String labelName, @Nullable String labelValue, SampleConsumer consumer) {
+			consumer.accept(name, labelName, labelValue, this.getValue());
+		}
+	}
+
+	@FunctionalInterface
+	public interface SampleConsumer {
+		void accept(String sampleName, @Nullable String labelName, @Nullable String labelValue, double value);
+	}
+}
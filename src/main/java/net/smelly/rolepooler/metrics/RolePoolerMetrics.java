@@ -0,0 +1,98 @@
+package net.smelly.rolepooler.metrics;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.sync.RoleMutationDispatcher;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics the bot records about its event, REST and persistence pipelines.
+ *
+ * @author Luke Tonon
+ */
+public final class RolePoolerMetrics {
+	private final MetricsRegistry registry = new MetricsRegistry("role_pooler_");
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> roleEvents = this.registry.counter("role_events_total", "Role events handled for pooled roles.", "pool");
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> mutationsQueued = this.registry.counter("role_mutations_queued_total", "Role changes queued to be sent.", "guild");
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> mutationsSucceeded = this.registry.counter("role_mutations_succeeded_total", "Role changes Discord accepted.", "guild");
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> mutationsFailed = this.registry.counter("role_mutations_failed_total", "Role changes that failed to send.", "guild");
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> mutationsRetried = this.registry.counter("role_mutations_retried_total", "Role changes queued again after failing to send.", "guild");
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> mutationsDropped = this.registry.counter("role_mutations_dropped_total", "Role changes restored from the outbox that were dropped because their guild hadn't loaded by startup.", "guild");
+	private final MetricsRegistry.Family<MetricsRegistry.Timer> laneWaits = this.registry.timer("rest_lane_wait_seconds", "Time members waited in each lane before their role changes were sent.", "lane");
+	private final MetricsRegistry.Family<MetricsRegistry.Timer> persistenceWrites = this.registry.timer("persistence_write_seconds", "Time taken to write data files.", "file");
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> persistenceBytes = this.registry.counter("persistence_written_bytes_total", "Bytes written to data files.", "file");
+	private final MetricsRegistry.Family<MetricsRegistry.Timer> eventQueueWaits = this.registry.timer("event_queue_wait_seconds", "Time events waited for an event worker.", null);
+	private final MetricsRegistry.Family<MetricsRegistry.Timer> eventBackpressure = this.registry.timer("event_backpressure_seconds", "Time the gateway was blocked on a full event worker queue.", null);
+	private final MetricsRegistry.Family<MetricsRegistry.Timer> resyncs = this.registry.timer("resync_seconds", "Time taken to resync the members of a guild.", null);
+	private final MetricsRegistry.Family<MetricsRegistry.Timer> reconciles = this.registry.timer("reconcile_seconds", "Time taken to check pooled roles for drift.", null);
+	private final MetricsRegistry.Family<MetricsRegistry.Counter> reconcileRepairs = this.registry.counter("reconcile_repairs_total", "Role changes queued to repair drifted pooled roles.", null);
+
+	public MetricsRegistry getRegistry() {
+		return this.registry;
+	}
+
+	/**
+	 * Registers a gauge, used by the parts of the bot that own a value such as a queue or store size.
+	 */
+	public void gauge(String name, String help, LongSupplier supplier) {
+		this.registry.gauge(name, help, supplier);
+	}
+
+	/**
+	 * Registers a gauge with a value for each label value.
+	 */
+	public void gauge(String name, String help, String labelName, Map<String, LongSupplier> suppliers) {
+		this.registry.gauge(name, help, labelName, suppliers);
+	}
+
+	public void onRoleEvent(Pool pool) {
+		this.roleEvents.get(pool.getName()).increment();
+	}
+
+	public void onMutationsQueued(long guildId, int count) {
+		this.mutationsQueued.get(guildId).add(count);
+	}
+
+	public void onMutationsSucceeded(long guildId, int count) {
+		this.mutationsSucceeded.get(guildId).add(count);
+	}
+
+	public void onMutationsFailed(long guildId, int count) {
+		this.mutationsFailed.get(guildId).add(count);
+	}
+
+	public void onMutationsRetried(long guildId, int count) {
+		this.mutationsRetried.get(guildId).add(count);
+	}
+
+	public void onMutationsDropped(long guildId, int count) {
+		this.mutationsDropped.get(guildId).add(count);
+	}
+
+	public void onLaneWait(RoleMutationDispatcher.Lane lane, long waitNanos) {
+		this.laneWaits.get(lane.name()).record(waitNanos);
+	}
+
+	public void onPersistenceWrite(String fileName, long nanos, long bytes) {
+		this.persistenceWrites.get(fileName).record(nanos);
+		this.persistenceBytes.get(fileName).add(bytes);
+	}
+
+	public void onEventDequeued(long waitNanos) {
+		this.eventQueueWaits.get(null).record(waitNanos);
+	}
+
+	public void onEventBackpressure(long blockedNanos) {
+		this.eventBackpressure.get(null).record(blockedNanos);
+	}
+
+	public void onResync(long nanos) {
+		this.resyncs.get(null).record(nanos);
+	}
+
+	public void onReconcile(long nanos, long repairs) {
+		this.reconciles.get(null).record(nanos);
+		this.reconcileRepairs.get(null).add(repairs);
+	}
+}
@@ -0,0 +1,185 @@
+package net.smelly.rolepooler.recording;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The format of the event recordings written by an {@link EventRecorder}, and a reader for them.
+ * <p>A recording starts with a magic number and the format version, followed by records that each start with their {@link Type}.
+ * The records up to the first event are a snapshot of the bot's state when the recording started, every record after that is an event.
+ * IDs and counts are stored as varints and each event stores the milliseconds since the previous event as a varint, so most events take a dozen bytes or so.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class EventLog {
+	static final int MAGIC = 0x52504556;
+	static final int VERSION = 1;
+
+	private EventLog() {}
+
+	/**
+	 * Opens a recording to read its records in order.
+	 *
+	 * @throws IOException If the file can't be opened or isn't a recording.
+	 */
+	public static Reader read(Path path) throws IOException {
+		return new Reader(new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16)));
+	}
+
+	static void writeVarLong(DataOutput output, long value) throws IOException {
+		while ((value & ~0x7FL) != 0L) {
+			output.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInput input) throws IOException {
+		long value = 0L;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = input.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in recording");
+	}
+
+	public enum Type {
+		/**
+		 * Snapshot: a pool, numbered by the order pools are written in. Holds the pool's name.
+		 */
+		POOL,
+		/**
+		 * Snapshot: a pooled role. Holds the pool's number, the guild and the role.
+		 */
+		POOLED_ROLE,
+		/**
+		 * Snapshot: a user in a pool. Holds the user and the pool's number.
+		 */
+		USER_POOL,
+		/**
+		 * Snapshot: a member of a pooled guild. Holds the guild, the user and the member's pooled roles.
+		 */
+		MEMBER,
+		/**
+		 * Event: a pooled role added to a member that wasn't an echo of the bot's own change. Holds the guild, the user and the role.
+		 */
+		ROLE_ADD,
+		/**
+		 * Event: a pooled role removed from a member that wasn't an echo of the bot's own change. Holds the guild, the user and the role.
+		 */
+		ROLE_REMOVE,
+		/**
+		 * Event: a member joining a guild. Holds the guild and the user.
+		 */
+		MEMBER_JOIN,
+		/**
+		 * Event: a member leaving a guild. Holds the guild and the user.
+		 */
+		MEMBER_LEAVE;
+
+		private static final Type[] VALUES = values();
+
+		public boolean isEvent() {
+			return this.ordinal() >= ROLE_ADD.ordinal();
+		}
+	}
+
+	/**
+	 * A record of a recording, only the fields its {@link Type} holds are set.
+	 */
+	public static final class Record {
+		public final Type type;
+		public final long timeMillis;
+		public final long guildId;
+		public final long userId;
+		public final long roleId;
+		public final int pool;
+		public final String poolName;
+		public final long[] roleIds;
+
+		Record(Type type, long timeMillis, long guildId, long userId, long roleId, int pool, String poolName, long[] roleIds) {
+			this.type = type;
+			this.timeMillis = timeMillis;
+			this.guildId = guildId;
+			this.userId = userId;
+			this.roleId = roleId;
+			this.pool = pool;
+			this.poolName = poolName;
+			this.roleIds = roleIds;
+		}
+	}
+
+	public static final class Reader implements Closeable {
+		private static final long[] NO_ROLES = new long[0];
+		private final DataInputStream input;
+		private long timeMillis;
+
+		private Reader(DataInputStream input) throws IOException {
+			this.input = input;
+			try {
+				if (input.readInt() != MAGIC) {
+					throw new IOException("Not a Role Pooler recording");
+				}
+				int version = input.readInt();
+				if (version != VERSION) {
+					throw new IOException("Unsupported recording version " + version);
+				}
+			} catch (IOException e) {
+				input.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return The next record, or null at the end of the recording. A record cut off by the bot stopping is treated as the end.
+		 * @throws IOException If an exception occurs reading the file.
+		 */
+		public Record next() throws IOException {
+			int typeId = this.input.read();
+			if (typeId < 0) {
+				return null;
+			}
+			if (typeId >= Type.VALUES.length) {
+				throw new IOException("Unknown record type " + typeId);
+			}
+			Type type = Type.VALUES[typeId];
+			try {
+				switch (type) {
+					case POOL:
+						return new Record(type, 0L, 0L, 0L, 0L, 0, this.input.readUTF(), NO_ROLES);
+					case POOLED_ROLE:
+						return new Record(type, 0L, readVarLong(this.input), 0L, readVarLong(this.input), (int) readVarLong(this.input), null, NO_ROLES);
+					case USER_POOL:
+						return new Record(type, 0L, 0L, readVarLong(this.input), 0L, (int) readVarLong(this.input), null, NO_ROLES);
+					case MEMBER: {
+						long guildId = readVarLong(this.input);
+						long userId = readVarLong(this.input);
+						long[] roleIds = new long[(int) readVarLong(this.input)];
+						for (int i = 0; i < roleIds.length; i++) {
+							roleIds[i] = readVarLong(this.input);
+						}
+						return new Record(type, 0L, guildId, userId, 0L, 0, null, roleIds);
+					}
+					default: {
+						this.timeMillis += readVarLong(this.input);
+						long guildId = readVarLong(this.input);
+						long userId = readVarLong(this.input);
+						long roleId = type == Type.ROLE_ADD || type == Type.ROLE_REMOVE ? readVarLong(this.input) : 0L;
+						return new Record(type, this.timeMillis, guildId, userId, roleId, 0, null, NO_ROLES);
+					}
+				}
+			} catch (EOFException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.input.close();
+		}
+	}
+}
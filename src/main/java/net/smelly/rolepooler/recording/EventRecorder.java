@@ -0,0 +1,180 @@
+package net.smelly.rolepooler.recording;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.ServerDataManager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the role and member events the bot handles to a compact file in the {@link EventLog} format, to be replayed offline.
+ * <p>The recording starts with a snapshot of the pooled roles, the user pools and the cached members of the pooled guilds with their pooled roles, taken once the bot has started.
+ * Only role events for pooled roles that aren't echoes of the bot's own changes are recorded, since a replay makes its own echoes.</p>
+ * <p>Records are written from the event workers, so the file holds each user's events in the order they were handled.
+ * Writes are buffered and flushed with each flush of the persistence writer.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class EventRecorder {
+	private final Path path;
+	private final DataOutputStream output;
+	private boolean started;
+	private long lastTimeMillis;
+	//Set once the recording is closed or a write fails.
+	private boolean stopped;
+
+	/**
+	 * @param folder The folder to create the recording in, the recording is named after the time it was started.
+	 * @throws IOException If the recording couldn't be created.
+	 */
+	public EventRecorder(Path folder) throws IOException {
+		this.path = folder.resolve("recording-" + System.currentTimeMillis() + ".rpev");
+		this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.path), 1 << 16));
+		this.output.writeInt(EventLog.MAGIC);
+		this.output.writeInt(EventLog.VERSION);
+		System.out.println("Recording events to " + this.path);
+	}
+
+	/**
+	 * Writes the snapshot the recorded events start from, events are only recorded after this.
+	 */
+	public synchronized void writeSnapshot(ServerDataManager manager) {
+		if (this.started) {
+			return;
+		}
+		try {
+			//Pool records are written for every index so the pool indices of later records line up, deleted pools get an empty name.
+			int indexLimit = Pool.getIndexLimit();
+			for (int i = 0; i < indexLimit; i++) {
+				Pool pool = Pool.byIndex(i);
+				this.output.writeByte(EventLog.Type.POOL.ordinal());
+				this.output.writeUTF(pool != null ? pool.getName() : "");
+			}
+			List<Guild> guilds = new ArrayList<>();
+			for (Pool pool : Pool.values()) {
+				if (pool.getIndex() >= indexLimit) {
+					continue;
+				}
+				long[] guildRolePairs = manager.getRoutingTable().getTargets(pool);
+				for (int i = 0; i < guildRolePairs.length; i += 2) {
+					this.output.writeByte(EventLog.Type.POOLED_ROLE.ordinal());
+					EventLog.writeVarLong(this.output, guildRolePairs[i]);
+					EventLog.writeVarLong(this.output, guildRolePairs[i + 1]);
+					EventLog.writeVarLong(this.output, pool.getIndex());
+					Guild guild = ServerDataManager.resolveGuild(guildRolePairs[i]);
+					if (guild != null && !guilds.contains(guild)) {
+						guilds.add(guild);
+					}
+				}
+			}
+			IOException[] exception = new IOException[1];
+			manager.forEachPooledUser((userId, pools) -> pools.forEach(pool -> {
+				if (pool.getIndex() >= indexLimit) {
+					return;
+				}
+				try {
+					this.output.writeByte(EventLog.Type.USER_POOL.ordinal());
+					EventLog.writeVarLong(this.output, userId);
+					EventLog.writeVarLong(this.output, pool.getIndex());
+				} catch (IOException e) {
+					exception[0] = e;
+				}
+			}));
+			if (exception[0] != null) {
+				throw exception[0];
+			}
+			for (Guild guild : guilds) {
+				for (Member member : guild.getMembers()) {
+					List<Role> pooledRoles = new ArrayList<>();
+					for (Role role : member.getRoles()) {
+						if (manager.getPoolForRole(role) != null) {
+							pooledRoles.add(role);
+						}
+					}
+					this.output.writeByte(EventLog.Type.MEMBER.ordinal());
+					EventLog.writeVarLong(this.output, guild.getIdLong());
+					EventLog.writeVarLong(this.output, member.getIdLong());
+					EventLog.writeVarLong(this.output, pooledRoles.size());
+					for (Role role : pooledRoles) {
+						EventLog.writeVarLong(this.output, role.getIdLong());
+					}
+				}
+			}
+			this.output.flush();
+		} catch (IOException e) {
+			this.fail(e);
+		}
+		this.started = true;
+		this.lastTimeMillis = System.currentTimeMillis();
+	}
+
+	public void recordRoleChange(long guildId, long userId, long roleId, boolean added) {
+		this.record(added ? EventLog.Type.ROLE_ADD : EventLog.Type.ROLE_REMOVE, guildId, userId, roleId);
+	}
+
+	public void recordMemberJoin(long guildId, long userId) {
+		this.record(EventLog.Type.MEMBER_JOIN, guildId, userId, 0L);
+	}
+
+	public void recordMemberLeave(long guildId, long userId) {
+		this.record(EventLog.Type.MEMBER_LEAVE, guildId, userId, 0L);
+	}
+
+	private synchronized void record(EventLog.Type type, long guildId, long userId, long roleId) {
+		if (!this.started || this.stopped) {
+			return;
+		}
+		long timeMillis = System.currentTimeMillis();
+		try {
+			this.output.writeByte(type.ordinal());
+			EventLog.writeVarLong(this.output, Math.max(0L, timeMillis - this.lastTimeMillis));
+			EventLog.writeVarLong(this.output, guildId);
+			EventLog.writeVarLong(this.output, userId);
+			if (roleId != 0L) {
+				EventLog.writeVarLong(this.output, roleId);
+			}
+		} catch (IOException e) {
+			this.fail(e);
+		}
+		this.lastTimeMillis = Math.max(this.lastTimeMillis, timeMillis);
+	}
+
+	/**
+	 * Writes any buffered records to the file.
+	 */
+	public synchronized void flush() {
+		if (!this.stopped) {
+			try {
+				this.output.flush();
+			} catch (IOException e) {
+				this.fail(e);
+			}
+		}
+	}
+
+	public synchronized void close() {
+		this.stopped = true;
+		try {
+			this.output.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops recording after a write fails, the records written before the failure can still be replayed.
+	 */
+	private void fail(IOException e) {
+		this.stopped = true;
+		System.out.println("Stopped recording events to " + this.path);
+		e.printStackTrace();
+	}
+}
@@ -0,0 +1,107 @@
+package net.smelly.rolepooler.sync;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table of the role changes the bot has started that Discord hasn't echoed back yet.
+ * <p>When the bot changes a role, the gateway sends the change back as a role event. Recognizing these echoes stops a pooled change
+ * from fanning out again from every guild it reached, which would otherwise make a change in one guild cost a request for every pair of pooled guilds.</p>
+ * <p>Entries expire after a timeout, so changes that never get echoed don't suppress a later real change.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class EchoSuppressor {
+	private final ConcurrentHashMap<Mutation, Long> inFlight = new ConcurrentHashMap<>();
+	private final long timeoutNanos;
+
+	/**
+	 * @param timeoutMillis The time in milliseconds a recorded change waits for its echo.
+	 */
+	public EchoSuppressor(long timeoutMillis) {
+		this.timeoutNanos = timeoutMillis * 1000000L;
+	}
+
+	/**
+	 * Records a role change the bot is about to make.
+	 */
+	public void record(long guildId, long userId, long roleId, boolean added) {
+		this.inFlight.put(new Mutation(guildId, userId, roleId, added), System.nanoTime() + this.timeoutNanos);
+	}
+
+	/**
+	 * Forgets a recorded role change, used when the change failed and won't be echoed.
+	 */
+	public void forget(long guildId, long userId, long roleId, boolean added) {
+		this.inFlight.remove(new Mutation(guildId, userId, roleId, added));
+	}
+
+	/**
+	 * Checks if a role event is the echo of a change the bot made, removing the change from the table if it is.
+	 *
+	 * @return If the event is an echo and should be ignored.
+	 */
+	public boolean consume(long guildId, long userId, long roleId, boolean added) {
+		Long expiry = this.inFlight.remove(new Mutation(guildId, userId, roleId, added));
+		return expiry != null && expiry - System.nanoTime() > 0L;
+	}
+
+	/**
+	 * @return If a change to the role of the member, in either direction, is still waiting for its echo.
+	 */
+	public boolean isAwaiting(long guildId, long userId, long roleId) {
+		long now = System.nanoTime();
+		Long added = this.inFlight.get(new Mutation(guildId, userId, roleId, true));
+		Long removed = this.inFlight.get(new Mutation(guildId, userId, roleId, false));
+		return (added != null && added - now > 0L) || (removed != null && removed - now > 0L);
+	}
+
+	/**
+	 * Removes all the expired changes from the table.
+	 */
+	public void expire() {
+		long now = System.nanoTime();
+		this.inFlight.values().removeIf(expiry -> expiry - now <= 0L);
+	}
+
+	public long getTimeoutMillis() {
+		return this.timeoutNanos / 1000000L;
+	}
+
+	public int size() {
+		return this.inFlight.size();
+	}
+
+	private static final class Mutation {
+		private final long guildId;
+		private final long userId;
+		private final long roleId;
+		private final boolean added;
+
+		private Mutation(long guildId, long userId, long roleId, boolean added) {
+			this.guildId = guildId;
+			this.userId = userId;
+			this.roleId = roleId;
+			this.added = added;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (this == object) {
+				return true;
+			}
+			if (!(object instanceof Mutation)) {
+				return false;
+			}
+			Mutation other = (Mutation) object;
+			return this.guildId == other.guildId && this.userId == other.userId && this.roleId == other.roleId && this.added == other.added;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = Long.hashCode(this.guildId);
+			hash = 31 * hash + Long.hashCode(this.userId);
+			hash = 31 * hash + Long.hashCode(this.roleId);
+			return 31 * hash + (this.added ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package net.smelly.rolepooler.sync;
+
+import net.smelly.rolepooler.data.MembershipJournal;
+import net.smelly.rolepooler.data.PersistenceWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An append-only file of the role changes the {@link RoleMutationDispatcher} has queued but Discord hasn't accepted yet, kept in the data folder.
+ * <p>Each change is appended as a line in the form {@code <sequence> +<guildId> <userId> <roleId> <lane>} or {@code <sequence> -<guildId> <userId> <roleId> <lane>},
+ * and acknowledged with a {@code <sequence> ack} line once it's been applied or given up on. A later change to the same role of the same member replaces the earlier one.</p>
+ * <p>Appended changes are buffered and written out before the dispatcher sends anything, so a change is always in the file before its request is.
+ * The changes that were never acknowledged are read back when the bot starts, so a restart mid-burst only resends those changes.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class MutationOutbox {
+	private final Path path;
+	private final MembershipJournal.FsyncPolicy fsyncPolicy;
+	private final long compactBytes;
+	private final Map<Long, Entry> entries = new LinkedHashMap<>();
+	private final Map<Key, Long> sequencesByKey = new HashMap<>();
+	private final StringBuilder buffer = new StringBuilder();
+	private FileChannel channel;
+	//Compacting only happens once the file has doubled since the last compaction, so a large backlog of changes doesn't get rewritten on every flush.
+	private long nextCompactSize;
+	private long sequence;
+	private boolean unsynced;
+	private boolean closed;
+
+	/**
+	 * Opens the outbox, reading back the changes that were never acknowledged and compacting the file down to them.
+	 * <p>A partially written last line, left over from a crash, is skipped.</p>
+	 *
+	 * @param path         The path of the outbox file.
+	 * @param fsyncPolicy  When written changes should be forced to disk.
+	 * @param compactBytes The size in bytes the file can grow to before it gets compacted down to the changes that haven't been acknowledged.
+	 * @throws IOException If an exception occurs reading or compacting the file.
+	 */
+	public MutationOutbox(Path path, MembershipJournal.FsyncPolicy fsyncPolicy, long compactBytes) throws IOException {
+		this.path = path;
+		this.fsyncPolicy = fsyncPolicy;
+		this.compactBytes = compactBytes;
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				this.readLine(line);
+			}
+		} catch (NoSuchFileException e) {
+			//There's nothing to read back the first time the bot starts.
+		}
+		this.compact();
+	}
+
+	private void readLine(String line) {
+		String[] parts = line.split(" ");
+		try {
+			long entrySequence = Long.parseLong(parts[0]);
+			this.sequence = Math.max(this.sequence, entrySequence);
+			if (parts.length == 2 && parts[1].equals("ack")) {
+				this.remove(entrySequence);
+				return;
+			}
+			if (parts.length == 5 && parts[1].length() >= 2 && (parts[1].charAt(0) == '+' || parts[1].charAt(0) == '-')) {
+				this.put(new Entry(entrySequence, Long.parseLong(parts[1].substring(1)), Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[1].charAt(0) == '+', RoleMutationDispatcher.Lane.valueOf(parts[4])));
+				return;
+			}
+		} catch (IllegalArgumentException e) {
+			//Falls through to the warning below.
+		}
+		System.out.println("WARNING: Skipping malformed outbox entry: " + line);
+	}
+
+	/**
+	 * @return The changes that haven't been acknowledged yet, in the order they were appended.
+	 */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<>(this.entries.values());
+	}
+
+	/**
+	 * @return The number of changes that haven't been acknowledged yet.
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Appends a change, replacing any change to the same role of the member that hasn't been acknowledged yet.
+	 * <p>The change is only buffered, it gets written out by the next call to {@link #flush()}.</p>
+	 *
+	 * @return The sequence number of the change, used to acknowledge it.
+	 */
+	public synchronized long append(long guildId, long userId, long roleId, boolean add, RoleMutationDispatcher.Lane lane) {
+		Entry entry = new Entry(++this.sequence, guildId, userId, roleId, add, lane);
+		if (!this.closed) {
+			this.put(entry);
+			this.buffer.append(entry.toLine());
+		}
+		return entry.sequence;
+	}
+
+	/**
+	 * Acknowledges a change once it's been applied or given up on, changes that have been replaced since they were appended are ignored.
+	 */
+	public synchronized void acknowledge(long entrySequence) {
+		if (!this.closed && this.remove(entrySequence)) {
+			this.buffer.append(entrySequence).append(" ack\n");
+		}
+	}
+
+	/**
+	 * @return If a change hasn't been acknowledged or replaced by a later change to the same role of the member.
+	 */
+	public synchronized boolean isPending(long entrySequence) {
+		return this.entries.containsKey(entrySequence);
+	}
+
+	/**
+	 * @return If there's a change to the role of the member that hasn't been acknowledged yet.
+	 */
+	public synchronized boolean hasEntry(long guildId, long userId, long roleId) {
+		return this.sequencesByKey.containsKey(new Key(guildId, userId, roleId));
+	}
+
+	/**
+	 * Acknowledges every change for a guild, used when the bot leaves it.
+	 */
+	public synchronized void acknowledgeGuild(long guildId) {
+		List<Long> sequences = new ArrayList<>();
+		for (Entry entry : this.entries.values()) {
+			if (entry.guildId == guildId) {
+				sequences.add(entry.sequence);
+			}
+		}
+		sequences.forEach(this::acknowledge);
+	}
+
+	/**
+	 * Writes the buffered lines to the file, forcing them to disk if the fsync policy is {@link MembershipJournal.FsyncPolicy#ALWAYS}.
+	 * <p>Failures are printed rather than thrown, the changes still get sent but won't survive a restart.</p>
+	 */
+	public synchronized void flush() {
+		if (this.closed || this.buffer.length() == 0) {
+			return;
+		}
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(this.buffer.toString().getBytes(StandardCharsets.UTF_8));
+			this.buffer.setLength(0);
+			while (bytes.hasRemaining()) {
+				this.channel.write(bytes);
+			}
+			if (this.fsyncPolicy == MembershipJournal.FsyncPolicy.ALWAYS) {
+				this.channel.force(false);
+			} else {
+				this.unsynced = true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Flushes the outbox, syncs it if the fsync policy is {@link MembershipJournal.FsyncPolicy#INTERVAL} and compacts it once it's big enough.
+	 * <p>This runs on the persistence writer thread.</p>
+	 */
+	public synchronized void maintain() {
+		this.flush();
+		if (this.closed) {
+			return;
+		}
+		try {
+			if (this.unsynced && this.fsyncPolicy == MembershipJournal.FsyncPolicy.INTERVAL) {
+				this.channel.force(false);
+				this.unsynced = false;
+			}
+			if (this.channel.size() >= this.nextCompactSize) {
+				this.compact();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The size of the file in bytes, including lines that haven't been written out yet.
+	 */
+	public synchronized long getSize() {
+		try {
+			return this.closed ? 0L : this.channel.size() + this.buffer.length();
+		} catch (IOException e) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * Writes out and closes the outbox, changes appended or acknowledged after this are ignored.
+	 */
+	public synchronized void close() throws IOException {
+		if (!this.closed) {
+			this.flush();
+			this.closed = true;
+			this.channel.force(false);
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Rewrites the file with only the changes that haven't been acknowledged yet.
+	 */
+	private void compact() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+		}
+		Path tempPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+			for (Entry entry : this.entries.values()) {
+				writer.write(entry.toLine());
+			}
+		} catch (IOException e) {
+			this.channel = this.open();
+			throw e;
+		}
+		PersistenceWriter.move(tempPath, this.path);
+		this.channel = this.open();
+		this.channel.force(false);
+		this.unsynced = false;
+		this.nextCompactSize = Math.max(this.compactBytes, this.channel.size() * 2L);
+	}
+
+	private FileChannel open() throws IOException {
+		FileChannel channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		channel.position(size);
+		if (size > 0) {
+			//Terminate a partially written line left by a crash so new lines don't get joined onto it.
+			ByteBuffer lastByte = ByteBuffer.allocate(1);
+			channel.read(lastByte, size - 1);
+			if (lastByte.get(0) != '\n') {
+				channel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+			}
+		}
+		return channel;
+	}
+
+	private void put(Entry entry) {
+		Long replaced = this.sequencesByKey.put(new Key(entry.guildId, entry.userId, entry.roleId), entry.sequence);
+		if (replaced != null) {
+			this.entries.remove(replaced);
+		}
+		this.entries.put(entry.sequence, entry);
+	}
+
+	private boolean remove(long entrySequence) {
+		Entry entry = this.entries.remove(entrySequence);
+		if (entry == null) {
+			return false;
+		}
+		this.sequencesByKey.remove(new Key(entry.guildId, entry.userId, entry.roleId));
+		return true;
+	}
+
+	/**
+	 * A role change that hasn't been acknowledged yet.
+	 */
+	public static final class Entry {
+		private final long sequence;
+		private final long guildId;
+		private final long userId;
+		private final long roleId;
+		private final boolean add;
+		private final RoleMutationDispatcher.Lane lane;
+
+		private Entry(long sequence, long guildId, long userId, long roleId, boolean add, RoleMutationDispatcher.Lane lane) {
+			this.sequence = sequence;
+			this.guildId = guildId;
+			this.userId = userId;
+			this.roleId = roleId;
+			this.add = add;
+			this.lane = lane;
+		}
+
+		public long getSequence() {
+			return this.sequence;
+		}
+
+		public long getGuildId() {
+			return this.guildId;
+		}
+
+		public long getUserId() {
+			return this.userId;
+		}
+
+		public long getRoleId() {
+			return this.roleId;
+		}
+
+		/**
+		 * @return If the role gets added, otherwise it gets removed.
+		 */
+		public boolean isAdd() {
+			return this.add;
+		}
+
+		public RoleMutationDispatcher.Lane getLane() {
+			return this.lane;
+		}
+
+		private String toLine() {
+			return this.sequence + (this.add ? " +" : " -") + this.guildId + " " + this.userId + " " + this.roleId + " " + this.lane.name() + "\n";
+		}
+	}
+
+	private static final class Key {
+		private final long guildId;
+		private final long userId;
+		private final long roleId;
+
+		private Key(long guildId, long userId, long roleId) {
+			this.guildId = guildId;
+			this.userId = userId;
+			this.roleId = roleId;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) object;
+			return key.guildId == this.guildId && key.userId == this.userId && key.roleId == this.roleId;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(this.guildId) * 961 + Long.hashCode(this.userId) * 31 + Long.hashCode(this.roleId);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package net.smelly.rolepooler.sync;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+import net.smelly.rolepooler.ServerDataManager;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds and repairs pooled roles that have drifted from the user pools, such as from events missed while the bot was offline or role changes that failed to send.
+ * <p>For every pooled role, a digest of the cached members holding it is compared against a digest of the cached members of its guild that are in its pool.
+ * A digest is the sum of a hash of each user ID and the number of users, so it doesn't depend on the order users are visited in
+ * and a check is a single pass over the user pools and the role holders with no REST calls or member requests.</p>
+ * <p>Only guilds whose digests differ get repaired, by a targeted resync of their drifted pools that stops once the REST budget of a check is spent, leaving the rest for the next check.
+ * The guild is taken as the source of the events that were missed, in both directions: a member whose pooled role disagrees with their pools is added to or taken out of the pool
+ * and their pooled role in the other guilds is changed to match, as if the role event had been seen.</p>
+ * <p>Roles with a change still in the outbox or waiting for its echo are left out of the check and the repair, as they may only disagree until the change lands,
+ * and so are roles the bot can't manage, since changes to them can never succeed.</p>
+ * <p>When only members with pooled roles are cached, pool members that aren't cached can't be checked, a resync covers those.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class Reconciler {
+	//Gives the cache time to settle after a reconnect before it's checked.
+	private static final long REQUESTED_CHECK_DELAY_SECONDS = 30L;
+	//A repair that takes longer than this is cancelled so it can't hold up the checks after it.
+	private static final long REPAIR_TIMEOUT_MINUTES = 10L;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Role Pooler Reconciler");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicBoolean checkRequested = new AtomicBoolean();
+	private final ServerDataManager manager;
+	private final long restBudget;
+	private volatile int driftedGuilds;
+
+	/**
+	 * @param manager        The data manager to check the pools and roles of.
+	 * @param intervalMillis The interval in milliseconds between checks, checks only happen when requested if this isn't positive.
+	 * @param restBudget     The most role changes a check can make.
+	 */
+	public Reconciler(ServerDataManager manager, long intervalMillis, long restBudget) {
+		this.manager = manager;
+		this.restBudget = restBudget;
+		if (intervalMillis > 0L) {
+			this.executor.scheduleWithFixedDelay(this::check, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+		manager.getMetrics().gauge("reconcile_drifted_guilds", "Guilds whose pooled roles disagreed with their pools at the last check.", () -> this.driftedGuilds);
+	}
+
+	/**
+	 * Requests a check soon, such as after the bot reconnects. Requests made before the check runs are merged into it.
+	 */
+	public void requestCheck() {
+		if (this.checkRequested.compareAndSet(false, true)) {
+			this.executor.schedule(() -> {
+				this.checkRequested.set(false);
+				this.check();
+			}, REQUESTED_CHECK_DELAY_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	private void check() {
+		//A running resync is already fixing everything it would find.
+		if (!this.manager.getStartupGate().isStarted() || this.manager.isResyncing()) {
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			List<GuildDigests> drifted = this.findDriftedGuilds();
+			this.driftedGuilds = drifted.size();
+			long repairs = drifted.isEmpty() ? 0L : this.repair(drifted);
+			this.manager.getMetrics().onReconcile(System.nanoTime() - start, repairs);
+			if (!drifted.isEmpty()) {
+				System.out.println("Reconciler found " + drifted.size() + " drifted guilds and queued " + repairs + " role changes");
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private List<GuildDigests> findDriftedGuilds() {
+		RoutingTable routingTable = this.manager.getRoutingTable();
+		RoleMutationDispatcher dispatcher = this.manager.getDispatcher();
+		Map<Long, GuildDigests> guilds = new HashMap<>();
+		//Pools created during the check are left out of it.
+		int indexLimit = Pool.getIndexLimit();
+		for (Pool pool : Pool.values()) {
+			if (pool.getIndex() >= indexLimit) {
+				continue;
+			}
+			long[] guildRolePairs = routingTable.getTargets(pool);
+			for (int i = 0; i < guildRolePairs.length; i += 2) {
+				long guildId = guildRolePairs[i];
+				Role role = ServerDataManager.resolveRole(guildId, guildRolePairs[i + 1]);
+				if (role != null && this.manager.getStartupGate().isReady(guildId) && ResyncEngine.canManage(role)) {
+					GuildDigests digests = guilds.computeIfAbsent(guildId, id -> new GuildDigests(role.getGuild(), indexLimit));
+					digests.roles[pool.getIndex()] = role;
+					for (Member member : role.getGuild().getMembersWithRoles(role)) {
+						if (!dispatcher.hasPendingChange(guildId, member.getIdLong(), role.getIdLong())) {
+							digests.holders[pool.getIndex()].add(member.getIdLong());
+						}
+					}
+				}
+			}
+		}
+		this.manager.forEachPooledUser((userId, pools) -> pools.forEach(pool -> {
+			long[] guildRolePairs = routingTable.getTargets(pool);
+			for (int i = 0; i < guildRolePairs.length; i += 2) {
+				GuildDigests digests = guilds.get(guildRolePairs[i]);
+				Role role = digests != null ? digests.getRole(pool) : null;
+				if (role != null && digests.guild.getMemberById(userId) != null && !dispatcher.hasPendingChange(guildRolePairs[i], userId, role.getIdLong())) {
+					digests.pooled[pool.getIndex()].add(userId);
+				}
+			}
+		}));
+		List<GuildDigests> drifted = new ArrayList<>();
+		for (GuildDigests digests : guilds.values()) {
+			if (digests.isDrifted()) {
+				drifted.add(digests);
+			}
+		}
+		return drifted;
+	}
+
+	/**
+	 * Resyncs the drifted pools of each drifted guild in turn, until the REST budget is spent.
+	 *
+	 * @return The number of role changes queued.
+	 */
+	private long repair(List<GuildDigests> drifted) {
+		AtomicLong budget = new AtomicLong(this.restBudget);
+		ResyncSummary summary = new ResyncSummary();
+		for (GuildDigests digests : drifted) {
+			if (budget.get() <= 0L) {
+				break;
+			}
+			PoolSet pools = PoolSet.EMPTY;
+			for (Pool pool : Pool.values()) {
+				if (digests.isDrifted(pool)) {
+					pools = pools.with(pool);
+				}
+			}
+			ResyncEngine engine = new ResyncEngine(this.manager, digests.guild, pools, budget, summary);
+			try {
+				engine.start().get(REPAIR_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+			} catch (TimeoutException e) {
+				engine.cancel();
+				System.out.println("WARNING: Reconciling " + digests.guild + " timed out");
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				engine.cancel();
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return summary.getRolesAdded() + summary.getRolesRemoved();
+	}
+
+	public int getDriftedGuilds() {
+		return this.driftedGuilds;
+	}
+
+	/**
+	 * The digests of a guild's pooled roles, indexed by {@link Pool#getIndex()} up to the index limit when the check started.
+	 */
+	private static final class GuildDigests {
+		private final Guild guild;
+		private final Role[] roles;
+		private final Digest[] holders;
+		private final Digest[] pooled;
+
+		private GuildDigests(Guild guild, int indexLimit) {
+			this.guild = guild;
+			this.roles = new Role[indexLimit];
+			this.holders = Digest.array(indexLimit);
+			this.pooled = Digest.array(indexLimit);
+		}
+
+		@Nullable
+		private Role getRole(Pool pool) {
+			return pool.getIndex() < this.roles.length ? this.roles[pool.getIndex()] : null;
+		}
+
+		private boolean isDrifted(Pool pool) {
+			return pool.getIndex() < this.roles.length && !this.holders[pool.getIndex()].equals(this.pooled[pool.getIndex()]);
+		}
+
+		private boolean isDrifted() {
+			for (Pool pool : Pool.values()) {
+				if (this.isDrifted(pool)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * An order-independent digest of a set of user IDs.
+	 */
+	private static final class Digest {
+		private long sum;
+		private long count;
+
+		private static Digest[] array(int length) {
+			Digest[] digests = new Digest[length];
+			for (int i = 0; i < length; i++) {
+				digests[i] = new Digest();
+			}
+			return digests;
+		}
+
+		private void add(long userId) {
+			this.sum += mix(userId);
+			this.count++;
+		}
+
+		/**
+		 * Spreads the bits of an ID so sums of similar IDs don't collide, using the finalizer of SplitMix64.
+		 */
+		private static long mix(long id) {
+			id = (id ^ (id >>> 30)) * 0xBF58476D1CE4E5B9L;
+			id = (id ^ (id >>> 27)) * 0x94D049BB133111EBL;
+			return id ^ (id >>> 31);
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			return object instanceof Digest && ((Digest) object).sum == this.sum && ((Digest) object).count == this.count;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(this.sum);
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package net.smelly.rolepooler.sync;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.utils.concurrent.Task;
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.PoolSet;
+import net.smelly.rolepooler.ServerDataManager;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resyncs the pooled roles of a guild's members.
+ * <p>The guild's members are streamed from Discord in chunks and each member is handled as it arrives, so no list of every member is ever held.
+ * Members' roles are compared against the pools they should be in and only the differences result in REST calls.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class ResyncEngine {
+	private final ServerDataManager manager;
+	private final Guild guild;
+	private final Pass pass;
+	private final Map<Pool, Role> sourceRoles = new LinkedHashMap<>();
+	private final Map<Pool, List<Role>> targetRoles = new LinkedHashMap<>();
+	private final ResyncSummary summary;
+	@Nullable
+	private final AtomicLong restBudget;
+	private final CompletableFuture<ResyncSummary> future = new CompletableFuture<>();
+	//Loading the members counts as one task, each member being handled or fetched counts as another.
+	private final AtomicInteger pendingTasks = new AtomicInteger(1);
+	private volatile Task<Void> loadTask;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param manager The data manager to update the user pools of.
+	 * @param guild   The guild to resync the members of.
+	 */
+	public ResyncEngine(ServerDataManager manager, Guild guild) {
+		this(manager, guild, Pass.PROPAGATE, new ResyncSummary());
+	}
+
+	/**
+	 * @param manager The data manager to update the user pools of.
+	 * @param guild   The guild to resync the members of.
+	 * @param pass    What the resync does with each member.
+	 * @param summary The summary to count the outcome in, this may be shared with other engines.
+	 */
+	public ResyncEngine(ServerDataManager manager, Guild guild, Pass pass, ResyncSummary summary) {
+		this(manager, guild, pass, null, null, summary);
+	}
+
+	/**
+	 * Creates an engine for the {@link Reconciler}, which only propagates the pools of members whose pooled roles in the guild disagree with the pools they're in.
+	 * <p>Roles with a change that's still pending and roles the bot can't manage are left alone, and the engine stops once the REST budget is spent.</p>
+	 *
+	 * @param manager    The data manager to update the user pools of.
+	 * @param guild      The guild to reconcile the members of.
+	 * @param pools      The pools to reconcile.
+	 * @param restBudget The role changes and member fetches left that can be made, this is shared with other engines.
+	 * @param summary    The summary to count the outcome in, this may be shared with other engines.
+	 */
+	ResyncEngine(ServerDataManager manager, Guild guild, PoolSet pools, AtomicLong restBudget, ResyncSummary summary) {
+		this(manager, guild, Pass.PROPAGATE, pools, restBudget, summary);
+	}
+
+	private ResyncEngine(ServerDataManager manager, Guild guild, Pass pass, @Nullable PoolSet pools, @Nullable AtomicLong restBudget, ResyncSummary summary) {
+		this.manager = manager;
+		this.guild = guild;
+		this.pass = pass;
+		this.restBudget = restBudget;
+		this.summary = summary;
+		RoutingTable routingTable = manager.getRoutingTable();
+		long guildId = guild.getIdLong();
+		long[] roles = routingTable.getRoles(guildId);
+		for (Pool pool : Pool.values()) {
+			if (pools != null && !pools.contains(pool)) {
+				continue;
+			}
+			long roleId = pool.getIndex() < roles.length ? roles[pool.getIndex()] : 0L;
+			Role role = roleId != 0L ? guild.getRoleById(roleId) : null;
+			if (role != null && (pools == null || canManage(role))) {
+				this.sourceRoles.put(pool, role);
+				List<Role> targets = new ArrayList<>();
+				if (pass == Pass.PROPAGATE) {
+					long[] guildRolePairs = routingTable.getTargets(pool);
+					for (int i = 0; i < guildRolePairs.length; i += 2) {
+						if (guildRolePairs[i] != guildId) {
+							Role targetRole = ServerDataManager.resolveRole(guildRolePairs[i], guildRolePairs[i + 1]);
+							if (targetRole != null && (pools == null || canManage(targetRole))) {
+								targets.add(targetRole);
+							}
+						}
+					}
+				}
+				this.targetRoles.put(pool, targets);
+			}
+		}
+	}
+
+	/**
+	 * @return If the bot can add and remove the role, roles above the bot's highest role can't be changed by it.
+	 */
+	static boolean canManage(Role role) {
+		return role.getGuild().getSelfMember().canInteract(role);
+	}
+
+	/**
+	 * Resyncs every member of the guild.
+	 * <p>When every member is cached JDA streams them from its cache, otherwise they're requested from Discord without being cached.</p>
+	 *
+	 * @return A future completed with the summary of the resync once every member has been resynced.
+	 */
+	public CompletableFuture<ResyncSummary> start() {
+		if (this.sourceRoles.isEmpty()) {
+			this.future.complete(this.summary);
+			return this.future;
+		}
+		this.loadTask = this.guild.loadMembers(this::resyncMember).onSuccess(result -> this.finishTask()).onError(this.future::completeExceptionally);
+		if (this.cancelled) {
+			this.loadTask.cancel();
+		}
+		return this.future;
+	}
+
+	/**
+	 * Stops requesting members, any members that already arrived are skipped and the future fails with a {@link CancellationException}.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		Task<Void> loadTask = this.loadTask;
+		if (loadTask != null) {
+			loadTask.cancel();
+		}
+		this.future.completeExceptionally(new CancellationException("Resync of " + this.guild + " was cancelled"));
+	}
+
+	/**
+	 * Stops requesting members once the REST budget is spent, completing the future with what was done so far.
+	 */
+	private void stop() {
+		this.cancelled = true;
+		Task<Void> loadTask = this.loadTask;
+		if (loadTask != null) {
+			loadTask.cancel();
+		}
+		this.future.complete(this.summary);
+	}
+
+	private void finishTask() {
+		if (this.pendingTasks.decrementAndGet() == 0) {
+			this.future.complete(this.summary);
+		}
+	}
+
+	/**
+	 * Handles a member of the guild according to the {@link Pass} of this engine.
+	 * <p>The member is handled on their event thread, after their earlier role events, so the resync can't race them.</p>
+	 */
+	public void resyncMember(Member member) {
+		if (this.cancelled) {
+			return;
+		}
+		this.summary.onMemberScanned();
+		this.pendingTasks.incrementAndGet();
+		this.manager.handleUserEvent(this.guild.getIdLong(), member.getIdLong(), () -> {
+			try {
+				if (this.cancelled) {
+					return;
+				}
+				if (this.pass == Pass.APPLY) {
+					this.applyPools(member);
+				} else if (this.restBudget != null) {
+					this.reconcileMember(member);
+				} else {
+					this.propagateMember(member);
+				}
+			} finally {
+				this.finishTask();
+			}
+		});
+	}
+
+	/**
+	 * Updates the pools a member is in from their pooled roles in the guild, fixing their pooled roles in the other pooled guilds to match if propagating.
+	 */
+	private void propagateMember(Member member) {
+		long userId = member.getIdLong();
+		List<Role> roles = member.getRoles();
+		for (Map.Entry<Pool, Role> entry : this.sourceRoles.entrySet()) {
+			Pool pool = entry.getKey();
+			boolean inPool = roles.contains(entry.getValue());
+			if (this.pass == Pass.COLLECT) {
+				if (inPool) {
+					this.manager.addUserToPool(userId, pool);
+				}
+				continue;
+			}
+			if (inPool) {
+				this.manager.addUserToPool(userId, pool);
+			} else {
+				this.manager.removeUserFromPool(userId, pool);
+			}
+			for (Role targetRole : this.targetRoles.get(pool)) {
+				Guild targetGuild = targetRole.getGuild();
+				Member targetMember = targetGuild.getMemberById(userId);
+				if (targetMember == null) {
+					//Members with a pooled role are always cached, so a member that isn't cached can only be missing the role.
+					if (inPool && !this.manager.getMemberCacheMode().cachesAllMembers()) {
+						this.fetchAndAddRole(targetRole, userId);
+					}
+					continue;
+				}
+				this.syncRole(targetMember, targetRole, inPool);
+			}
+		}
+	}
+
+	/**
+	 * Propagates the pooled roles a member has in the guild to the pools they're in and their pooled roles in the other pooled guilds,
+	 * for the pools where the two disagree.
+	 */
+	private void reconcileMember(Member member) {
+		long userId = member.getIdLong();
+		RoleMutationDispatcher dispatcher = this.manager.getDispatcher();
+		PoolSet pools = this.manager.getPools(userId);
+		List<Role> roles = member.getRoles();
+		for (Map.Entry<Pool, Role> entry : this.sourceRoles.entrySet()) {
+			Pool pool = entry.getKey();
+			Role sourceRole = entry.getValue();
+			boolean inPool = roles.contains(sourceRole);
+			//A role with a change still pending may only disagree because the change hasn't landed yet.
+			if (inPool == pools.contains(pool) || dispatcher.hasPendingChange(this.guild.getIdLong(), userId, sourceRole.getIdLong())) {
+				this.summary.onSkipped();
+				continue;
+			}
+			List<Member> changedMembers = new ArrayList<>();
+			List<Role> changedRoles = new ArrayList<>();
+			List<Role> fetchedRoles = new ArrayList<>();
+			for (Role targetRole : this.targetRoles.get(pool)) {
+				Guild targetGuild = targetRole.getGuild();
+				if (dispatcher.hasPendingChange(targetGuild.getIdLong(), userId, targetRole.getIdLong())) {
+					continue;
+				}
+				Member targetMember = targetGuild.getMemberById(userId);
+				if (targetMember == null) {
+					//Members with a pooled role are always cached, so a member that isn't cached can only be missing the role.
+					if (inPool && !this.manager.getMemberCacheMode().cachesAllMembers()) {
+						fetchedRoles.add(targetRole);
+					}
+				} else if (targetMember.getRoles().contains(targetRole) != inPool) {
+					changedMembers.add(targetMember);
+					changedRoles.add(targetRole);
+				}
+			}
+			if (!this.spend(changedRoles.size() + fetchedRoles.size())) {
+				this.stop();
+				return;
+			}
+			if (inPool) {
+				this.manager.addUserToPool(userId, pool);
+			} else {
+				this.manager.removeUserFromPool(userId, pool);
+			}
+			for (int i = 0; i < changedRoles.size(); i++) {
+				this.syncRole(changedMembers.get(i), changedRoles.get(i), inPool);
+			}
+			for (Role targetRole : fetchedRoles) {
+				this.fetchAndAddRole(targetRole, userId);
+			}
+		}
+	}
+
+	/**
+	 * Takes an amount from the REST budget, as long as there's enough of it left.
+	 */
+	private boolean spend(long amount) {
+		long budget;
+		do {
+			budget = this.restBudget.get();
+			if (budget < amount || budget <= 0L) {
+				return false;
+			}
+		} while (!this.restBudget.compareAndSet(budget, budget - amount));
+		return true;
+	}
+
+	/**
+	 * Brings a member's pooled roles in the guild in line with the pools they're in.
+	 */
+	private void applyPools(Member member) {
+		PoolSet pools = this.manager.getPools(member.getIdLong());
+		for (Map.Entry<Pool, Role> entry : this.sourceRoles.entrySet()) {
+			this.syncRole(member, entry.getValue(), pools.contains(entry.getKey()));
+		}
+	}
+
+	private void syncRole(Member member, Role role, boolean inPool) {
+		boolean hasRole = member.getRoles().contains(role);
+		if (inPool && !hasRole) {
+			this.manager.getDispatcher().addRole(role.getGuild().getIdLong(), member.getIdLong(), role.getIdLong(), RoleMutationDispatcher.Lane.BACKGROUND);
+			this.summary.onRoleAdded();
+		} else if (!inPool && hasRole) {
+			this.manager.getDispatcher().removeRole(role.getGuild().getIdLong(), member.getIdLong(), role.getIdLong(), RoleMutationDispatcher.Lane.BACKGROUND);
+			this.summary.onRoleRemoved();
+		} else {
+			this.summary.onSkipped();
+		}
+	}
+
+	/**
+	 * Fetches a member that isn't cached and adds a pooled role to them if they're in the guild and don't have it.
+	 */
+	private void fetchAndAddRole(Role targetRole, long userId) {
+		Guild targetGuild = targetRole.getGuild();
+		this.pendingTasks.incrementAndGet();
+		targetGuild.retrieveMemberById(userId).queue(targetMember -> {
+			if (targetMember.getRoles().contains(targetRole)) {
+				this.summary.onSkipped();
+			} else {
+				this.manager.getDispatcher().addRole(targetGuild.getIdLong(), userId, targetRole.getIdLong(), RoleMutationDispatcher.Lane.BACKGROUND);
+				this.summary.onRoleAdded();
+			}
+			this.finishTask();
+		}, failure -> {
+			ServerDataManager.logUnlessUnknownMember(failure);
+			this.finishTask();
+		});
+	}
+
+	public Guild getGuild() {
+		return this.guild;
+	}
+
+	public ResyncSummary getSummary() {
+		return this.summary;
+	}
+
+	/**
+	 * What a resync does with each member of the guild.
+	 */
+	public enum Pass {
+		/**
+		 * The guild decides which pools its members are in and their pooled roles in the other pooled guilds are fixed to match.
+		 */
+		PROPAGATE,
+		/**
+		 * Members with a pooled role in the guild are added to its pool, no roles are changed and no one is removed from a pool.
+		 */
+		COLLECT,
+		/**
+		 * The pooled roles of the guild's members are fixed to match the pools they're in.
+		 */
+		APPLY
+	}
+}
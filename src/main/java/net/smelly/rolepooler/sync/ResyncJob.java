@@ -0,0 +1,194 @@
+package net.smelly.rolepooler.sync;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.smelly.rolepooler.ServerDataManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A resync of one or more guilds, where only a limited number of guilds have their members streamed at once.
+ * <p>A network-wide job runs in two passes so no single guild's roles override the others. The first pass adds everyone holding a pooled role in any guild to its pool,
+ * the second brings every guild's pooled roles in line with those pools. Users are never removed from a pool by a network-wide job.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class ResyncJob {
+	private final ServerDataManager manager;
+	private final long[] guildIds;
+	private final boolean network;
+	private final int parallelism;
+	private final ResyncSummary summary = new ResyncSummary();
+	private final CompletableFuture<ResyncSummary> future = new CompletableFuture<>();
+	private final Set<ResyncEngine> running = new HashSet<>();
+	private final long startNanos = System.nanoTime();
+	private ResyncEngine.Pass pass;
+	private int nextGuild;
+	private int guildsDone;
+	private int guildsFailed;
+	private boolean advancing;
+	private volatile long finishNanos;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param manager     The data manager to update the user pools of.
+	 * @param guildIds    The IDs of the guilds to resync.
+	 * @param network     If the guilds get resynced together instead of each guild deciding the pools of its members.
+	 * @param parallelism The most guilds to stream members from at once.
+	 */
+	public ResyncJob(ServerDataManager manager, long[] guildIds, boolean network, int parallelism) {
+		this.manager = manager;
+		this.guildIds = guildIds;
+		this.network = network;
+		this.parallelism = Math.max(1, parallelism);
+		this.pass = network ? ResyncEngine.Pass.COLLECT : ResyncEngine.Pass.PROPAGATE;
+	}
+
+	/**
+	 * Starts resyncing the first guilds of the job.
+	 *
+	 * @return A future completed with the summary of the job once every guild has been resynced or the job was cancelled.
+	 */
+	public CompletableFuture<ResyncSummary> start() {
+		this.advance();
+		return this.future;
+	}
+
+	/**
+	 * Cancels the guilds being resynced and stops any more from starting, role changes already queued still get sent.
+	 */
+	public void cancel() {
+		List<ResyncEngine> engines;
+		synchronized (this) {
+			if (this.isDone()) {
+				return;
+			}
+			this.cancelled = true;
+			engines = new ArrayList<>(this.running);
+		}
+		engines.forEach(ResyncEngine::cancel);
+		this.advance();
+	}
+
+	private void advance() {
+		boolean finished;
+		synchronized (this) {
+			//Engines that finish straight away call back into here, the loop below picks up the room they leave.
+			if (this.advancing) {
+				return;
+			}
+			this.advancing = true;
+			try {
+				finished = this.startGuilds();
+			} finally {
+				this.advancing = false;
+			}
+		}
+		if (finished) {
+			this.finishNanos = System.nanoTime();
+			this.future.complete(this.summary);
+		}
+	}
+
+	/**
+	 * @return If every guild of the job has been resynced.
+	 */
+	private boolean startGuilds() {
+		while (true) {
+			while (!this.cancelled && this.running.size() < this.parallelism && this.nextGuild < this.guildIds.length) {
+				this.startGuild(this.guildIds[this.nextGuild++]);
+			}
+			if (!this.running.isEmpty()) {
+				return false;
+			}
+			if (this.cancelled || this.pass != ResyncEngine.Pass.COLLECT) {
+				return true;
+			}
+			this.pass = ResyncEngine.Pass.APPLY;
+			this.nextGuild = 0;
+		}
+	}
+
+	private void startGuild(long guildId) {
+		Guild guild = ServerDataManager.resolveGuild(guildId);
+		if (guild == null) {
+			this.guildsDone++;
+			this.guildsFailed++;
+			return;
+		}
+		ResyncEngine engine = new ResyncEngine(this.manager, guild, this.pass, this.summary);
+		this.running.add(engine);
+		engine.start().whenComplete((summary, failure) -> this.onGuildFinished(engine, failure));
+	}
+
+	private void onGuildFinished(ResyncEngine engine, Throwable failure) {
+		synchronized (this) {
+			this.running.remove(engine);
+			this.guildsDone++;
+			if (failure != null && !(failure instanceof CancellationException)) {
+				this.guildsFailed++;
+				System.out.println("Failed to resync " + engine.getGuild());
+				failure.printStackTrace();
+			}
+		}
+		this.advance();
+	}
+
+	public CompletableFuture<ResyncSummary> getFuture() {
+		return this.future;
+	}
+
+	public ResyncSummary getSummary() {
+		return this.summary;
+	}
+
+	public boolean isNetwork() {
+		return this.network;
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	public boolean isDone() {
+		return this.future.isDone();
+	}
+
+	/**
+	 * @return The number of guilds resynced so far, counting each pass of a network-wide job separately.
+	 */
+	public synchronized int getGuildsDone() {
+		return this.guildsDone;
+	}
+
+	/**
+	 * @return The number of guilds to resync, counting each pass of a network-wide job separately.
+	 */
+	public int getGuildsTotal() {
+		return this.network ? this.guildIds.length * 2 : this.guildIds.length;
+	}
+
+	/**
+	 * @return The number of guilds that couldn't be resynced because they couldn't be seen or their members failed to load.
+	 */
+	public synchronized int getGuildsFailed() {
+		return this.guildsFailed;
+	}
+
+	public synchronized ResyncEngine.Pass getPass() {
+		return this.pass;
+	}
+
+	/**
+	 * @return How long the job has been running for, or how long it ran for once it's done.
+	 */
+	public long getElapsedMillis() {
+		long endNanos = this.isDone() ? this.finishNanos : System.nanoTime();
+		return TimeUnit.NANOSECONDS.toMillis(endNanos - this.startNanos);
+	}
+}
@@ -0,0 +1,63 @@
+package net.smelly.rolepooler.sync;
+
+/**
+ * The outcome of a resync run by a {@link ResyncEngine}.
+ * <p>Members fetched during a resync get counted from JDA's callback threads, so the counts are synchronized.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class ResyncSummary {
+	private long membersScanned;
+	private long rolesAdded;
+	private long rolesRemoved;
+	private long skipped;
+
+	synchronized void onMemberScanned() {
+		this.membersScanned++;
+	}
+
+	synchronized void onRoleAdded() {
+		this.rolesAdded++;
+	}
+
+	synchronized void onRoleRemoved() {
+		this.rolesRemoved++;
+	}
+
+	synchronized void onSkipped() {
+		this.skipped++;
+	}
+
+	/**
+	 * @return The number of members whose pooled roles were checked.
+	 */
+	public synchronized long getMembersScanned() {
+		return this.membersScanned;
+	}
+
+	/**
+	 * @return The number of pooled roles that had to be added.
+	 */
+	public synchronized long getRolesAdded() {
+		return this.rolesAdded;
+	}
+
+	/**
+	 * @return The number of pooled roles that had to be removed.
+	 */
+	public synchronized long getRolesRemoved() {
+		return this.rolesRemoved;
+	}
+
+	/**
+	 * @return The number of pooled roles that were already correct and didn't need a REST call.
+	 */
+	public synchronized long getSkipped() {
+		return this.skipped;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d members scanned, %d roles added, %d roles removed, %d skipped", this.membersScanned, this.rolesAdded, this.rolesRemoved, this.skipped);
+	}
+}
@@ -0,0 +1,51 @@
+package net.smelly.rolepooler.sync;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How role changes that failed to send get retried, with a jittered exponential backoff between attempts.
+ * <p>The delay before a retry doubles with each failed attempt up to a maximum, and a random delay between half of that and all of it is used
+ * so the members that failed together don't all retry at the same moment.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class RetryBackoff {
+	private final long baseDelayNanos;
+	private final long maxDelayNanos;
+	private final int maxAttempts;
+
+	/**
+	 * @param baseDelayMillis The time in milliseconds waited before the first retry.
+	 * @param maxDelayMillis  The longest time in milliseconds waited before a retry.
+	 * @param maxAttempts     The most times a change gets sent before it's given up on.
+	 */
+	public RetryBackoff(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+		this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, baseDelayMillis));
+		this.maxDelayNanos = Math.max(this.baseDelayNanos, TimeUnit.MILLISECONDS.toNanos(maxDelayMillis));
+		this.maxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * @param failedAttempts The number of times the changes have failed to send so far.
+	 * @return If the changes should be sent again.
+	 */
+	public boolean canRetry(int failedAttempts) {
+		return failedAttempts < this.maxAttempts;
+	}
+
+	/**
+	 * @param failedAttempts The number of times the changes have failed to send so far, at least 1.
+	 * @return The time in nanoseconds to wait before sending the changes again.
+	 */
+	public long getDelayNanos(int failedAttempts) {
+		//The shift is capped so the doubled delay can't overflow.
+		int shift = Math.max(0, Math.min(failedAttempts - 1, Long.numberOfLeadingZeros(this.baseDelayNanos) - 2));
+		long delay = Math.min(this.maxDelayNanos, this.baseDelayNanos << shift);
+		return delay / 2L + ThreadLocalRandom.current().nextLong(delay / 2L + 1L);
+	}
+
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+}
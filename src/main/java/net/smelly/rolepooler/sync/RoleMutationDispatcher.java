@@ -0,0 +1,589 @@
+package net.smelly.rolepooler.sync;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.requests.restaction.AuditableRestAction;
+import net.smelly.rolepooler.ServerDataManager;
+import net.smelly.rolepooler.data.LongLongHashMap;
+import net.smelly.rolepooler.metrics.RolePoolerMetrics;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Sits in front of all the role changes the bot makes and batches them per guild.
+ * <p>Changes are collected for a short window before being sent. Within that window an add and a remove of the same role for the same member cancel out,
+ * with the later change winning, and all the changes for a member are merged into a single {@link Guild#modifyMemberRoles(Member, Collection, Collection)} call.
+ * Changes that the member's cached roles show are already applied are dropped.</p>
+ * <p>A member only ever has one request in flight, changes made in the meantime wait for it to finish so that requests never overwrite each other.</p>
+ * <p>Each guild only has a few requests in flight at a time, so JDA's rate limit queue never holds more than that for a guild and the dispatcher decides what goes next.
+ * Changes are queued in a {@link Lane}, and the guild's lanes take turns sending by weight so live changes get through quickly during a resync without starving it.</p>
+ * <p>Every change sent is recorded in an {@link EchoSuppressor} so the role events Discord sends back for it can be recognized.</p>
+ * <p>Every change queued is appended to a {@link MutationOutbox} and acknowledged once Discord accepts it or it's given up on.
+ * Changes that fail because of a server error or a network problem are queued again after a {@link RetryBackoff}, other failures aren't worth retrying.
+ * Changes still waiting for a retry when the bot stops are left in the outbox and get queued again when it starts.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class RoleMutationDispatcher {
+	private static final long ADD = 1L, REMOVE = 0L;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Role Pooler Role Dispatcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ConcurrentHashMap<Long, GuildBatch> batches = new ConcurrentHashMap<>();
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+	private final AtomicInteger[] laneDepths = new AtomicInteger[Lane.VALUES.length];
+	private final long collectionWindowNanos;
+	private final int guildConcurrency;
+	private final RetryBackoff retryBackoff;
+	private final MutationOutbox outbox;
+	private final EchoSuppressor echoSuppressor;
+	private final RolePoolerMetrics metrics;
+
+	/**
+	 * @param collectionWindowMillis The time in milliseconds changes get collected for before they're sent.
+	 * @param echoTimeoutMillis      The time in milliseconds a sent change waits for its echo from the gateway.
+	 * @param guildConcurrency       The number of members of a guild that can have a request in flight at once.
+	 * @param retryBackoff           How changes that failed to send get retried.
+	 * @param outbox                 The outbox to append queued changes to.
+	 * @param metrics                The metrics to record queued, sent and failed changes to.
+	 */
+	public RoleMutationDispatcher(long collectionWindowMillis, long echoTimeoutMillis, int guildConcurrency, RetryBackoff retryBackoff, MutationOutbox outbox, RolePoolerMetrics metrics) {
+		this.collectionWindowNanos = TimeUnit.MILLISECONDS.toNanos(collectionWindowMillis);
+		this.guildConcurrency = Math.max(1, guildConcurrency);
+		this.retryBackoff = retryBackoff;
+		this.outbox = outbox;
+		this.echoSuppressor = new EchoSuppressor(echoTimeoutMillis);
+		this.metrics = metrics;
+		this.executor.scheduleWithFixedDelay(this.echoSuppressor::expire, echoTimeoutMillis, echoTimeoutMillis, TimeUnit.MILLISECONDS);
+		Map<String, LongSupplier> laneDepthSuppliers = new LinkedHashMap<>();
+		for (Lane lane : Lane.VALUES) {
+			AtomicInteger depth = this.laneDepths[lane.ordinal()] = new AtomicInteger();
+			laneDepthSuppliers.put(lane.name(), depth::get);
+		}
+		metrics.gauge("rest_pending_members", "Members with role changes waiting to be sent.", this::getPendingCount);
+		metrics.gauge("rest_lane_pending_members", "Members with role changes waiting to be sent in each lane.", "lane", laneDepthSuppliers);
+		metrics.gauge("rest_in_flight_requests", "Role change requests waiting for a response from Discord.", this::getInFlightCount);
+		metrics.gauge("echoes_pending", "Role changes waiting for their echo from the gateway.", this.echoSuppressor::size);
+		metrics.gauge("outbox_pending_mutations", "Role changes in the outbox that Discord hasn't accepted yet.", outbox::size);
+		metrics.gauge("outbox_bytes", "Size of the role change outbox.", outbox::getSize);
+	}
+
+	public EchoSuppressor getEchoSuppressor() {
+		return this.echoSuppressor;
+	}
+
+	/**
+	 * Queues a role to be added to a member.
+	 */
+	public void addRole(long guildId, long userId, long roleId, Lane lane) {
+		this.queue(guildId, userId, roleId, ADD, lane);
+	}
+
+	/**
+	 * Queues a role to be removed from a member.
+	 */
+	public void removeRole(long guildId, long userId, long roleId, Lane lane) {
+		this.queue(guildId, userId, roleId, REMOVE, lane);
+	}
+
+	/**
+	 * Queues a change read back from the outbox again, without appending it to the outbox a second time.
+	 */
+	public void restore(MutationOutbox.Entry entry) {
+		this.queue(entry.getGuildId(), entry.getUserId(), entry.getRoleId(), entry.isAdd() ? ADD : REMOVE, entry.getLane(), entry.getSequence());
+	}
+
+	/**
+	 * @return If a change to the role of the member is still queued, being sent or waiting for its echo, so its cached roles may not be up to date.
+	 */
+	public boolean hasPendingChange(long guildId, long userId, long roleId) {
+		return this.outbox.hasEntry(guildId, userId, roleId) || this.echoSuppressor.isAwaiting(guildId, userId, roleId);
+	}
+
+	/**
+	 * @return The number of members with changes that haven't been sent yet.
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (GuildBatch batch : this.batches.values()) {
+			synchronized (batch) {
+				count += batch.pending.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of role change requests waiting for a response from Discord.
+	 */
+	public int getInFlightCount() {
+		return this.inFlightRequests.get();
+	}
+
+	/**
+	 * Sends all pending changes and stops the dispatcher, changes waiting for a retry are left in the outbox.
+	 */
+	public void shutdown() {
+		try {
+			this.executor.submit(() -> this.batches.values().forEach(batch -> this.dispatch(batch, true))).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | RejectedExecutionException e) {
+			e.printStackTrace();
+		}
+		this.executor.shutdown();
+	}
+
+	private void queue(long guildId, long userId, long roleId, long change, Lane lane) {
+		this.queue(guildId, userId, roleId, change, lane, -1L);
+	}
+
+	/**
+	 * @param sequence The sequence number of the change in the outbox, or -1 to append it to the outbox.
+	 */
+	private void queue(long guildId, long userId, long roleId, long change, Lane lane, long sequence) {
+		GuildBatch batch = this.batches.computeIfAbsent(guildId, GuildBatch::new);
+		synchronized (batch) {
+			//Appending while holding the lock keeps the order of the outbox the same as the order changes to the same role replace each other in.
+			if (sequence < 0L) {
+				sequence = this.outbox.append(guildId, userId, roleId, change == ADD, lane);
+			}
+			PendingMember member = batch.pending.get(userId);
+			if (member == null) {
+				member = new PendingMember(lane, System.nanoTime());
+				batch.pending.put(userId, member);
+				batch.queues.get(lane.ordinal()).add(userId);
+				this.laneDepths[lane.ordinal()].incrementAndGet();
+			} else if (lane.ordinal() < member.lane.ordinal()) {
+				//A member's changes all go in one request, so they move up to the most urgent lane any of them was queued in.
+				this.laneDepths[member.lane.ordinal()].decrementAndGet();
+				this.laneDepths[lane.ordinal()].incrementAndGet();
+				member.lane = lane;
+				batch.queues.get(lane.ordinal()).add(userId);
+			}
+			member.changes.put(roleId, change);
+			member.sequences.put(roleId, sequence);
+			this.schedule(batch, this.collectionWindowNanos);
+		}
+		this.metrics.onMutationsQueued(guildId, 1);
+	}
+
+	/**
+	 * Schedules a dispatch of a batch if one isn't scheduled already, this must be called while holding the lock on the batch.
+	 */
+	private void schedule(GuildBatch batch, long delayNanos) {
+		if (!batch.scheduled) {
+			batch.scheduled = true;
+			this.executor.schedule(() -> this.dispatch(batch, false), delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Sends the changes of as many members as the guild's request budget allows, taking them from the lanes by weight.
+	 *
+	 * @param drain If every pending change should be sent regardless of the budget and the collection window, used when shutting down.
+	 */
+	private void dispatch(GuildBatch batch, boolean drain) {
+		Map<Long, PendingMember> changes = new LinkedHashMap<>();
+		long now = System.nanoTime();
+		synchronized (batch) {
+			batch.scheduled = false;
+			Lane lane;
+			while ((drain || batch.inFlight.size() < this.guildConcurrency) && (lane = this.nextLane(batch, drain ? Long.MAX_VALUE : now - this.collectionWindowNanos)) != null) {
+				Long userId = batch.queues.get(lane.ordinal()).poll();
+				PendingMember member = batch.pending.remove(userId);
+				batch.inFlight.add(userId);
+				this.laneDepths[lane.ordinal()].decrementAndGet();
+				this.metrics.onLaneWait(lane, now - member.queuedNanos);
+				changes.put(userId, member);
+			}
+			//Changes still inside their collection window get dispatched once it ends, unless a finished request gets to them first.
+			if (!drain && batch.inFlight.size() < this.guildConcurrency) {
+				long oldest = this.getOldestQueuedNanos(batch);
+				if (oldest != Long.MAX_VALUE) {
+					this.schedule(batch, Math.max(0L, oldest + this.collectionWindowNanos - now));
+				}
+			}
+		}
+		if (changes.isEmpty()) {
+			return;
+		}
+		this.outbox.flush();
+		Guild guild = ServerDataManager.resolveGuild(batch.guildId);
+		changes.forEach((userId, pendingMember) -> {
+			if (guild == null) {
+				//The guild may only be unavailable for now, if it was left its changes get acknowledged when the retries run out.
+				this.onRequestDone(batch, userId, pendingMember, true);
+				return;
+			}
+			try {
+				if (!this.send(guild, userId, pendingMember, failure -> this.onRequestFinished(batch, userId, pendingMember, failure))) {
+					this.onRequestDone(batch, userId, pendingMember, false);
+				}
+			} catch (RuntimeException e) {
+				//Thrown by JDA for changes the bot isn't allowed to make, such as roles above its highest role.
+				this.metrics.onMutationsFailed(batch.guildId, pendingMember.changes.size());
+				this.onRequestDone(batch, userId, pendingMember, false);
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Sends a member's changes.
+	 *
+	 * @param callback Given the failure once the request finishes, or null if it succeeded.
+	 * @return If a request was sent, in which case the callback gets run once it finishes.
+	 */
+	private boolean send(Guild guild, long userId, PendingMember sent, Consumer<Throwable> callback) {
+		Member member = guild.getMemberById(userId);
+		List<Role> rolesToAdd = new ArrayList<>();
+		List<Role> rolesToRemove = new ArrayList<>();
+		sent.changes.forEach((roleId, change) -> {
+			Role role = guild.getRoleById(roleId);
+			if (role != null) {
+				boolean hasRole = member != null && member.getRoles().contains(role);
+				if (change == ADD) {
+					if (!hasRole) {
+						rolesToAdd.add(role);
+					}
+				} else if (hasRole || member == null) {
+					rolesToRemove.add(role);
+				}
+			}
+		});
+		if (rolesToAdd.isEmpty() && rolesToRemove.isEmpty()) {
+			return false;
+		}
+		long guildId = guild.getIdLong();
+		int changeCount = rolesToAdd.size() + rolesToRemove.size();
+		if (member != null) {
+			AuditableRestAction<Void> action = guild.modifyMemberRoles(member, rolesToAdd, rolesToRemove);
+			this.recordEchoes(guildId, userId, rolesToAdd, true);
+			this.recordEchoes(guildId, userId, rolesToRemove, false);
+			this.inFlightRequests.incrementAndGet();
+			action.queue(success -> {
+				this.inFlightRequests.decrementAndGet();
+				this.metrics.onMutationsSucceeded(guildId, changeCount);
+				callback.accept(null);
+			}, failure -> {
+				this.inFlightRequests.decrementAndGet();
+				this.metrics.onMutationsFailed(guildId, changeCount);
+				this.forgetEchoes(guildId, userId, rolesToAdd, true);
+				this.forgetEchoes(guildId, userId, rolesToRemove, false);
+				callback.accept(failure);
+			});
+		} else {
+			//The member isn't cached, so the changes are sent one by one using the member's ID.
+			List<AuditableRestAction<Void>> actions = new ArrayList<>();
+			for (Role role : rolesToAdd) {
+				actions.add(guild.addRoleToMember(userId, role));
+			}
+			for (Role role : rolesToRemove) {
+				actions.add(guild.removeRoleFromMember(userId, role));
+			}
+			this.recordEchoes(guildId, userId, rolesToAdd, true);
+			this.recordEchoes(guildId, userId, rolesToRemove, false);
+			ChangeCountDown countDown = new ChangeCountDown(sent, actions.size(), callback);
+			this.inFlightRequests.addAndGet(actions.size());
+			for (int i = 0; i < actions.size(); i++) {
+				boolean added = i < rolesToAdd.size();
+				long roleId = (added ? rolesToAdd.get(i) : rolesToRemove.get(i - rolesToAdd.size())).getIdLong();
+				actions.get(i).queue(success -> {
+					this.inFlightRequests.decrementAndGet();
+					this.metrics.onMutationsSucceeded(guildId, 1);
+					countDown.onFinished(roleId, null);
+				}, failure -> {
+					this.inFlightRequests.decrementAndGet();
+					this.metrics.onMutationsFailed(guildId, 1);
+					this.echoSuppressor.forget(guildId, userId, roleId, added);
+					countDown.onFinished(roleId, failure);
+				});
+			}
+		}
+		return true;
+	}
+
+	private void recordEchoes(long guildId, long userId, List<Role> roles, boolean added) {
+		for (Role role : roles) {
+			this.echoSuppressor.record(guildId, userId, role.getIdLong(), added);
+		}
+	}
+
+	private void forgetEchoes(long guildId, long userId, List<Role> roles, boolean added) {
+		for (Role role : roles) {
+			this.echoSuppressor.forget(guildId, userId, role.getIdLong(), added);
+		}
+	}
+
+	/**
+	 * Picks the lane to send from next using smooth weighted round robin, lanes only take part while their oldest member is ready to be sent.
+	 * <p>This must be called while holding the lock on the batch.</p>
+	 *
+	 * @param readyBefore Members queued before this time are ready to be sent.
+	 * @return The lane, or null if no lane has a member that's ready.
+	 */
+	@Nullable
+	private Lane nextLane(GuildBatch batch, long readyBefore) {
+		Lane next = null;
+		int totalWeight = 0;
+		for (Lane lane : Lane.VALUES) {
+			PendingMember head = this.pruneQueue(batch, lane);
+			if (head != null && head.queuedNanos <= readyBefore) {
+				batch.credits[lane.ordinal()] += lane.weight;
+				totalWeight += lane.weight;
+				if (next == null || batch.credits[lane.ordinal()] > batch.credits[next.ordinal()]) {
+					next = lane;
+				}
+			}
+		}
+		if (next != null) {
+			batch.credits[next.ordinal()] -= totalWeight;
+		}
+		return next;
+	}
+
+	/**
+	 * Drops users at the head of a lane's queue that no longer have changes waiting in the lane, or that have a request in flight.
+	 * Users with a request in flight are queued again once it finishes.
+	 *
+	 * @return The pending changes of the user at the head of the queue, or null if the queue is empty.
+	 */
+	@Nullable
+	private PendingMember pruneQueue(GuildBatch batch, Lane lane) {
+		ArrayDeque<Long> queue = batch.queues.get(lane.ordinal());
+		Long userId;
+		while ((userId = queue.peek()) != null) {
+			PendingMember member = batch.pending.get(userId);
+			if (member != null && member.lane == lane && !batch.inFlight.contains(userId)) {
+				return member;
+			}
+			queue.poll();
+		}
+		return null;
+	}
+
+	/**
+	 * @return The time the oldest member waiting at the head of a lane was queued at, or {@link Long#MAX_VALUE} if there is none.
+	 */
+	private long getOldestQueuedNanos(GuildBatch batch) {
+		long oldest = Long.MAX_VALUE;
+		for (Lane lane : Lane.VALUES) {
+			PendingMember head = this.pruneQueue(batch, lane);
+			if (head != null) {
+				oldest = Math.min(oldest, head.queuedNanos);
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * @param failure The failure of the request, or null if it succeeded.
+	 */
+	private void onRequestFinished(GuildBatch batch, long userId, PendingMember sent, @Nullable Throwable failure) {
+		boolean retry = failure != null && isRetryable(failure);
+		if (failure != null && !retry) {
+			ServerDataManager.logUnlessUnknownMember(failure);
+		}
+		this.onRequestDone(batch, userId, sent, retry);
+	}
+
+	/**
+	 * @return If a failure is worth retrying, Discord rejecting a request for any reason other than a server error isn't.
+	 */
+	private static boolean isRetryable(Throwable failure) {
+		if (failure instanceof ErrorResponseException) {
+			return ((ErrorResponseException) failure).isServerError();
+		}
+		return failure instanceof IOException || failure instanceof TimeoutException;
+	}
+
+	/**
+	 * Finishes a member's request, acknowledging its changes in the outbox or scheduling them to be retried, and dispatches the guild's next changes.
+	 *
+	 * @param retry If the request failed in a way that's worth retrying.
+	 */
+	private void onRequestDone(GuildBatch batch, long userId, PendingMember sent, boolean retry) {
+		if (retry && this.retryBackoff.canRetry(++sent.attempts)) {
+			long delayNanos = this.retryBackoff.getDelayNanos(sent.attempts);
+			this.metrics.onMutationsRetried(batch.guildId, sent.changes.size());
+			try {
+				this.executor.schedule(() -> this.requeue(batch, userId, sent), delayNanos, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				//The dispatcher has been shut down, the changes stay in the outbox for the next start.
+			}
+		} else {
+			if (retry) {
+				System.out.println("Giving up on " + sent.changes.size() + " role changes for user " + Long.toUnsignedString(userId) + " in guild " + Long.toUnsignedString(batch.guildId) + " after " + sent.attempts + " attempts");
+			}
+			sent.sequences.forEach((roleId, sequence) -> this.outbox.acknowledge(sequence));
+		}
+		synchronized (batch) {
+			batch.inFlight.remove(userId);
+			PendingMember member = batch.pending.get(userId);
+			if (member != null) {
+				//Changes made while the request was in flight have waited long enough, so they go back to the front of their lane.
+				batch.queues.get(member.lane.ordinal()).addFirst(userId);
+			}
+			if (batch.pending.isEmpty()) {
+				return;
+			}
+		}
+		try {
+			this.executor.execute(() -> this.dispatch(batch, false));
+		} catch (RejectedExecutionException e) {
+			//The dispatcher has been shut down.
+		}
+	}
+
+	/**
+	 * Queues changes that failed to send again once their backoff is over, at the front of their lane.
+	 * Changes that were replaced in the outbox by a later change to the same role while waiting are dropped, whether or not that change has been sent yet.
+	 */
+	private void requeue(GuildBatch batch, long userId, PendingMember sent) {
+		synchronized (batch) {
+			//Checked while holding the lock, since changes to the same roles are appended to the outbox while holding it.
+			LongLongHashMap changes = new LongLongHashMap(-1L);
+			sent.changes.forEach((roleId, change) -> {
+				if (this.outbox.isPending(sent.sequences.get(roleId))) {
+					changes.put(roleId, change);
+				}
+			});
+			if (changes.isEmpty()) {
+				return;
+			}
+			PendingMember member = batch.pending.get(userId);
+			if (member == null) {
+				member = new PendingMember(sent.lane, System.nanoTime() - this.collectionWindowNanos);
+				batch.pending.put(userId, member);
+				batch.queues.get(sent.lane.ordinal()).addFirst(userId);
+				this.laneDepths[sent.lane.ordinal()].incrementAndGet();
+			} else if (sent.lane.ordinal() < member.lane.ordinal()) {
+				this.laneDepths[member.lane.ordinal()].decrementAndGet();
+				this.laneDepths[sent.lane.ordinal()].incrementAndGet();
+				member.lane = sent.lane;
+				batch.queues.get(sent.lane.ordinal()).addFirst(userId);
+			}
+			PendingMember pendingMember = member;
+			changes.forEach((roleId, change) -> {
+				if (!pendingMember.changes.containsKey(roleId)) {
+					pendingMember.changes.put(roleId, change);
+					pendingMember.sequences.put(roleId, sent.sequences.get(roleId));
+				}
+			});
+			member.attempts = Math.max(member.attempts, sent.attempts);
+			this.schedule(batch, 0L);
+		}
+	}
+
+	/**
+	 * The lanes role changes are queued in, from most to least urgent.
+	 * <p>When several lanes of a guild have changes waiting, each lane gets a share of the guild's requests in proportion to its weight.</p>
+	 */
+	public enum Lane {
+		/**
+		 * Changes made in response to role events as they happen.
+		 */
+		LIVE(8),
+		/**
+		 * Changes giving members that joined a guild their pooled roles.
+		 */
+		JOIN(4),
+		/**
+		 * Changes made by resyncs and the reconciler.
+		 */
+		BACKGROUND(1);
+
+		private static final Lane[] VALUES = values();
+		private final int weight;
+
+		Lane(int weight) {
+			this.weight = weight;
+		}
+
+		public int getWeight() {
+			return this.weight;
+		}
+	}
+
+	private static final class GuildBatch {
+		private final long guildId;
+		private final Map<Long, PendingMember> pending = new HashMap<>();
+		//The users with pending changes in each lane in the order they were queued, users that moved to another lane or were sent are left behind and skipped.
+		private final List<ArrayDeque<Long>> queues = new ArrayList<>(Lane.VALUES.length);
+		private final int[] credits = new int[Lane.VALUES.length];
+		private final Set<Long> inFlight = new HashSet<>();
+		private boolean scheduled;
+
+		private GuildBatch(long guildId) {
+			this.guildId = guildId;
+			for (int i = 0; i < Lane.VALUES.length; i++) {
+				this.queues.add(new ArrayDeque<>());
+			}
+		}
+	}
+
+	/**
+	 * The changes waiting to be sent for a member, with the most urgent lane they were queued in and the time the first of them was queued.
+	 */
+	private static final class PendingMember {
+		private final LongLongHashMap changes = new LongLongHashMap(-1L);
+		//The sequence number of each change in the outbox.
+		private final LongLongHashMap sequences = new LongLongHashMap(-1L);
+		private final long queuedNanos;
+		private Lane lane;
+		//The number of times sending the changes has failed in a way worth retrying.
+		private int attempts;
+
+		private PendingMember(Lane lane, long queuedNanos) {
+			this.lane = lane;
+			this.queuedNanos = queuedNanos;
+		}
+	}
+
+	/**
+	 * Runs a callback once a member's changes that were sent one by one have finished, with the first failure if any of them failed.
+	 * <p>If some of them failed, the ones that succeeded are acknowledged and taken out of the sent changes first, so only the failed ones get retried.</p>
+	 */
+	private final class ChangeCountDown {
+		private final PendingMember sent;
+		private final Consumer<Throwable> callback;
+		private final List<Long> succeeded = new ArrayList<>();
+		private int remaining;
+		@Nullable
+		private Throwable failure;
+
+		private ChangeCountDown(PendingMember sent, int count, Consumer<Throwable> callback) {
+			this.sent = sent;
+			this.remaining = count;
+			this.callback = callback;
+		}
+
+		private synchronized void onFinished(long roleId, @Nullable Throwable failure) {
+			if (failure == null) {
+				this.succeeded.add(roleId);
+			} else if (this.failure == null) {
+				this.failure = failure;
+			}
+			if (--this.remaining == 0) {
+				if (this.failure != null) {
+					for (long succeededRoleId : this.succeeded) {
+						RoleMutationDispatcher.this.outbox.acknowledge(this.sent.sequences.remove(succeededRoleId));
+						this.sent.changes.remove(succeededRoleId);
+					}
+				}
+				this.callback.accept(this.failure);
+			}
+		}
+	}
+}
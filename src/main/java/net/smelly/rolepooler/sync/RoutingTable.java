@@ -0,0 +1,196 @@
+package net.smelly.rolepooler.sync;
+
+import net.smelly.rolepooler.Pool;
+import net.smelly.rolepooler.data.LongLongHashMap;
+import net.smelly.rolepooler.data.PoolRoleMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A precomputed view of where pooled roles need to go, built from the {@link PoolRoleMap} and the guilds the bot is in.
+ * <p>The table maps each guild to its pooled role for each {@link Pool} and each pool to the guilds its roles can be synced to.
+ * It gets rebuilt whenever pooled roles change and updated for just the guild whenever the bot joins or leaves one, which is rare compared to how often it's read,
+ * so each change is published as a new immutable set of routes that readers use without locking.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class RoutingTable {
+	private static final long[] NO_ROLES = new long[0];
+	private final PoolRoleMap poolRoleMap;
+	private final Set<Long> presentGuilds = ConcurrentHashMap.newKeySet();
+	private volatile Routes routes;
+
+	public RoutingTable(PoolRoleMap poolRoleMap) {
+		this.poolRoleMap = poolRoleMap;
+		this.rebuild();
+	}
+
+	/**
+	 * Marks if the bot is in a guild, only guilds the bot is in are routed to.
+	 * <p>Only the guild's own routes get updated, since guilds load one at a time on startup and rebuilding every route for each of them adds up.</p>
+	 */
+	public synchronized void setGuildPresent(long guildId, boolean present) {
+		if (present ? this.presentGuilds.add(guildId) : this.presentGuilds.remove(guildId)) {
+			this.routes = present ? this.addGuild(this.routes, guildId) : removeGuild(this.routes, guildId);
+		}
+	}
+
+	/**
+	 * Rebuilds the routes from the current pooled roles, this should be called after any change to the {@link PoolRoleMap}.
+	 */
+	public synchronized void rebuild() {
+		List<Pool> pools = Pool.values();
+		//Sized from the pools being routed, so a pool created during the rebuild is left out until the next one.
+		int indexLimit = pools.isEmpty() ? 0 : pools.get(pools.size() - 1).getIndex() + 1;
+		long[][] targetsByPool = new long[indexLimit][];
+		Arrays.fill(targetsByPool, NO_ROLES);
+		LongLongHashMap guildIndices = new LongLongHashMap(-1L);
+		long[][] rolesByGuild = new long[16][];
+		int guildCount = 0;
+		for (Pool pool : pools) {
+			long[] pairs = this.poolRoleMap.getGuildRolePairs(pool);
+			int length = 0;
+			for (int i = 0; i < pairs.length; i += 2) {
+				long guildId = pairs[i];
+				if (this.presentGuilds.contains(guildId)) {
+					pairs[length++] = guildId;
+					pairs[length++] = pairs[i + 1];
+					long index = guildIndices.get(guildId);
+					if (index == -1L) {
+						if (guildCount == rolesByGuild.length) {
+							rolesByGuild = Arrays.copyOf(rolesByGuild, guildCount << 1);
+						}
+						index = guildCount;
+						rolesByGuild[guildCount++] = new long[indexLimit];
+						guildIndices.put(guildId, index);
+					}
+					rolesByGuild[(int) index][pool.getIndex()] = pairs[i + 1];
+				}
+			}
+			targetsByPool[pool.getIndex()] = length == pairs.length ? pairs : Arrays.copyOf(pairs, length);
+		}
+		this.routes = new Routes(targetsByPool, guildIndices, rolesByGuild);
+	}
+
+	/**
+	 * @return The routes with a guild's pooled roles added, or the same routes if the guild has none.
+	 */
+	private Routes addGuild(Routes routes, long guildId) {
+		long[][] targetsByPool = routes.targetsByPool.clone();
+		long[] roles = new long[targetsByPool.length];
+		boolean pooled = false;
+		for (Pool pool : Pool.values()) {
+			long roleId = pool.getIndex() < roles.length ? this.poolRoleMap.getRole(pool, guildId) : 0L;
+			if (roleId != 0L) {
+				long[] targets = targetsByPool[pool.getIndex()];
+				long[] newTargets = Arrays.copyOf(targets, targets.length + 2);
+				newTargets[targets.length] = guildId;
+				newTargets[targets.length + 1] = roleId;
+				targetsByPool[pool.getIndex()] = newTargets;
+				roles[pool.getIndex()] = roleId;
+				pooled = true;
+			}
+		}
+		if (!pooled || routes.guildIndices.containsKey(guildId)) {
+			return routes;
+		}
+		int guildCount = routes.guildIndices.size();
+		LongLongHashMap guildIndices = routes.guildIndices.copy();
+		guildIndices.put(guildId, guildCount);
+		long[][] rolesByGuild = Arrays.copyOf(routes.rolesByGuild, guildCount + 1);
+		rolesByGuild[guildCount] = roles;
+		return new Routes(targetsByPool, guildIndices, rolesByGuild);
+	}
+
+	/**
+	 * @return The routes with a guild's pooled roles taken out, the last guild takes the place of the removed one so no gaps are left.
+	 */
+	private static Routes removeGuild(Routes routes, long guildId) {
+		long index = routes.guildIndices.get(guildId);
+		if (index == -1L) {
+			return routes;
+		}
+		long[] roles = routes.rolesByGuild[(int) index];
+		long[][] targetsByPool = routes.targetsByPool.clone();
+		for (int poolIndex = 0; poolIndex < roles.length; poolIndex++) {
+			if (roles[poolIndex] != 0L) {
+				long[] targets = targetsByPool[poolIndex];
+				long[] newTargets = new long[targets.length - 2];
+				int length = 0;
+				for (int i = 0; i < targets.length; i += 2) {
+					if (targets[i] != guildId) {
+						newTargets[length++] = targets[i];
+						newTargets[length++] = targets[i + 1];
+					}
+				}
+				targetsByPool[poolIndex] = newTargets;
+			}
+		}
+		int lastIndex = routes.guildIndices.size() - 1;
+		LongLongHashMap guildIndices = routes.guildIndices.copy();
+		guildIndices.remove(guildId);
+		long[][] rolesByGuild = Arrays.copyOf(routes.rolesByGuild, lastIndex);
+		if (index != lastIndex) {
+			rolesByGuild[(int) index] = routes.rolesByGuild[lastIndex];
+			long[] lastGuildId = new long[1];
+			routes.guildIndices.forEach((key, value) -> {
+				if (value == lastIndex) {
+					lastGuildId[0] = key;
+				}
+			});
+			guildIndices.put(lastGuildId[0], index);
+		}
+		return new Routes(targetsByPool, guildIndices, rolesByGuild);
+	}
+
+	/**
+	 * Gets the guilds a pool's roles can be synced to. The returned array must not be modified.
+	 *
+	 * @return An array of alternating guild and role IDs, empty for pools created since the last rebuild.
+	 */
+	public long[] getTargets(Pool pool) {
+		long[][] targetsByPool = this.routes.targetsByPool;
+		return pool.getIndex() < targetsByPool.length ? targetsByPool[pool.getIndex()] : NO_ROLES;
+	}
+
+	/**
+	 * Gets a guild's pooled roles. The returned array must not be modified.
+	 *
+	 * @return An array of role IDs indexed by {@link Pool#getIndex()}, with 0 for pools the guild has no role for. Pools created since the last rebuild may be past the end of it.
+	 */
+	public long[] getRoles(long guildId) {
+		Routes routes = this.routes;
+		long index = routes.guildIndices.get(guildId);
+		return index != -1L ? routes.rolesByGuild[(int) index] : NO_ROLES;
+	}
+
+	/**
+	 * @return The ID of the guild's pooled role for the pool, 0 if there is none.
+	 */
+	public long getRole(long guildId, Pool pool) {
+		long[] roles = this.getRoles(guildId);
+		return pool.getIndex() < roles.length ? roles[pool.getIndex()] : 0L;
+	}
+
+	/**
+	 * @return If the guild has any pooled roles that can be synced.
+	 */
+	public boolean isRouted(long guildId) {
+		return this.routes.guildIndices.containsKey(guildId);
+	}
+
+	private static final class Routes {
+		private final long[][] targetsByPool;
+		private final LongLongHashMap guildIndices;
+		private final long[][] rolesByGuild;
+
+		private Routes(long[][] targetsByPool, LongLongHashMap guildIndices, long[][] rolesByGuild) {
+			this.targetsByPool = targetsByPool;
+			this.guildIndices = guildIndices;
+			this.rolesByGuild = rolesByGuild;
+		}
+	}
+}
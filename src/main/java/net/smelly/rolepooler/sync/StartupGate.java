@@ -0,0 +1,156 @@
+package net.smelly.rolepooler.sync;
+
+import java.util.*;
+
+/**
+ * Holds back events for guilds until the bot is ready to handle them.
+ * <p>An event for a guild is handled once that guild has loaded, and either the bot has finished starting up or every pooled guild has loaded.
+ * Waiting for the pooled guilds stops a change from being pooled before the guilds it has to be pooled to are routed to.
+ * Events that arrive before then are buffered per guild and replayed in order once their guild can be handled.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class StartupGate {
+	private final Set<Long> readyGuilds = new HashSet<>();
+	private final Set<Long> waitingPooledGuilds;
+	private final Map<Long, ArrayDeque<Runnable>> buffered = new HashMap<>();
+	private final Set<Long> draining = new HashSet<>();
+	private boolean started;
+
+	/**
+	 * @param pooledGuilds The IDs of the guilds that have pooled roles.
+	 */
+	public StartupGate(Collection<Long> pooledGuilds) {
+		this.waitingPooledGuilds = new HashSet<>(pooledGuilds);
+	}
+
+	/**
+	 * Runs a task for a guild now if the guild can be handled, otherwise buffers it until the guild can be handled.
+	 */
+	public void execute(long guildId, Runnable task) {
+		synchronized (this) {
+			ArrayDeque<Runnable> queue = this.buffered.get(guildId);
+			if (queue != null || !this.canRun(guildId)) {
+				this.buffered.computeIfAbsent(guildId, key -> new ArrayDeque<>()).add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Marks a guild as loaded, replaying any events that can now be handled.
+	 */
+	public void markReady(long guildId) {
+		synchronized (this) {
+			this.readyGuilds.add(guildId);
+			this.waitingPooledGuilds.remove(guildId);
+		}
+		this.drain();
+	}
+
+	/**
+	 * Marks a guild as no longer available, events for it get buffered until it's ready again.
+	 */
+	public synchronized void markUnavailable(long guildId) {
+		this.readyGuilds.remove(guildId);
+	}
+
+	/**
+	 * Forgets a guild the bot has left, dropping its buffered events.
+	 */
+	public void remove(long guildId) {
+		synchronized (this) {
+			this.readyGuilds.remove(guildId);
+			this.waitingPooledGuilds.remove(guildId);
+			this.buffered.remove(guildId);
+		}
+		this.drain();
+	}
+
+	/**
+	 * Drops a buffered task before it runs.
+	 *
+	 * @return If the task was still buffered.
+	 */
+	public synchronized boolean cancel(long guildId, Runnable task) {
+		ArrayDeque<Runnable> queue = this.buffered.get(guildId);
+		if (queue == null || !queue.remove(task)) {
+			return false;
+		}
+		if (queue.isEmpty() && !this.draining.contains(guildId)) {
+			this.buffered.remove(guildId);
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the bot as started, pooled guilds that haven't loaded by now are no longer waited for.
+	 */
+	public void markStarted() {
+		synchronized (this) {
+			this.started = true;
+		}
+		this.drain();
+	}
+
+	public synchronized boolean isStarted() {
+		return this.started;
+	}
+
+	public synchronized boolean isReady(long guildId) {
+		return this.readyGuilds.contains(guildId);
+	}
+
+	public synchronized int getBufferedCount() {
+		int count = 0;
+		for (ArrayDeque<Runnable> queue : this.buffered.values()) {
+			count += queue.size();
+		}
+		return count;
+	}
+
+	private boolean canRun(long guildId) {
+		return this.readyGuilds.contains(guildId) && (this.started || this.waitingPooledGuilds.isEmpty());
+	}
+
+	private void drain() {
+		while (true) {
+			Long guildId = null;
+			synchronized (this) {
+				for (Long key : this.buffered.keySet()) {
+					if (!this.draining.contains(key) && this.canRun(key)) {
+						guildId = key;
+						this.draining.add(key);
+						break;
+					}
+				}
+			}
+			if (guildId == null) {
+				return;
+			}
+			this.drainGuild(guildId);
+		}
+	}
+
+	/**
+	 * Runs a guild's buffered events one at a time, the queue stays in the map until it's empty so events for the guild that arrive meanwhile get queued behind it.
+	 */
+	private void drainGuild(Long guildId) {
+		while (true) {
+			Runnable task;
+			synchronized (this) {
+				ArrayDeque<Runnable> queue = this.buffered.get(guildId);
+				task = queue != null && this.canRun(guildId) ? queue.poll() : null;
+				if (task == null) {
+					if (queue != null && queue.isEmpty()) {
+						this.buffered.remove(guildId);
+					}
+					this.draining.remove(guildId);
+					return;
+				}
+			}
+			task.run();
+		}
+	}
+}
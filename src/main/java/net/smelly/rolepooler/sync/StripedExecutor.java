@@ -0,0 +1,145 @@
+package net.smelly.rolepooler.sync;
+
+import net.smelly.rolepooler.metrics.RolePoolerMetrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks across a fixed number of worker threads, with every task for the same key running on the same thread.
+ * <p>Tasks for a key run strictly in the order they were submitted, while tasks for different keys run in parallel.
+ * Each worker has a bounded queue, when it's full the submitting thread waits for room instead of dropping the task, which pushes back on the gateway rather than losing events.</p>
+ *
+ * @author Luke Tonon
+ */
+public final class StripedExecutor {
+	private static final Runnable SHUTDOWN = () -> {};
+	private final Stripe[] stripes;
+	private final RolePoolerMetrics metrics;
+	private volatile boolean shutdown;
+
+	/**
+	 * @param name          The name of the worker threads, suffixed with their index.
+	 * @param stripeCount   The number of worker threads.
+	 * @param queueCapacity The number of tasks each worker can have waiting before submitting blocks.
+	 * @param metrics       The metrics to record queue depths, wait times and backpressure to.
+	 */
+	public StripedExecutor(String name, int stripeCount, int queueCapacity, RolePoolerMetrics metrics) {
+		this.metrics = metrics;
+		this.stripes = new Stripe[Math.max(1, stripeCount)];
+		for (int i = 0; i < this.stripes.length; i++) {
+			Stripe stripe = this.stripes[i] = new Stripe(queueCapacity);
+			stripe.thread = new Thread(stripe, name + " #" + i);
+			stripe.thread.setDaemon(true);
+			stripe.thread.start();
+		}
+		metrics.gauge("event_queue_depth", "Events waiting to be processed by the event workers.", this::getQueuedCount);
+	}
+
+	/**
+	 * Queues a task to run after every task submitted before it for the same key.
+	 * <p>If the worker for the key is backed up this blocks until it has room for the task.</p>
+	 */
+	public void execute(long key, Runnable task) {
+		if (this.shutdown) {
+			//Events that arrive while shutting down are still handled, there's just nothing to order them against anymore.
+			task.run();
+			return;
+		}
+		BlockingQueue<QueuedTask> queue = this.stripes[stripeIndex(key, this.stripes.length)].queue;
+		QueuedTask queuedTask = new QueuedTask(task);
+		if (!queue.offer(queuedTask)) {
+			try {
+				queue.put(queuedTask);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				task.run();
+				return;
+			}
+			this.metrics.onEventBackpressure(System.nanoTime() - queuedTask.queuedNanos);
+		}
+	}
+
+	/**
+	 * @return The number of tasks waiting across all workers.
+	 */
+	public int getQueuedCount() {
+		int count = 0;
+		for (Stripe stripe : this.stripes) {
+			count += stripe.queue.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Runs all queued tasks and stops the workers.
+	 */
+	public void shutdown() {
+		this.shutdown = true;
+		for (Stripe stripe : this.stripes) {
+			try {
+				stripe.queue.put(new QueuedTask(SHUTDOWN));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		for (Stripe stripe : this.stripes) {
+			try {
+				stripe.thread.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Spreads keys across the stripes, mixing the bits first since snowflake IDs share their low bits.
+	 */
+	static int stripeIndex(long key, int stripeCount) {
+		long mixed = key * 0x9E3779B97F4A7C15L;
+		return (int) ((mixed >>> 32) % stripeCount);
+	}
+
+	private final class Stripe implements Runnable {
+		private final BlockingQueue<QueuedTask> queue;
+		private Thread thread;
+
+		private Stripe(int queueCapacity) {
+			this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				QueuedTask queuedTask;
+				try {
+					queuedTask = this.queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (queuedTask.task == SHUTDOWN) {
+					return;
+				}
+				StripedExecutor.this.metrics.onEventDequeued(System.nanoTime() - queuedTask.queuedNanos);
+				try {
+					queuedTask.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static final class QueuedTask {
+		private final Runnable task;
+		private final long queuedNanos = System.nanoTime();
+
+		private QueuedTask(Runnable task) {
+			this.task = task;
+		}
+	}
+}